@@ -0,0 +1,75 @@
+package net.beargummy.filesystem;
+
+/**
+ * Outcome of a single item of a batch operation.
+ *
+ * @param <T> type of the value produced for a successful item.
+ * @see FileSystem#createFiles(java.util.Collection)
+ * @see FileSystem#deleteFiles(java.util.Collection)
+ */
+public final class BatchResult<T> {
+
+    private final String name;
+    private final T value;
+    private final Exception error;
+
+    private BatchResult(String name, T value, Exception error) {
+        this.name = name;
+        this.value = value;
+        this.error = error;
+    }
+
+    static <T> BatchResult<T> success(String name, T value) {
+        return new BatchResult<>(name, value, null);
+    }
+
+    static <T> BatchResult<T> failure(String name, Exception error) {
+        return new BatchResult<>(name, null, error);
+    }
+
+    /**
+     * Get file name the item was requested for.
+     *
+     * @return file name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Check whether operation succeeded for this item.
+     *
+     * @return {@code true} if operation succeeded.
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Get value produced for this item.
+     *
+     * @return value, or {@code null} if operation failed or produces no value.
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * Get exception the operation failed with for this item.
+     * It is the same exception the single item operation would have thrown.
+     *
+     * @return exception, or {@code null} if operation succeeded.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" +
+                "name='" + name + '\'' +
+                ", value=" + value +
+                ", error=" + error +
+                '}';
+    }
+}
@@ -35,6 +35,15 @@ class BitMap implements ByteBufferSerializable {
         }
     }
 
+    private BitMap(BitMap bitMap) {
+        this.size = bitMap.size;
+        this.numAllocated = bitMap.numAllocated;
+        this.bitSets = new BitSet[bitMap.bitSets.length];
+        for (int i = 0; i < bitSets.length; i++) {
+            this.bitSets[i] = (BitSet) bitMap.bitSets[i].clone();
+        }
+    }
+
     long size() {
         return size;
     }
@@ -56,6 +65,115 @@ class BitMap implements ByteBufferSerializable {
         return -1;
     }
 
+    /**
+     * Allocate first index which is free in this bitmap and is not allocated in {@code excluded} one.
+     *
+     * @param excluded bitmap of the same size with indexes which should not be allocated, or {@code null}.
+     * @return allocated index, or -1 if there is no such index.
+     */
+    long allocate(BitMap excluded) {
+        if (excluded == null) {
+            return allocate();
+        }
+        if (numFree() == 0) {
+            return -1;
+        }
+        for (int i = 0, bitSetsLength = bitSets.length; i < bitSetsLength; i++) {
+            BitSet bitSet = bitSets[i];
+            BitSet excludedBitSet = excluded.bitSets[i];
+            int bitSetSize = (i + 1 == bitSetsLength) ? getInternalIndex(size) : Integer.MAX_VALUE;
+            int index = bitSet.nextClearBit(0);
+            while (index < bitSetSize && excludedBitSet.get(index)) {
+                // skip the whole excluded run at once
+                index = bitSet.nextClearBit(excludedBitSet.nextClearBit(index));
+            }
+            if (index < bitSetSize) {
+                bitSet.set(index);
+                numAllocated += 1;
+                return (long) i * Integer.MAX_VALUE + index;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Allocate {@code count} consecutive indexes using first-fit search.
+     *
+     * @param count amount of indexes to allocate.
+     * @return first allocated index, or -1 if there is no free run of given length.
+     */
+    long allocateRange(int count) {
+        return allocateRange(count, null);
+    }
+
+    /**
+     * Allocate {@code count} consecutive indexes, none of which is allocated in {@code excluded} bitmap,
+     * using first-fit search.
+     *
+     * @param count    amount of indexes to allocate.
+     * @param excluded bitmap of the same size with indexes which should not be allocated, or {@code null}.
+     * @return first allocated index, or -1 if there is no free run of given length.
+     */
+    long allocateRange(int count, BitMap excluded) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count should be strictly positive number");
+        }
+        if (numFree() < count) {
+            return -1;
+        }
+        for (int i = 0, bitSetsLength = bitSets.length; i < bitSetsLength; i++) {
+            BitSet bitSet = bitSets[i];
+            BitSet taken = bitSet;
+            if (excluded != null) {
+                taken = (BitSet) bitSet.clone();
+                taken.or(excluded.bitSets[i]);
+            }
+            int bitSetSize = (i + 1 == bitSetsLength) ? getInternalIndex(size) : Integer.MAX_VALUE;
+            int from = 0;
+            while (from < bitSetSize) {
+                int start = taken.nextClearBit(from);
+                if (bitSetSize - start < count) {
+                    break;
+                }
+                int end = taken.nextSetBit(start);
+                if (end == -1 || end - start >= count) {
+                    bitSet.set(start, start + count);
+                    numAllocated += count;
+                    return (long) i * Integer.MAX_VALUE + start;
+                }
+                from = end;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Copy of this bitmap, which does not change with it.
+     */
+    BitMap copy() {
+        return new BitMap(this);
+    }
+
+    /**
+     * Allocate every index allocated in {@code other} bitmap of the same size.
+     */
+    void allocateAll(BitMap other) {
+        numAllocated = 0;
+        for (int i = 0; i < bitSets.length; i++) {
+            bitSets[i].or(other.bitSets[i]);
+            numAllocated += bitSets[i].cardinality();
+        }
+    }
+
+    boolean isAllocated(long index) {
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        return bitSets[getBucket(index)].get(getInternalIndex(index));
+    }
+
     long markAllocated(long index) {
         int bucket = getBucket(index);
         int internalIndex = getInternalIndex(index);
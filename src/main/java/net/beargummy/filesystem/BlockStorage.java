@@ -56,6 +56,47 @@ public interface BlockStorage extends AutoCloseable {
      */
     void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException;
 
+    /**
+     * Reads {@code blocks} consecutive blocks starting at {@code firstBlock} into the buffer.
+     * Storages backed by a device read them in one sequential request.
+     *
+     * @param firstBlock index of the first block to read.
+     * @param buffer     the buffer of at least {@code blocks} times block size bytes.
+     * @param blocks     amount of blocks to read.
+     * @throws NullPointerException if {@code buffer} is {@code null}.
+     * @throws IOException          if an I/O error occurs.
+     */
+    default void readBlocks(long firstBlock, byte[] buffer, int blocks) throws IOException {
+        int blockSize = getBlockSize();
+        for (int i = 0; i < blocks; i++) {
+            readBlock(firstBlock + i, buffer, i * blockSize, blockSize, 0);
+        }
+    }
+
+    /**
+     * Writes {@code blocks} consecutive blocks starting at {@code firstBlock} from the buffer.
+     * Storages backed by a device write them in one sequential request.
+     *
+     * @param firstBlock index of the first block to write.
+     * @param buffer     the buffer of at least {@code blocks} times block size bytes.
+     * @param blocks     amount of blocks to write.
+     * @throws NullPointerException if {@code buffer} is {@code null}.
+     * @throws IOException          if an I/O error occurs.
+     */
+    default void writeBlocks(long firstBlock, byte[] buffer, int blocks) throws IOException {
+        int blockSize = getBlockSize();
+        for (int i = 0; i < blocks; i++) {
+            writeBlock(firstBlock + i, buffer, i * blockSize, blockSize, 0);
+        }
+    }
+
+    /**
+     * Forces blocks written so far to the storage device, so they survive a crash of the system.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void sync() throws IOException;
+
     /**
      * Get block size in bytes.
      *
@@ -0,0 +1,169 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link BlockStorage} decorator, which coalesces concurrent reads of the same block range.
+ * <p>
+ * The first reader of a range issues the storage read, readers of the same range arriving
+ * while it is in flight wait for it and copy its result. Reads of other ranges of a block which
+ * has a read in flight go to the storage directly.
+ * <p>
+ * A write to a block detaches its in-flight read both before and after the write, so a read
+ * started after the write completes never joins a read which could miss the written data.
+ */
+class CoalescingBlockStorage implements BlockStorage {
+
+    private final BlockStorage blockStorage;
+    private final ConcurrentMap<Long, Flight> inFlight = new ConcurrentHashMap<>();
+
+    CoalescingBlockStorage(BlockStorage blockStorage) {
+        this.blockStorage = blockStorage;
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+        return readBlock(blockNumber, buffer, 0, buffer.length, 0);
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        Flight flight = new Flight(position, length);
+        Flight current = inFlight.putIfAbsent(blockNumber, flight);
+        if (current != null) {
+            if (current.position != position || current.length != length || !current.join()) {
+                return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+            }
+            return current.await(buffer, offset);
+        }
+
+        int bytesRead;
+        try {
+            bytesRead = blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+        } catch (IOException | RuntimeException | Error e) {
+            inFlight.remove(blockNumber, flight);
+            flight.fail(e);
+            throw e;
+        }
+        inFlight.remove(blockNumber, flight);
+        flight.complete(buffer, offset, bytesRead);
+        return bytesRead;
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer) throws IOException {
+        inFlight.remove(blockNumber);
+        try {
+            blockStorage.writeBlock(blockNumber, buffer);
+        } finally {
+            inFlight.remove(blockNumber);
+        }
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        inFlight.remove(blockNumber);
+        try {
+            blockStorage.writeBlock(blockNumber, buffer, offset, length, position);
+        } finally {
+            inFlight.remove(blockNumber);
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockStorage.getBlockSize();
+    }
+
+    @Override
+    public long getBlocksCount() {
+        return blockStorage.getBlocksCount();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        blockStorage.sync();
+    }
+
+    @Override
+    public void close() throws Exception {
+        blockStorage.close();
+    }
+
+    /**
+     * Storage read of a block range, shared by all its concurrent readers.
+     * Data is copied out of the reader's buffer only if other readers joined the read.
+     */
+    private static final class Flight {
+
+        private final long position;
+        private final int length;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+        private int waiters;
+        private boolean sealed;
+        private byte[] data;
+
+        private Flight(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+
+        /**
+         * Register a reader waiting for the result.
+         *
+         * @return {@code false} if the read is already finished and cannot be joined.
+         */
+        private synchronized boolean join() {
+            if (sealed) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        private void complete(byte[] buffer, int offset, int bytesRead) {
+            synchronized (this) {
+                sealed = true;
+                if (waiters > 0 && bytesRead > 0) {
+                    data = Arrays.copyOfRange(buffer, offset, offset + bytesRead);
+                }
+            }
+            result.complete(bytesRead);
+        }
+
+        private void fail(Throwable e) {
+            synchronized (this) {
+                sealed = true;
+            }
+            result.completeExceptionally(e);
+        }
+
+        private int await(byte[] buffer, int offset) throws IOException {
+            int bytesRead;
+            try {
+                bytesRead = result.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw new IOException("Coalesced block read failed", cause);
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+            if (bytesRead > 0) {
+                System.arraycopy(data, 0, buffer, offset, bytesRead);
+            }
+            return bytesRead;
+        }
+    }
+}
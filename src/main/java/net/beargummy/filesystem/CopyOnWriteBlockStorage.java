@@ -0,0 +1,333 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link BlockStorage} decorator, which preserves blocks seen by open snapshots before they are overwritten.
+ * <p>
+ * A snapshot sees metadata blocks and data blocks allocated when it was opened. The first write to such
+ * a block copies its old content to a free data block, which the snapshot reads instead from then on.
+ * Blocks allocated after the snapshot was opened are written in place.
+ * <p>
+ * Snapshot readers do not take locks: a reader of a block checks for its copy again after reading it
+ * in place, and a writer publishes the copy before it starts overwriting the block.
+ */
+class CopyOnWriteBlockStorage implements BlockStorage {
+
+    private final JournalingBlockStorage blockStorage;
+    private final DefaultFileSystem fs;
+    private final long dataNodesStartIndex;
+    private final List<Snapshot> snapshots = new CopyOnWriteArrayList<>();
+
+    CopyOnWriteBlockStorage(JournalingBlockStorage blockStorage, DefaultFileSystem fs, long dataNodesStartIndex) {
+        this.blockStorage = blockStorage;
+        this.fs = fs;
+        this.dataNodesStartIndex = dataNodesStartIndex;
+    }
+
+    /**
+     * Open snapshot of the current storage content.
+     * Caller should make sure no block is written meanwhile.
+     *
+     * @param allocatedDNodes data blocks in use, the snapshot keeps its own copy.
+     */
+    Snapshot openSnapshot(BitMap allocatedDNodes) {
+        Snapshot snapshot = new Snapshot(allocatedDNodes);
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Detach snapshot from the storage.
+     *
+     * @return data blocks holding copies preserved for the snapshot, which can be freed.
+     */
+    List<Long> closeSnapshot(Snapshot snapshot) {
+        snapshots.remove(snapshot);
+        return snapshot.detach();
+    }
+
+    List<Snapshot> getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Check whether an open snapshot still reads data block {@code dNode} in place,
+     * so it should not be reused until the snapshot is closed.
+     */
+    boolean isHeld(long dNode) {
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot.readsInPlace(dataNodesStartIndex + dNode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+        return blockStorage.readBlock(blockNumber, buffer);
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer) throws IOException {
+        preserve(blockNumber);
+        blockStorage.writeBlock(blockNumber, buffer);
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        preserve(blockNumber);
+        blockStorage.writeBlock(blockNumber, buffer, offset, length, position);
+    }
+
+    /**
+     * Copy block content for every open snapshot which still reads it in place.
+     * Concurrent writers of the same block wait until the copy is published.
+     */
+    private void preserve(long blockNumber) throws IOException {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        byte[] content = null;
+        for (Snapshot snapshot : snapshots) {
+            if (!snapshot.sees(blockNumber)) {
+                continue;
+            }
+            Copy copy = new Copy();
+            Copy current = snapshot.copies.putIfAbsent(blockNumber, copy);
+            if (current != null) {
+                current.await();
+                continue;
+            }
+
+            long copyBlockNumber = -1;
+            try {
+                if (content == null) {
+                    content = new byte[getBlockSize()];
+                    blockStorage.readBlock(blockNumber, content, 0, content.length, 0);
+                }
+                long dNode = fs.allocateDNode();
+                if (dNode < 0) {
+                    // writers are never blocked by snapshots, so the snapshot is given up instead
+                    snapshot.invalidate("Not enough free space to preserve snapshot blocks");
+                    continue;
+                }
+                try {
+                    // snapshot readers see the copy before the writer's transaction commits
+                    blockStorage.writeBlockInPlace(dataNodesStartIndex + dNode, content);
+                } catch (IOException | RuntimeException e) {
+                    fs.releaseDNodes(Collections.singletonList(dNode));
+                    throw e;
+                }
+                copyBlockNumber = dataNodesStartIndex + dNode;
+            } catch (IOException | RuntimeException e) {
+                snapshot.invalidate("Failed to preserve snapshot block: " + e.getMessage());
+                throw e;
+            } finally {
+                copy.complete(snapshot.publish(copyBlockNumber) ? copyBlockNumber : -1);
+            }
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockStorage.getBlockSize();
+    }
+
+    @Override
+    public long getBlocksCount() {
+        return blockStorage.getBlocksCount();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        blockStorage.sync();
+    }
+
+    @Override
+    public void close() throws Exception {
+        blockStorage.close();
+    }
+
+    /**
+     * Copy of a block preserved for a snapshot.
+     */
+    private static final class Copy {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long blockNumber = -1;
+
+        private void complete(long blockNumber) {
+            this.blockNumber = blockNumber;
+            done.countDown();
+        }
+
+        private boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        private void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for snapshot block copy");
+            }
+        }
+    }
+
+    /**
+     * Read-only view of the storage content at the moment the snapshot was opened.
+     */
+    class Snapshot implements BlockStorage {
+
+        private final BitMap allocatedDNodes;
+        private final ConcurrentMap<Long, Copy> copies = new ConcurrentHashMap<>();
+        private final Lock lock = new ReentrantLock();
+        private boolean closed;
+        private volatile String invalidReason;
+
+        private Snapshot(BitMap allocatedDNodes) {
+            this.allocatedDNodes = allocatedDNodes;
+        }
+
+        /**
+         * Check whether block is a metadata block, or a data block allocated when the snapshot was opened.
+         */
+        private boolean sees(long blockNumber) {
+            return invalidReason == null
+                    && (blockNumber < dataNodesStartIndex || allocatedDNodes.isAllocated(blockNumber - dataNodesStartIndex));
+        }
+
+        private boolean readsInPlace(long blockNumber) {
+            if (!sees(blockNumber)) {
+                return false;
+            }
+            Copy copy = copies.get(blockNumber);
+            return copy == null || copy.blockNumber < 0;
+        }
+
+        /**
+         * Publish copied block unless the snapshot is closed meanwhile, in which case the copy is freed.
+         */
+        private boolean publish(long copyBlockNumber) throws IOException {
+            if (copyBlockNumber < 0) {
+                return false;
+            }
+            lock.lock();
+            try {
+                if (!closed) {
+                    return true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            fs.releaseDNodes(Collections.singletonList(copyBlockNumber - dataNodesStartIndex));
+            return false;
+        }
+
+        private void invalidate(String reason) {
+            invalidReason = reason;
+        }
+
+        private List<Long> detach() {
+            List<Long> copied = new ArrayList<>();
+            lock.lock();
+            try {
+                if (closed) {
+                    return copied;
+                }
+                closed = true;
+                invalidReason = "Snapshot closed";
+                for (Copy copy : copies.values()) {
+                    if (copy.blockNumber >= 0) {
+                        copied.add(copy.blockNumber - dataNodesStartIndex);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return copied;
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+            return readBlock(blockNumber, buffer, 0, buffer.length, 0);
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+            assertValid();
+            Copy copy = copies.get(blockNumber);
+            if (copy == null || !copy.isDone()) {
+                int bytesRead = blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+                // block is overwritten only after its copy is published
+                copy = copies.get(blockNumber);
+                if (copy == null || !copy.isDone()) {
+                    assertValid();
+                    return bytesRead;
+                }
+            }
+            long copyBlockNumber = copy.blockNumber;
+            int bytesRead = blockStorage.readBlock(copyBlockNumber < 0 ? blockNumber : copyBlockNumber, buffer, offset, length, position);
+            assertValid();
+            return bytesRead;
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer) {
+            throw new IllegalStateException("Snapshot is read-only");
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) {
+            throw new IllegalStateException("Snapshot is read-only");
+        }
+
+        @Override
+        public void sync() {
+            // nothing is ever written through a snapshot
+        }
+
+        @Override
+        public int getBlockSize() {
+            return blockStorage.getBlockSize();
+        }
+
+        @Override
+        public long getBlocksCount() {
+            return blockStorage.getBlocksCount();
+        }
+
+        /**
+         * Closes the snapshot, freeing preserved copies and blocks it kept from reuse.
+         */
+        @Override
+        public void close() throws IOException {
+            fs.closeSnapshot(this);
+        }
+
+        private void assertValid() throws IOException {
+            String reason = invalidReason;
+            if (reason != null) {
+                throw new IOException(reason);
+            }
+        }
+    }
+}
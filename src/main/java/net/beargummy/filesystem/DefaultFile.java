@@ -1,6 +1,8 @@
 package net.beargummy.filesystem;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 class DefaultFile implements File {
@@ -41,13 +43,30 @@ class DefaultFile implements File {
         assertPositiveOffset(offset);
         assertPositivePosition(position);
 
-        if (iNode.getDataBlocksCount() == 0) {
+        if (position >= getFileSize()) {
             return 0;
         }
+        return fs.readINodeData(iNode, buffer, offset, length, position);
+    }
+
+    @Override
+    public int readParallel(byte[] buffer, int offset, int length, long position) throws IOException {
+        return readParallel(buffer, offset, length, position, FileSystemExecutor.defaultExecutor());
+    }
+
+    @Override
+    public int readParallel(byte[] buffer, int offset, int length, long position, Executor executor) throws IOException {
+        assertNotClosed();
+        assertBufferNonNull(buffer);
+        assertPositiveOffset(offset);
+        assertPositivePosition(position);
+        if (executor == null)
+            throw new NullPointerException("Executor is null");
+
         if (position >= getFileSize()) {
             return 0;
         }
-        return fs.readINodeData(iNode, buffer, offset, length, position);
+        return fs.readINodeData(iNode, buffer, offset, length, position, executor);
     }
 
     @Override
@@ -62,7 +81,7 @@ class DefaultFile implements File {
         assertBufferNonNull(buffer);
         assertPositiveOffset(offset);
         assertValidLength(buffer, offset, length);
-        assertValidPosition(position, iNode);
+        assertPositivePosition(position);
 
         return fs.writeINodeData(iNode, buffer, offset, length, position);
     }
@@ -80,7 +99,41 @@ class DefaultFile implements File {
         assertPositiveOffset(offset);
         assertValidLength(buffer, offset, length);
 
-        return fs.writeINodeData(iNode, buffer, offset, length, iNode.getSize());
+        return fs.appendINodeData(iNode, buffer, offset, length);
+    }
+
+    @Override
+    public InputStream follow(long position) {
+        assertNotClosed();
+        assertPositivePosition(position);
+
+        return new FollowInputStream(fs, this, iNode, position);
+    }
+
+    @Override
+    public void preallocate(long size) throws IOException {
+        assertNotClosed();
+        assertPositiveSize(size);
+
+        fs.preallocateINodeData(iNode, size);
+    }
+
+    @Override
+    public void truncate(long size) throws IOException {
+        assertNotClosed();
+        assertPositiveSize(size);
+
+        fs.truncateINodeData(iNode, size);
+    }
+
+    @Override
+    public RangeLock lock(long position, long length, boolean shared) throws IOException {
+        assertNotClosed();
+        assertPositivePosition(position);
+        if (length <= 0)
+            throw new IllegalArgumentException("Length should be strictly positive number");
+
+        return fs.lockINodeRange(iNode, position, length, shared);
     }
 
     private void assertPositiveOffset(int offset) {
@@ -93,6 +146,11 @@ class DefaultFile implements File {
             throw new IllegalArgumentException("Position cannot be negative");
     }
 
+    private void assertPositiveSize(long size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Size cannot be negative");
+    }
+
     private void assertBufferNonNull(byte[] buffer) {
         if (buffer == null)
             throw new NullPointerException("Buffer is null");
@@ -105,11 +163,6 @@ class DefaultFile implements File {
             throw new IllegalArgumentException("Length should not be greater than buffer size plus offset");
     }
 
-    private void assertValidPosition(long position, INode iNode) {
-        if (position > iNode.getSize() + 1)
-            throw new IllegalArgumentException("Position should be less or equal to file size");
-    }
-
     private void assertNotClosed() {
         if (closed.get())
             throw new IllegalStateException("File closed");
@@ -118,11 +171,30 @@ class DefaultFile implements File {
     @Override
     public long getFileSize() throws IOException {
         assertNotClosed();
-        return fs.readINode(iNode.getINodeNumber()).getSize();
+        return fs.getINodeSize(iNode);
+    }
+
+    @Override
+    public long getAllocatedSize() throws IOException {
+        assertNotClosed();
+        return fs.getINodeAllocatedSize(iNode);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        assertNotClosed();
+        fs.syncINode(iNode);
+    }
+
+    boolean isClosed() {
+        return closed.get();
     }
 
     @Override
     public void close() {
-        closed.compareAndSet(false, true);
+        if (closed.compareAndSet(false, true)) {
+            // followers of this handle stop waiting for data
+            iNode.signalSizeWaiters();
+        }
     }
 }
@@ -1,15 +1,58 @@
 package net.beargummy.filesystem;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * Default {@link FileSystem} implementation.
+ * <p>
+ * Concurrency control is split between independent locks:
+ * <ul>
+ * <li>namespace lock guards directory structure: creating, deleting and moving entries
+ * takes write lock, path resolution and listing run as optimistic reads validated afterwards,
+ * falling back to read lock if the namespace changed meanwhile;</li>
+ * <li>striped per-iNode locks guard file data and block maps,
+ * so operations on different files do not block each other,
+ * file size is read optimistically as well;</li>
+ * <li>allocator lock guards bitmaps.</li>
+ * </ul>
+ * Namespace and iNode locks are {@link StampedLock stamped locks}, so optimistic readers
+ * never write to a shared lock word. They are not reentrant.
+ * Locks are always acquired in this order: namespace lock, then at most one iNode lock
+ * (or all of them in ascending order on close), then allocator lock.
+ * All iNodes in use are kept in an in-memory iNode table, so every {@link File} and
+ * {@link Directory} instance of the same file shares one {@link INode} instance.
+ * <p>
+ * {@link SuperBlock Superblock} records the layout and whether the file system was closed cleanly,
+ * in which case restore skips journal replay. Bitmaps are read on first allocation rather than on restore.
+ * <p>
+ * Superblock keeps the table of {@link NamedSnapshot named snapshots} too. Data blocks shared with them
+ * are copied on write: a write of a shared block goes to its copy, which the file replaces the block with.
+ */
 class DefaultFileSystem implements FileSystem {
 
     private static final long SUPER_BLOCK_NUMBER = 0;
@@ -17,17 +60,47 @@ class DefaultFileSystem implements FileSystem {
     private static final long DATA_NODE_BIT_MAP_BLOCK_NUMBER = 2;
     private static final long ALWAYS_OCCUPIED_BLOCKS = 3;
 
+    // journal takes one block of every JOURNAL_BLOCKS_RATIO, but at least MIN_JOURNAL_BLOCKS, so a transaction
+    // has room for every step of an operation; storages of less than MIN_JOURNALED_BLOCKS_COUNT blocks have none,
+    // as such journal would take too much of them, and write everything in place
+    private static final long JOURNAL_BLOCKS_RATIO = 64;
+    private static final long MIN_JOURNAL_BLOCKS = 64;
+    private static final long MAX_JOURNAL_BLOCKS = 1024;
+    static final long MIN_JOURNALED_BLOCKS_COUNT = 1024;
+
     private static final String DEFAULT_PATH_SEPARATOR = "/";
 
-    private final ReadWriteLock lock;
+    private final StampedLock namespaceLock;
+    private final StripedLock iNodeLocks;
+    private final Lock allocatorLock;
 
     private final long numINodes;
     private final long numDNodes;
+    private final long dataNodesStartIndex;
+
+    private final int blocksPerInodeRatio;
+    private final boolean readOnly;
 
     private final BlockStorage blockStorage;
+    private final SyncingBlockStorage syncingStorage;
+    private final JournalingBlockStorage journal;
+    // null for read-only file system
+    private final CopyOnWriteBlockStorage copyOnWriteStorage;
+    // data blocks freed while open snapshots still read them
+    private final Set<Long> deferredDNodes = new HashSet<>();
+    // changed under allocator lock
+    private final List<NamedSnapshot> namedSnapshots = new CopyOnWriteArrayList<>();
+    // layout computed from the storage geometry, the superblock of a file system in use has to match it
+    private final SuperBlock layout;
+    // null until the file system is initialized or restored
+    private SuperBlock superBlock;
+    // union of data blocks named snapshots share with the file system, null if there are none,
+    // replaced only while all iNode locks are held, so a writer holding one sees a stable value
+    private volatile BitMap sharedDNodes;
 
     private final PersistenceManager persistenceManager;
 
+    // read on first use under allocator lock, so restore does not wait for them
     private BitMap indexNodeBitMap;
     private BitMap dataNodeBitMap;
 
@@ -35,6 +108,10 @@ class DefaultFileSystem implements FileSystem {
 
     private Directory rootDirectory;
 
+    private final DentryCache dentryCache;
+
+    private final ConcurrentMap<Long, INode> iNodes;
+
     private AtomicBoolean closed;
 
     DefaultFileSystem(BlockStorage blockStorage) {
@@ -46,58 +123,166 @@ class DefaultFileSystem implements FileSystem {
     }
 
     DefaultFileSystem(int blocksPerInodeRatio, String pathSeparator, BlockStorage blockStorage) {
+        this(blocksPerInodeRatio, pathSeparator, blockStorage, Durability.none(), false);
+    }
+
+    DefaultFileSystem(int blocksPerInodeRatio, BlockStorage blockStorage, Durability durability) {
+        this(blocksPerInodeRatio, DEFAULT_PATH_SEPARATOR, blockStorage, durability, false);
+    }
+
+    /**
+     * @param durability policy of forcing written blocks to the storage device.
+     * @param readOnly   {@code true} for a file system which rejects any modification, such as a snapshot view.
+     */
+    DefaultFileSystem(int blocksPerInodeRatio, String pathSeparator, BlockStorage blockStorage,
+                      Durability durability, boolean readOnly) {
         this.numINodes = blockStorage.getBlocksCount() / blocksPerInodeRatio;
 
-        long iNodesStartIndex = ALWAYS_OCCUPIED_BLOCKS;
+        long journalStartIndex = ALWAYS_OCCUPIED_BLOCKS;
+        long journalBlocks = journalBlocks(blockStorage.getBlocksCount());
+
+        long iNodesStartIndex = journalStartIndex + journalBlocks;
         long iNodeBlocks = (long) Math.ceil((double) numINodes * INode.SIZE / blockStorage.getBlockSize());
 
-        long dataNodesStartIndex = iNodesStartIndex + iNodeBlocks;
+        this.dataNodesStartIndex = iNodesStartIndex + iNodeBlocks;
         this.numDNodes = blockStorage.getBlocksCount() - dataNodesStartIndex;
 
-        this.blockStorage = blockStorage;
+        this.blocksPerInodeRatio = blocksPerInodeRatio;
+        this.readOnly = readOnly;
+        this.layout = new SuperBlock(blockStorage.getBlockSize(), blockStorage.getBlocksCount(), blocksPerInodeRatio,
+                journalStartIndex, journalBlocks, iNodesStartIndex, dataNodesStartIndex);
+        // snapshot views share the layout, but never write
+        this.syncingStorage = new SyncingBlockStorage(blockStorage, durability);
+        this.journal = new JournalingBlockStorage(syncingStorage, journalStartIndex, readOnly ? 0 : journalBlocks,
+                dataNodesStartIndex, FileSystemExecutor.defaultExecutor());
+        this.copyOnWriteStorage = readOnly ? null : new CopyOnWriteBlockStorage(journal, this, dataNodesStartIndex);
+        this.blockStorage = readOnly ? journal : copyOnWriteStorage;
         this.pathSeparator = pathSeparator;
 
-        this.lock = new ReentrantReadWriteLock();
+        this.namespaceLock = new StampedLock();
+        this.iNodeLocks = new StripedLock();
+        this.allocatorLock = new ReentrantLock();
+        this.iNodes = new ConcurrentHashMap<>();
+        this.dentryCache = new DentryCache();
 
-        this.persistenceManager = new PersistenceManager(blockStorage, this, iNodesStartIndex, dataNodesStartIndex);
+        this.persistenceManager = new PersistenceManager(this.blockStorage, this, iNodesStartIndex, dataNodesStartIndex);
         this.closed = new AtomicBoolean(false);
     }
 
+    private static long journalBlocks(long blocksCount) {
+        if (blocksCount < MIN_JOURNALED_BLOCKS_COUNT) {
+            return 0;
+        }
+        return Math.max(Math.min(blocksCount / JOURNAL_BLOCKS_RATIO, MAX_JOURNAL_BLOCKS), MIN_JOURNAL_BLOCKS);
+    }
+
+    /**
+     * Check whether changes go through the journal. Storages of less than {@link #MIN_JOURNALED_BLOCKS_COUNT} blocks
+     * have none, so a crash may leave their metadata inconsistent.
+     */
+    boolean isJournaled() {
+        return journal.isEnabled();
+    }
+
     void initFileSystem() throws IOException {
         assertNotClosed();
-        lock.writeLock().lock();
+        namespaceLock.asWriteLock().lock();
         try {
+            journal.format();
+            // a crash while the file system is initialized leaves nothing to recover, so the superblock is not forced
+            superBlock = layout;
+            writeSuperBlockInPlace();
+
             indexNodeBitMap = new BitMap(numINodes);
             long rootINodeNumber = indexNodeBitMap.allocate();
-            writeBitMap(indexNodeBitMap, I_NODE_BIT_MAP_BLOCK_NUMBER);
+            writeBitMap(I_NODE_BIT_MAP_BLOCK_NUMBER);
 
             dataNodeBitMap = new BitMap(numDNodes);
             long rootDNodeNumber = dataNodeBitMap.allocate();
-            writeBitMap(dataNodeBitMap, DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+            writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
 
             rootDirectory = new Directory(this, rootINodeNumber, rootDNodeNumber);
+            iNodes.put(rootINodeNumber, rootDirectory.getINode());
+            rootDirectory.init();
             persistenceManager.writeINode(rootDirectory.getINode());
         } finally {
-            lock.writeLock().unlock();
+            namespaceLock.asWriteLock().unlock();
         }
     }
 
     void restoreFileSystem() throws IOException {
         assertNotClosed();
-        lock.readLock().lock();
+        namespaceLock.asWriteLock().lock();
         try {
-            indexNodeBitMap = persistenceManager.readBitMap(I_NODE_BIT_MAP_BLOCK_NUMBER);
-            dataNodeBitMap = persistenceManager.readBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+            // a snapshot view shares the superblock of the file system, which snapshots belong to
+            superBlock = readOnly ? layout : mountSuperBlock();
 
-            rootDirectory = new Directory(this, persistenceManager.readINode(0));
+            List<SnapshotTable.Entry> entries = superBlock.getSnapshotTable().getEntries();
+            if (!entries.isEmpty()) {
+                allocatorLock.lock();
+                try {
+                    for (SnapshotTable.Entry entry : entries) {
+                        namedSnapshots.add(NamedSnapshot.load(this, entry, dataNodeBitMap(), dataNodesStartIndex));
+                    }
+                } finally {
+                    allocatorLock.unlock();
+                }
+            }
+            updateSharedDNodes();
+
+            rootDirectory = new Directory(this, readINode(0));
         } finally {
-            lock.readLock().unlock();
+            namespaceLock.asWriteLock().unlock();
+        }
+        int rollbackSnapshot = superBlock.getRollbackSnapshot();
+        if (rollbackSnapshot >= 0) {
+            // metadata is partly rolled back, so the rollback is completed before anything reads it
+            rollbackToSnapshot(namedSnapshots.get(rollbackSnapshot).getName());
         }
     }
 
+    /**
+     * Read the superblock in place and replay the journal, unless the file system was closed cleanly.
+     * Then mark the file system in use, forcing the mark to the device before anything else is written.
+     *
+     * @throws IOException              if the storage holds no superblock, as it was never initialized
+     *                                  or predates superblocks, or an I/O error occurs.
+     * @throws IllegalArgumentException if the storage geometry does not match the superblock.
+     */
+    private SuperBlock mountSuperBlock() throws IOException {
+        SuperBlock stored = persistenceManager.readSuperBlock(syncingStorage, SUPER_BLOCK_NUMBER);
+        // nothing is written to such a storage: its layout is unknown, and the journal region may hold its iNodes
+        if (stored == null) {
+            throw new IOException("Storage does not hold a supported file system image");
+        }
+        if (!stored.hasLayoutOf(layout)) {
+            throw new IllegalArgumentException("Storage geometry does not match the superblock: " + stored);
+        }
+        if (stored.isClean()) {
+            journal.resume();
+        } else {
+            journal.recover();
+            // replay may have written the superblock
+            stored = persistenceManager.readSuperBlock(syncingStorage, SUPER_BLOCK_NUMBER);
+        }
+        superBlock = stored;
+        writeSuperBlockInPlace();
+        syncingStorage.sync();
+        return stored;
+    }
+
+    /**
+     * Write the superblock bypassing the journal, as it is read in place before the journal is replayed.
+     * Journal should hold no image of the superblock, such as right after the journal is replayed or flushed.
+     */
+    private void writeSuperBlockInPlace() throws IOException {
+        persistenceManager.writeSuperBlock(syncingStorage, superBlock, SUPER_BLOCK_NUMBER);
+    }
+
     @Override
     public File createFile(String name) throws IOException {
-        return runWithLock(lock.writeLock(), () -> {
+        assertWritable();
+        return runInTransaction(namespaceLock.asWriteLock(), true, () -> {
             assertValidFileName(name);
             List<String> pathParts = parsePath(name);
             String fileName = pathParts.remove(pathParts.size() - 1);
@@ -105,20 +290,130 @@ class DefaultFileSystem implements FileSystem {
             Directory current = rootDirectory;
             current = mkdirs(current, pathParts);
 
-            if (current.containsFile(fileName)) {
+            if (lookup(current, fileName) != -1) {
                 throw new IllegalArgumentException("File name already created: " + name);
             }
 
-            long indexNodeNumber = indexNodeBitMap.allocate();
-            writeBitMap(indexNodeBitMap, I_NODE_BIT_MAP_BLOCK_NUMBER);
+            long indexNodeNumber = allocateINodeNumber();
             INode fileINode = new INode(this, indexNodeNumber, FileType.FILE, 0L, Collections.emptyList());
+            iNodes.put(indexNodeNumber, fileINode);
             persistenceManager.writeINode(fileINode);
-            current.addFile(fileName, fileINode);
+            addFile(current, fileName, fileINode);
+            writeBitMaps();
 
             return new DefaultFile(this, fileName, fileINode);
         });
     }
 
+    @Override
+    public List<BatchResult<File>> createFiles(Collection<String> names) throws IOException {
+        assertWritable();
+        if (names == null) {
+            throw new NullPointerException("File names are null");
+        }
+        return runInTransaction(namespaceLock.asWriteLock(), true, () -> {
+            List<String> nameList = new ArrayList<>(names);
+            List<BatchResult<File>> results = new ArrayList<>(Collections.nCopies(nameList.size(), null));
+            int chunkSize = batchChunkSize(nameList.size());
+            for (int from = 0; from < nameList.size(); from += chunkSize) {
+                if (isTransactionLarge()) {
+                    journal.restart();
+                }
+                createFiles(nameList, from, Math.min(from + chunkSize, nameList.size()), results);
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Create files with names in {@code [from, to)} range of the batch, setting their results.
+     */
+    private void createFiles(List<String> nameList, int from, int to, List<BatchResult<File>> results) throws IOException {
+        // parent directories go first, so files are checked against them too
+        Directory[] parents = new Directory[to - from];
+        for (int i = from; i < to; i++) {
+            String name = nameList.get(i);
+            try {
+                assertValidFileName(name);
+                List<String> pathParts = parsePath(name);
+                parents[i - from] = mkdirs(rootDirectory, pathParts.subList(0, pathParts.size() - 1));
+            } catch (RuntimeException | IOException e) {
+                results.set(i, BatchResult.failure(name, e));
+            }
+        }
+
+        Map<Long, PendingEntries> byDirectory = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            if (parents[i - from] == null) {
+                continue;
+            }
+            String name = nameList.get(i);
+            List<String> pathParts = parsePath(name);
+            String fileName = pathParts.get(pathParts.size() - 1);
+            try {
+                PendingEntries pending = pendingEntries(byDirectory, parents[i - from].getINode().getINodeNumber());
+                if (lookup(pending.directory, fileName) != -1 || pending.entries.containsKey(fileName)) {
+                    throw new IllegalArgumentException("File name already created: " + name);
+                }
+
+                long indexNodeNumber = allocateINodeNumber();
+                if (indexNodeNumber == -1) {
+                    throw new IOException("No free iNodes to create file: " + name);
+                }
+                INode fileINode = new INode(this, indexNodeNumber, FileType.FILE, 0L, Collections.emptyList());
+                try {
+                    pending.entries.put(fileName, new PendingEntry(i, fileINode, pending.directory.newRecord(fileName, fileINode)));
+                } catch (IllegalArgumentException e) {
+                    freeINodeNumber(indexNodeNumber);
+                    throw e;
+                }
+            } catch (RuntimeException | IOException e) {
+                results.set(i, BatchResult.failure(name, e));
+            }
+        }
+
+        for (PendingEntries pending : byDirectory.values()) {
+            for (PendingEntry entry : pending.entries.values()) {
+                iNodes.put(entry.iNode.getINodeNumber(), entry.iNode);
+                persistenceManager.writeINode(entry.iNode);
+            }
+            List<DirectoryRecord> records = new ArrayList<>();
+            pending.entries.values().forEach(entry -> records.add(entry.record));
+            long parent = pending.directory.getINode().getINodeNumber();
+            pending.entries.keySet().forEach(fileName -> dentryCache.invalidate(parent, fileName));
+            Exception error = null;
+            try {
+                pending.directory.addFiles(records);
+            } catch (RuntimeException | IOException e) {
+                error = e;
+            }
+            for (Map.Entry<String, PendingEntry> entry : pending.entries.entrySet()) {
+                String fileName = entry.getKey();
+                INode fileINode = entry.getValue().iNode;
+                String name = nameList.get(entry.getValue().index);
+                // on failure some records may have been added already
+                if (error == null || pending.directory.getFileINodeNumber(fileName) == fileINode.getINodeNumber()) {
+                    dentryCache.put(parent, fileName, fileINode.getINodeNumber());
+                    results.set(entry.getValue().index, BatchResult.success(name, new DefaultFile(this, fileName, fileINode)));
+                } else {
+                    freeINodeNumber(fileINode.getINodeNumber());
+                    results.set(entry.getValue().index, BatchResult.failure(name, error));
+                }
+            }
+        }
+        writeBitMaps();
+    }
+
+    /**
+     * Amount of files a batch operation handles in one part: a file takes at most 8 blocks, such as its iNode block,
+     * a directory bucket with a split, a block of the directory's block map and their copies, so a part takes
+     * at most half of what a transaction may write. Without a journal a batch is handled at once.
+     */
+    private int batchChunkSize(int batchSize) {
+        int capacity = journal.getTransactionCapacity();
+        return capacity > 0 ? Math.max(capacity / 16, 1) : Math.max(batchSize, 1);
+    }
+
     private List<String> parsePath(String name) {
         List<String> pathParts = new ArrayList<>(Arrays.asList(name.split(pathSeparator)));
         if (name.startsWith("/")) {
@@ -129,40 +424,48 @@ class DefaultFileSystem implements FileSystem {
 
     private Directory mkdirs(Directory parent, List<String> dirs) throws IOException {
         Directory current = parent;
+        boolean created = false;
         for (String directoryName : dirs) {
-            long dirINode = current.getFileINodeNumber(directoryName);
-            INode directoryINode;
+            long dirINode = lookup(current, directoryName);
             if (dirINode == -1) {
-                long iNodeNumber = indexNodeBitMap.allocate();
-                long dNodeNumber = dataNodeBitMap.allocate();
-                directoryINode = new INode(this, iNodeNumber, FileType.DIRECTORY, getBlockSize(), Collections.singletonList(dNodeNumber));
-                persistenceManager.writeINode(directoryINode);
-                current.addFile(directoryName, directoryINode);
+                long iNodeNumber = allocateINodeNumber();
+                INode directoryINode = new INode(this, iNodeNumber, FileType.DIRECTORY, 0L, Collections.emptyList());
+                iNodes.put(iNodeNumber, directoryINode);
+                Directory directory = new Directory(this, directoryINode);
+                directory.init();
+                addFile(current, directoryName, directoryINode);
+                current = directory;
+                created = true;
+                // a deep path commits directories created so far, so the transaction fits into the journal
+                if (isTransactionLarge()) {
+                    writeBitMaps();
+                    journal.restart();
+                    created = false;
+                }
             } else {
-                directoryINode = persistenceManager.readINode(dirINode);
+                current = new Directory(this, readINode(dirINode));
             }
-
-            current = new Directory(this, directoryINode);
         }
-        writeBitMap(indexNodeBitMap, I_NODE_BIT_MAP_BLOCK_NUMBER);
-        writeBitMap(dataNodeBitMap, DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+        if (created) {
+            writeBitMaps();
+        }
         return current;
     }
 
     @Override
     public File openFile(String name) throws IOException {
-        return runWithLock(lock.readLock(), () -> {
-            assertValidFileName(name);
+        assertValidFileName(name);
+        return readNamespace(locked -> {
             List<String> pathParts = parsePath(name);
             String fileName = pathParts.remove(pathParts.size() - 1);
 
-            Directory current = getLastDirectory(pathParts);
-            long fileINodeNumber = current.getFileINodeNumber(fileName);
+            Directory current = getLastDirectory(pathParts, locked);
+            long fileINodeNumber = lookup(current, fileName, locked);
             if (fileINodeNumber == -1) {
                 throw new FileNotFoundException("File does not exist: " + name);
             }
 
-            INode fileINode = persistenceManager.readINode(fileINodeNumber);
+            INode fileINode = readINode(fileINodeNumber);
             if (fileINode.getType() == FileType.DIRECTORY) {
                 throw new IllegalArgumentException("File is a directory: " + name);
             }
@@ -171,32 +474,54 @@ class DefaultFileSystem implements FileSystem {
     }
 
     private Directory getLastDirectory(List<String> pathParts) throws IOException {
+        return getLastDirectory(pathParts, true);
+    }
+
+    private Directory getLastDirectory(List<String> pathParts, boolean locked) throws IOException {
         Directory current = rootDirectory;
         for (String directoryName : pathParts) {
-            long directoryINodeNumber = current.getFileINodeNumber(directoryName);
+            long directoryINodeNumber = lookup(current, directoryName, locked);
             if (directoryINodeNumber == -1) {
                 throw new FileNotFoundException("File does not exist: " + directoryName);
             }
-            INode directoryINode = persistenceManager.readINode(directoryINodeNumber);
+            INode directoryINode = readINode(directoryINodeNumber);
             current = new Directory(this, directoryINode);
         }
         return current;
     }
 
+    /**
+     * Resolve directory without creating missing ones.
+     *
+     * @return directory, or {@code null} if any of path parts does not exist.
+     */
+    private Directory findLastDirectory(List<String> pathParts) throws IOException {
+        Directory current = rootDirectory;
+        for (String directoryName : pathParts) {
+            long directoryINodeNumber = lookup(current, directoryName);
+            if (directoryINodeNumber == -1) {
+                return null;
+            }
+            current = new Directory(this, readINode(directoryINodeNumber));
+        }
+        return current;
+    }
+
     @Override
     public void deleteFile(String name) throws IOException {
-        runWithLock(lock.writeLock(), () -> {
+        assertWritable();
+        runInTransaction(namespaceLock.asWriteLock(), true, () -> {
             assertValidFileName(name);
             List<String> pathParts = parsePath(name);
             String fileName = pathParts.remove(pathParts.size() - 1);
 
             Directory current = getLastDirectory(pathParts);
 
-            long fileINodeNumber = current.getFileINodeNumber(fileName);
+            long fileINodeNumber = lookup(current, fileName);
             if (fileINodeNumber == -1) {
                 throw new FileNotFoundException("File does not exist: " + name);
             }
-            INode fileINode = persistenceManager.readINode(fileINodeNumber);
+            INode fileINode = readINode(fileINodeNumber);
 
             if (fileINode.getType() == FileType.DIRECTORY) {
                 Directory directory = new Directory(this, fileINode);
@@ -205,18 +530,328 @@ class DefaultFileSystem implements FileSystem {
                 }
             }
 
-            for (int dataBlockIndex = 0; dataBlockIndex < fileINode.getDataBlocksCount(); dataBlockIndex++) {
-                dataNodeBitMap.free(fileINode.getBlockByIndex(dataBlockIndex));
+            freeBlocks(fileINode);
+            writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+
+            freeINodeNumber(fileINodeNumber);
+            writeBitMap(I_NODE_BIT_MAP_BLOCK_NUMBER);
+
+            deleteFile(current, fileName);
+        });
+    }
+
+    @Override
+    public void deleteRecursively(String name) throws IOException {
+        assertWritable();
+        runInTransaction(namespaceLock.asWriteLock(), true, () -> {
+            if (pathSeparator.equals(name)) {
+                throw new IllegalArgumentException("Cannot delete root directory");
             }
-            writeBitMap(dataNodeBitMap, DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+            assertValidFileName(name);
+            List<String> pathParts = parsePath(name);
+            String fileName = pathParts.remove(pathParts.size() - 1);
 
-            indexNodeBitMap.free(fileINodeNumber);
-            writeBitMap(indexNodeBitMap, I_NODE_BIT_MAP_BLOCK_NUMBER);
+            Directory current = getLastDirectory(pathParts);
+            long fileINodeNumber = lookup(current, fileName);
+            if (fileINodeNumber == -1) {
+                throw new FileNotFoundException("File does not exist: " + name);
+            }
 
-            current.deleteFile(fileName);
+            Set<Long> deletedDirectories = new HashSet<>();
+            Deque<Long> pending = new ArrayDeque<>();
+            pending.push(fileINodeNumber);
+            while (!pending.isEmpty()) {
+                INode iNode = readINode(pending.pop());
+                if (iNode.getType() == FileType.DIRECTORY) {
+                    deletedDirectories.add(iNode.getINodeNumber());
+                    try {
+                        new Directory(this, iNode).iterator(0, true)
+                                .forEachRemaining(entry -> pending.push(entry.getINodeNumber()));
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                }
+                // only bitmaps are changed, freed blocks are not rewritten
+                freeBlocks(iNode);
+                freeINodeNumber(iNode.getINodeNumber());
+            }
+
+            deleteFile(current, fileName);
+            dentryCache.invalidateParents(deletedDirectories);
+            writeBitMaps();
         });
     }
 
+    @Override
+    public void rename(String from, String to) throws IOException {
+        assertWritable();
+        runInTransaction(namespaceLock.asWriteLock(), true, () -> {
+            assertValidFileName(from);
+            assertValidFileName(to);
+            List<String> fromParts = parsePath(from);
+            List<String> toParts = parsePath(to);
+            String fromName = fromParts.remove(fromParts.size() - 1);
+            String toName = toParts.remove(toParts.size() - 1);
+
+            long fileINodeNumber = lookup(getLastDirectory(fromParts), fromName);
+            if (fileINodeNumber == -1) {
+                throw new FileNotFoundException("File does not exist: " + from);
+            }
+            INode fileINode = readINode(fileINodeNumber);
+            if (fileINode.getType() == FileType.DIRECTORY && isSubPath(toParts, fromParts, fromName)) {
+                throw new IllegalArgumentException("Cannot move directory into itself: " + from + " -> " + to);
+            }
+
+            // target is checked before any directory is created, so a failed rename changes nothing
+            Directory existingTarget = findLastDirectory(toParts);
+            long replacedINodeNumber = existingTarget == null ? -1 : lookup(existingTarget, toName);
+            if (replacedINodeNumber == fileINodeNumber) {
+                return;
+            }
+            INode replacedINode = null;
+            if (replacedINodeNumber != -1) {
+                replacedINode = readINode(replacedINodeNumber);
+                if (replacedINode.getType() == FileType.DIRECTORY || fileINode.getType() == FileType.DIRECTORY) {
+                    throw new FileAlreadyExists("File already exists: " + to);
+                }
+            }
+
+            Directory target = mkdirs(rootDirectory, toParts);
+            // mkdirs may have changed source directory, so resolve it again
+            Directory source = getLastDirectory(fromParts);
+            if (source.getINode().getINodeNumber() == target.getINode().getINodeNumber()) {
+                source = target;
+            }
+            if (replacedINode != null) {
+                // replaced file is freed in the same transaction, so the name always refers to one of the files
+                deleteFile(target, toName);
+                freeBlocks(replacedINode);
+                freeINodeNumber(replacedINodeNumber);
+            }
+
+            // add first, so the file is never lost even if removal fails
+            addFile(target, toName, fileINode);
+            deleteFile(source, fromName);
+            writeBitMaps();
+        });
+    }
+
+    private static boolean isSubPath(List<String> parentParts, List<String> directoryParts, String directoryName) {
+        if (parentParts.size() <= directoryParts.size()) {
+            return false;
+        }
+        return parentParts.subList(0, directoryParts.size()).equals(directoryParts)
+                && parentParts.get(directoryParts.size()).equals(directoryName);
+    }
+
+    @Override
+    public List<BatchResult<Void>> deleteFiles(Collection<String> names) throws IOException {
+        assertWritable();
+        if (names == null) {
+            throw new NullPointerException("File names are null");
+        }
+        return runInTransaction(namespaceLock.asWriteLock(), true, () -> {
+            List<String> nameList = new ArrayList<>(names);
+            List<BatchResult<Void>> results = new ArrayList<>(Collections.nCopies(nameList.size(), null));
+            int chunkSize = batchChunkSize(nameList.size());
+            for (int from = 0; from < nameList.size(); from += chunkSize) {
+                if (isTransactionLarge()) {
+                    journal.restart();
+                }
+                deleteFiles(nameList, from, Math.min(from + chunkSize, nameList.size()), results);
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Delete files with names in {@code [from, to)} range of the batch, setting their results.
+     */
+    private void deleteFiles(List<String> nameList, int from, int to, List<BatchResult<Void>> results) throws IOException {
+        Map<Long, PendingEntries> byDirectory = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            String name = nameList.get(i);
+            try {
+                assertValidFileName(name);
+                List<String> pathParts = parsePath(name);
+                String fileName = pathParts.remove(pathParts.size() - 1);
+
+                PendingEntries pending = pendingEntries(byDirectory, getLastDirectory(pathParts).getINode().getINodeNumber());
+                long fileINodeNumber = lookup(pending.directory, fileName);
+                if (fileINodeNumber == -1 || pending.entries.containsKey(fileName)) {
+                    throw new FileNotFoundException("File does not exist: " + name);
+                }
+                INode fileINode = readINode(fileINodeNumber);
+
+                if (fileINode.getType() == FileType.DIRECTORY) {
+                    // content deleted earlier in this batch should be gone before emptiness check
+                    PendingEntries content = byDirectory.remove(fileINodeNumber);
+                    if (content != null) {
+                        flushDeletes(content, nameList, results);
+                    }
+                    Directory directory = new Directory(this, fileINode);
+                    if (!directory.isEmpty()) {
+                        throw new IllegalArgumentException("File is not empty directory: " + name);
+                    }
+                }
+                pending.entries.put(fileName, new PendingEntry(i, fileINode, null));
+            } catch (RuntimeException | IOException e) {
+                results.set(i, BatchResult.failure(name, e));
+            }
+        }
+
+        for (PendingEntries pending : byDirectory.values()) {
+            flushDeletes(pending, nameList, results);
+        }
+        writeBitMaps();
+    }
+
+    /**
+     * Remove pending entries from their directory, then free their blocks and iNodes.
+     */
+    private void flushDeletes(PendingEntries pending, List<String> nameList, List<BatchResult<Void>> results) throws IOException {
+        if (pending.entries.isEmpty()) {
+            return;
+        }
+        long parent = pending.directory.getINode().getINodeNumber();
+        pending.entries.keySet().forEach(fileName -> dentryCache.invalidate(parent, fileName));
+        Exception error = null;
+        try {
+            pending.directory.deleteFiles(pending.entries.keySet());
+        } catch (RuntimeException | IOException e) {
+            error = e;
+        }
+        for (Map.Entry<String, PendingEntry> entry : pending.entries.entrySet()) {
+            String fileName = entry.getKey();
+            INode fileINode = entry.getValue().iNode;
+            String name = nameList.get(entry.getValue().index);
+            // on failure some buckets may have been written already
+            if (error == null || pending.directory.getFileINodeNumber(fileName) == -1) {
+                freeBlocks(fileINode);
+                freeINodeNumber(fileINode.getINodeNumber());
+                dentryCache.put(parent, fileName, DentryCache.NEGATIVE);
+                results.set(entry.getValue().index, BatchResult.success(name, null));
+            } else {
+                results.set(entry.getValue().index, BatchResult.failure(name, error));
+            }
+        }
+        pending.entries.clear();
+    }
+
+    private PendingEntries pendingEntries(Map<Long, PendingEntries> byDirectory, long directoryINodeNumber) throws IOException {
+        PendingEntries pending = byDirectory.get(directoryINodeNumber);
+        if (pending == null) {
+            // other directory instances may have changed it, so read it again
+            Directory directory = directoryINodeNumber == rootDirectory.getINode().getINodeNumber()
+                    ? rootDirectory
+                    : new Directory(this, readINode(directoryINodeNumber));
+            pending = new PendingEntries(directory);
+            byDirectory.put(directoryINodeNumber, pending);
+        }
+        return pending;
+    }
+
+    @Override
+    public Stream<DirectoryEntry> list(String dir) throws IOException {
+        return list(dir, 0);
+    }
+
+    @Override
+    public Stream<DirectoryEntry> list(String dir, long cursor) throws IOException {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("Cursor should be non-negative number");
+        }
+        if (!pathSeparator.equals(dir)) {
+            assertValidFileName(dir);
+        }
+        Directory directory = readNamespace(locked -> {
+            if (pathSeparator.equals(dir)) {
+                return rootDirectory;
+            }
+            List<String> pathParts = parsePath(dir);
+            String directoryName = pathParts.remove(pathParts.size() - 1);
+
+            Directory current = getLastDirectory(pathParts, locked);
+            long directoryINodeNumber = lookup(current, directoryName, locked);
+            if (directoryINodeNumber == -1) {
+                throw new FileNotFoundException("File does not exist: " + dir);
+            }
+            INode directoryINode = readINode(directoryINodeNumber);
+            if (directoryINode.getType() != FileType.DIRECTORY) {
+                throw new IllegalArgumentException("File is not a directory: " + dir);
+            }
+            return new Directory(this, directoryINode);
+        });
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(
+                        directory.iterator(cursor, false),
+                        Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+    }
+
+    private long lookup(Directory directory, String name) throws IOException {
+        return lookup(directory, name, true);
+    }
+
+    /**
+     * Lookup name in directory via dentry cache.
+     *
+     * @param locked whether namespace lock is held, otherwise looked up entry is not cached,
+     *               as it may be stale by the time it is put to the cache.
+     */
+    private long lookup(Directory directory, String name, boolean locked) throws IOException {
+        long parent = directory.getINode().getINodeNumber();
+        Long cached = dentryCache.get(parent, name);
+        if (cached != null) {
+            return cached;
+        }
+        long iNodeNumber = directory.getFileINodeNumber(name);
+        if (locked) {
+            dentryCache.put(parent, name, iNodeNumber == -1 ? DentryCache.NEGATIVE : iNodeNumber);
+        }
+        return iNodeNumber;
+    }
+
+    /**
+     * Run read-only namespace command without locking, then validate no namespace change happened meanwhile.
+     * If it did, command result or exception may be inconsistent, so command is run again under namespace read lock.
+     * Should not be called with namespace lock held.
+     *
+     * @param command command, receiving whether namespace lock is held.
+     * @return command result.
+     */
+    <T> T readNamespace(NamespaceCommand<T> command) throws IOException {
+        assertNotClosed();
+        long stamp = namespaceLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = command.execute(false);
+                if (namespaceLock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException | IOException e) {
+                if (namespaceLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        return runWithLock(namespaceLock.asReadLock(), () -> command.execute(true));
+    }
+
+    private void addFile(Directory directory, String name, INode fileINode) throws IOException {
+        long parent = directory.getINode().getINodeNumber();
+        dentryCache.invalidate(parent, name);
+        directory.addFile(name, fileINode);
+        dentryCache.put(parent, name, fileINode.getINodeNumber());
+    }
+
+    private void deleteFile(Directory directory, String name) throws IOException {
+        long parent = directory.getINode().getINodeNumber();
+        dentryCache.invalidate(parent, name);
+        directory.deleteFile(name);
+        dentryCache.put(parent, name, DentryCache.NEGATIVE);
+    }
+
     private void assertValidFileName(String name) {
         if (name == null) {
             throw new NullPointerException("File name is null");
@@ -238,30 +873,323 @@ class DefaultFileSystem implements FileSystem {
         }
     }
 
+    /**
+     * Read directory data without iNode lock: directories are changed only under namespace write lock,
+     * so caller should either hold namespace lock or validate optimistic namespace read.
+     */
+    int readDirectoryData(INode iNode, byte[] buffer, int offset, int length, long position) throws IOException {
+        assertNotClosed();
+        return persistenceManager.readINodeData(iNode, buffer, offset, length, position);
+    }
+
+    /**
+     * Get iNode size without locking.
+     * Size is published after the data it covers is written, so the data is visible to a reader of the size.
+     */
+    long getINodeSize(INode iNode) {
+        assertNotClosed();
+        return iNode.getSize();
+    }
+
+    /**
+     * Get size of allocated iNode data blocks in bytes, reading it optimistically.
+     */
+    long getINodeAllocatedSize(INode iNode) {
+        assertNotClosed();
+        StampedLock lock = iNodeLocks.get(iNode.getINodeNumber());
+        long stamp = lock.tryOptimisticRead();
+        long allocatedBlocksCount = iNode.getAllocatedBlocksCount();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                allocatedBlocksCount = iNode.getAllocatedBlocksCount();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return allocatedBlocksCount * getBlockSize();
+    }
+
     int readINodeData(INode iNode, byte[] buffer) throws IOException {
         return readINodeData(iNode, buffer, 0, buffer.length, 0L);
     }
 
     int readINodeData(INode iNode, byte[] buffer, int offset, int length, long position) throws IOException {
-        return runWithLock(lock.readLock(), () -> persistenceManager.readINodeData(iNode, buffer, offset, length, position));
+        assertNotClosed();
+        try (RangeLock ignored = lockINodeRange(iNode, position, length, true)) {
+            return runWithLock(iNodeLocks.get(iNode.getINodeNumber()).asReadLock(),
+                    () -> persistenceManager.readINodeData(iNode, buffer, offset, length, position));
+        }
+    }
+
+    int readINodeData(INode iNode, byte[] buffer, int offset, int length, long position, Executor executor) throws IOException {
+        assertNotClosed();
+        try (RangeLock ignored = lockINodeRange(iNode, position, length, true)) {
+            // chunk reads run on other threads, while the caller holds the locks until all of them complete
+            return runWithLock(iNodeLocks.get(iNode.getINodeNumber()).asReadLock(),
+                    () -> persistenceManager.readINodeData(iNode, buffer, offset, length, position, executor));
+        }
     }
 
     int writeINodeData(INode iNode, byte[] data) throws IOException {
         return writeINodeData(iNode, data, 0, data.length, 0);
     }
 
+    /**
+     * Write data to file, serializing only writes of overlapping ranges.
+     * A write within the file and its allocated blocks runs under the shared iNode lock.
+     * Allocation of missing blocks and writes which grow the file take the exclusive lock,
+     * the latter for the whole write, as the size they publish would cover ranges of concurrent appends.
+     */
     int writeINodeData(INode iNode, byte[] data, int offset, int length, long position) throws IOException {
-        return runWithLock(lock.writeLock(), () -> {
-            long oldSize = iNode.getSize();
-            int bytesWritten = persistenceManager.writeINodeData(iNode, data, offset, length, position);
-            long newSize = iNode.getSize();
-            if (newSize != oldSize) {
+        assertWritable();
+        assertNotClosed();
+        long commit = 0;
+        try (RangeLock ignored = lockINodeRange(iNode, position, length, false)) {
+            StampedLock lock = iNodeLocks.get(iNode.getINodeNumber());
+            long stamp = lock.readLock();
+            try {
+                int bytesToWrite = length;
+                if (position + length > iNode.getSize()
+                        || !persistenceManager.isINodeDataWritable(iNode, position, length)) {
+                    stamp = toWriteLock(lock, stamp);
+                    journal.begin(false);
+                    try {
+                        // block map changes along with allocation, or as shared blocks are replaced by copies
+                        if (position + length > iNode.getSize()) {
+                            int bytesWritten = persistenceManager.writeINodeData(iNode, data, offset, length, position);
+                            writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+                            persistenceManager.writeINode(iNode);
+                            return bytesWritten;
+                        }
+                        bytesToWrite = persistenceManager.allocateINodeData(iNode, position, length);
+                        writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+                        persistenceManager.writeINode(iNode);
+                    } finally {
+                        commit = journal.commit();
+                    }
+                    stamp = lock.tryConvertToReadLock(stamp);
+                }
+                if (bytesToWrite > 0) {
+                    persistenceManager.copyINodeData(iNode, data, offset, bytesToWrite, position);
+                }
+                return bytesToWrite;
+            } finally {
+                lock.unlock(stamp);
+            }
+        } finally {
+            awaitDurable(commit);
+        }
+    }
+
+    /**
+     * Lock {@code [position, position + length)} range of file data for the current thread.
+     * An empty range still locks a single byte at {@code position}.
+     */
+    RangeLock lockINodeRange(INode iNode, long position, long length, boolean shared) throws IOException {
+        return iNode.getRangeLocks().lock(position, Math.max(length, 1), shared);
+    }
+
+    /**
+     * Append data to the end of file, concurrently with other appenders.
+     * Each append reserves its own range past the reserved end of file: by compare-and-set when
+     * blocks for the range are already allocated, or exclusively when they have to be allocated.
+     * Data is then copied under the shared lock, and size is published in reservation order,
+     * so readers never see a range which is not written yet. A range the copy failed to write
+     * is zeroed before it is published, as later appends wait for it.
+     *
+     * @return amount of bytes written, less than {@code length} if there is not enough free space.
+     */
+    int appendINodeData(INode iNode, byte[] data, int offset, int length) throws IOException {
+        assertWritable();
+        assertNotClosed();
+        long commit = 0;
+        StampedLock lock = iNodeLocks.get(iNode.getINodeNumber());
+        long stamp = lock.readLock();
+        try {
+            long position;
+            int reserved;
+            do {
+                position = iNode.getReservedSize();
+                reserved = length;
+                if (!persistenceManager.isINodeDataWritable(iNode, position, length)) {
+                    stamp = toWriteLock(lock, stamp);
+                    position = iNode.getReservedSize();
+                    // allocated blocks are persisted along with the iNode referencing them, so a crash never leaks them
+                    journal.begin(false);
+                    try {
+                        reserved = persistenceManager.allocateINodeData(iNode, position, length);
+                        if (reserved == 0) {
+                            return 0;
+                        }
+                        writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+                        persistenceManager.writeINode(iNode);
+                    } finally {
+                        // awaited along with the size published later, which commits after it
+                        journal.commit();
+                    }
+                }
+            } while (!iNode.reserve(position, reserved));
+            stamp = lock.tryConvertToReadLock(stamp);
+
+            try {
+                persistenceManager.copyINodeData(iNode, data, offset, reserved, position);
+            } catch (IOException | RuntimeException e) {
+                // allocated blocks may keep stale bytes, which readers would see once the range is published
+                try {
+                    persistenceManager.zeroINodeData(iNode, position, position + reserved);
+                } catch (IOException | RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                commit = publishINodeSize(iNode, position, position + reserved);
+                throw e;
+            }
+            commit = publishINodeSize(iNode, position, position + reserved);
+            return reserved;
+        } finally {
+            lock.unlock(stamp);
+            // appends of the file publishing after this one commit meanwhile, so their records go in one batch
+            awaitDurable(commit);
+        }
+    }
+
+    private long toWriteLock(StampedLock lock, long stamp) {
+        long writeStamp = lock.tryConvertToWriteLock(stamp);
+        if (writeStamp != 0L) {
+            return writeStamp;
+        }
+        lock.unlockRead(stamp);
+        return lock.writeLock();
+    }
+
+    /**
+     * Publish {@code [from, to)} range of appended data once all ranges reserved before it are published.
+     *
+     * @return journal commit of the size, to await once the iNode lock is released.
+     */
+    private long publishINodeSize(INode iNode, long from, long to) throws IOException {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                iNode.awaitSize(from - 1, () -> false);
+                break;
+            } catch (InterruptedException e) {
+                // later appends wait for this range, so it has to be published anyway
+                interrupted = true;
+            }
+        }
+        // keeps iNode writes in publication order, so a stale size is never persisted last
+        Lock publicationLock = iNode.getPublicationLock();
+        long commit = 0;
+        publicationLock.lock();
+        try {
+            iNode.publishSize(to);
+            journal.begin(false);
+            try {
                 persistenceManager.writeINode(iNode);
+            } finally {
+                commit = journal.commit();
+            }
+        } finally {
+            publicationLock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return commit;
+    }
+
+    void preallocateINodeData(INode iNode, long size) throws IOException {
+        assertWritable();
+        runInTransaction(iNodeLocks.get(iNode.getINodeNumber()).asWriteLock(), false, () -> {
+            long oldBlocksCount = iNode.getDataBlocksCount();
+            long blocksCount = (size + getBlockSize() - 1) / getBlockSize();
+            List<Long> holes = findHoles(iNode, Math.min(oldBlocksCount, blocksCount));
+            long blocksNeeded = holes.size() + Math.max(blocksCount - oldBlocksCount, 0);
+            if (blocksNeeded == 0) {
+                return;
+            }
+            for (long index = oldBlocksCount; index < blocksCount; index++) {
+                holes.add(index);
+            }
+
+            long firstBlock = blocksNeeded <= Integer.MAX_VALUE
+                    ? allocateDNodeRange((int) blocksNeeded)
+                    : -1;
+            boolean allocated = firstBlock >= 0
+                    ? mapBlocks(iNode, holes, firstBlock)
+                    : allocateBlocks(iNode, holes);
+            if (!allocated) {
+                for (long index : holes) {
+                    if (index < oldBlocksCount) {
+                        iNode.freeBlockByIndex(index);
+                    }
+                }
+                iNode.truncateBlocks(oldBlocksCount);
+                throw new IOException("Not enough free space to preallocate " + size + " bytes");
             }
-            return bytesWritten;
+
+            writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+            persistenceManager.writeINode(iNode);
         });
     }
 
+    private List<Long> findHoles(INode iNode, long blocksCount) throws IOException {
+        List<Long> holes = new ArrayList<>();
+        if (iNode.getAllocatedBlocksCount() == iNode.getDataBlocksCount()) {
+            return holes; // not a sparse file
+        }
+        for (long index = 0; index < blocksCount; index++) {
+            if (iNode.getBlockByIndex(index) == INode.HOLE) {
+                holes.add(index);
+            }
+        }
+        return holes;
+    }
+
+    private boolean mapBlocks(INode iNode, List<Long> indexes, long firstBlock) throws IOException {
+        long block = firstBlock;
+        for (long index : indexes) {
+            if (!iNode.setBlockByIndex(index, block)) {
+                for (long notMapped = block; notMapped < firstBlock + indexes.size(); notMapped++) {
+                    freeDNode(notMapped);
+                }
+                return false;
+            }
+            block++;
+        }
+        return true;
+    }
+
+    private boolean allocateBlocks(INode iNode, List<Long> indexes) throws IOException {
+        for (long index : indexes) {
+            if (iNode.getOrCreateBlockByIndex(index) == INode.HOLE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void truncateINodeData(INode iNode, long size) throws IOException {
+        assertWritable();
+        assertNotClosed();
+        try (RangeLock ignored = lockINodeRange(iNode, Math.min(size, iNode.getSize()), Long.MAX_VALUE, false)) {
+            runInTransaction(iNodeLocks.get(iNode.getINodeNumber()).asWriteLock(), false, () -> {
+                long oldSize = iNode.getSize();
+                if (size > oldSize) {
+                    // allocated blocks past the end of file may keep stale bytes
+                    persistenceManager.zeroINodeData(iNode, oldSize, size);
+                }
+                long blocksCount = (size + getBlockSize() - 1) / getBlockSize();
+                iNode.truncateBlocks(blocksCount);
+                iNode.setSize(size);
+
+                writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+                persistenceManager.writeINode(iNode);
+            });
+        }
+    }
+
     int readDataBlock(byte[] buffer, int offset, int length, long position, long block) throws IOException {
         return persistenceManager.readDataBlock(buffer, offset, length, position, block);
     }
@@ -270,20 +1198,220 @@ class DefaultFileSystem implements FileSystem {
         persistenceManager.writeDataBlock(buffer, offset, length, position, block);
     }
 
-    private void writeBitMap(BitMap bitMap, long blockNumber) throws IOException {
-        persistenceManager.writeBitMap(bitMap, blockNumber);
+    private void writeBitMaps() throws IOException {
+        writeBitMap(I_NODE_BIT_MAP_BLOCK_NUMBER);
+        writeBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+    }
+
+    /**
+     * Write bitmap stored in given block, unless it was not even read, so it is not changed either.
+     */
+    private void writeBitMap(long blockNumber) throws IOException {
+        allocatorLock.lock();
+        try {
+            BitMap bitMap = blockNumber == I_NODE_BIT_MAP_BLOCK_NUMBER ? indexNodeBitMap : dataNodeBitMap;
+            if (bitMap != null) {
+                persistenceManager.writeBitMap(bitMap, blockNumber);
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    /**
+     * Get bitmap of data blocks, reading it on first use. Caller should hold allocator lock.
+     */
+    private BitMap dataNodeBitMap() throws IOException {
+        if (dataNodeBitMap == null) {
+            dataNodeBitMap = persistenceManager.readBitMap(DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+        }
+        return dataNodeBitMap;
+    }
+
+    /**
+     * Get bitmap of iNodes, reading it on first use. Caller should hold allocator lock.
+     */
+    private BitMap indexNodeBitMap() throws IOException {
+        if (indexNodeBitMap == null) {
+            indexNodeBitMap = persistenceManager.readBitMap(I_NODE_BIT_MAP_BLOCK_NUMBER);
+        }
+        return indexNodeBitMap;
     }
 
     int getBlockSize() {
         return blockStorage.getBlockSize();
     }
 
-    long allocateDNode() {
-        return dataNodeBitMap.allocate();
+    /**
+     * Allocate data block which is neither in use, nor shared with a named snapshot.
+     */
+    long allocateDNode() throws IOException {
+        allocatorLock.lock();
+        try {
+            return dataNodeBitMap().allocate(sharedDNodes);
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    private long allocateDNodeRange(int count) throws IOException {
+        allocatorLock.lock();
+        try {
+            return dataNodeBitMap().allocateRange(count, sharedDNodes);
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    /**
+     * Check whether data block is shared with a named snapshot, so it should not be written in place.
+     * Caller should hold an iNode lock.
+     */
+    boolean isSharedDNode(long dNode) {
+        BitMap shared = sharedDNodes;
+        return shared != null && shared.isAllocated(dNode);
+    }
+
+    /**
+     * Allocate a copy of data block.
+     *
+     * @param keepContent {@code false} to leave content of the copy undefined, as it is going to be overwritten.
+     * @return data block number of the copy, or -1 if there is no free space.
+     */
+    long copyDNode(long dNode, boolean keepContent) throws IOException {
+        long copy = allocateDNode();
+        if (copy >= 0 && keepContent) {
+            persistenceManager.copyDataBlock(dNode, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Copy metadata block for every named snapshot which still reads it in place, as it is about to be written.
+     */
+    void preserveForSnapshots(long blockNumber) throws IOException {
+        if (namedSnapshots.isEmpty()) {
+            return;
+        }
+        allocatorLock.lock();
+        try {
+            boolean allocated = false;
+            try {
+                for (NamedSnapshot snapshot : namedSnapshots) {
+                    if (snapshot.getCopy(blockNumber) != INode.HOLE) {
+                        continue;
+                    }
+                    long copy = allocateDNode();
+                    if (copy < 0) {
+                        throw new IOException("Not enough free space to preserve snapshot blocks");
+                    }
+                    allocated = true;
+                    persistenceManager.copyToDataBlock(blockNumber, copy);
+                    snapshot.addCopy(blockNumber, copy);
+                }
+            } finally {
+                if (allocated) {
+                    // copies the bitmap for snapshots too, unless it is the block being preserved
+                    persistenceManager.writeBitMap(dataNodeBitMap(), DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+                }
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    private void updateSharedDNodes() {
+        if (namedSnapshots.isEmpty()) {
+            sharedDNodes = null;
+            return;
+        }
+        BitMap shared = new BitMap(numDNodes);
+        for (NamedSnapshot snapshot : namedSnapshots) {
+            shared.allocateAll(snapshot.getDNodes());
+        }
+        sharedDNodes = shared;
+    }
+
+    void freeDNode(long dNode) throws IOException {
+        allocatorLock.lock();
+        try {
+            if (copyOnWriteStorage != null && copyOnWriteStorage.isHeld(dNode)) {
+                // an open snapshot still reads the block, so it is freed once the snapshot is closed
+                deferredDNodes.add(dNode);
+            } else {
+                dataNodeBitMap().free(dNode);
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    /**
+     * Free data blocks no snapshot refers to, bypassing the check whether a snapshot holds them.
+     */
+    void releaseDNodes(Collection<Long> dNodes) throws IOException {
+        allocatorLock.lock();
+        try {
+            for (long dNode : dNodes) {
+                dataNodeBitMap().free(dNode);
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
     }
 
-    INode readINode(long iNodeIndex) throws IOException {
-        return runWithLock(lock.readLock(), () -> persistenceManager.readINode(iNodeIndex));
+    private long allocateINodeNumber() throws IOException {
+        allocatorLock.lock();
+        try {
+            return indexNodeBitMap().allocate();
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    /**
+     * Free iNode number and drop the iNode from iNode table.
+     */
+    private void freeINodeNumber(long iNodeNumber) throws IOException {
+        iNodes.remove(iNodeNumber);
+        allocatorLock.lock();
+        try {
+            indexNodeBitMap().free(iNodeNumber);
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    /**
+     * Free all data blocks of the iNode, waiting for data operations in progress.
+     */
+    private void freeBlocks(INode iNode) throws IOException {
+        runWithLock(iNodeLocks.get(iNode.getINodeNumber()).asWriteLock(), () -> iNode.truncateBlocks(0));
+    }
+
+    /**
+     * Get iNode from iNode table, reading it from storage on first access.
+     *
+     * @param iNodeNumber iNode number.
+     * @return shared iNode instance.
+     */
+    INode readINode(long iNodeNumber) throws IOException {
+        assertNotClosed();
+        INode iNode = iNodes.get(iNodeNumber);
+        if (iNode != null) {
+            return iNode;
+        }
+        try {
+            return iNodes.computeIfAbsent(iNodeNumber, number -> {
+                try {
+                    return persistenceManager.readINode(number);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     private <T> T runWithLock(Lock lock, Command<T> command) throws IOException {
@@ -303,29 +1431,430 @@ class DefaultFileSystem implements FileSystem {
         });
     }
 
+    /**
+     * Complete an operation: wait until its journal transaction is written, then force it to the storage device
+     * as the durability policy requires.
+     *
+     * @param commit journal commit of the operation, {@code 0} if it has none.
+     */
+    private void awaitDurable(long commit) throws IOException {
+        journal.awaitCommitted(commit);
+        syncingStorage.awaitDurable();
+    }
+
+    /**
+     * Run command under the lock as a single journal transaction.
+     * Transaction commits before the lock is released, and is awaited after.
+     *
+     * @param journalData {@code true} to journal data blocks too, such as directory content.
+     */
+    private <T> T runInTransaction(Lock lock, boolean journalData, Command<T> command) throws IOException {
+        assertNotClosed();
+        T result;
+        long commit;
+        lock.lock();
+        try {
+            journal.begin(journalData);
+            try {
+                result = command.execute();
+            } finally {
+                commit = journal.commit();
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(commit);
+        return result;
+    }
+
+    private void runInTransaction(Lock lock, boolean journalData, VoidCommand callable) throws IOException {
+        runInTransaction(lock, journalData, () -> {
+            callable.execute();
+            return null;
+        });
+    }
+
+    /**
+     * Check whether transaction of the current thread takes more than half of what a transaction may write.
+     * An operation which may write more restarts its transaction then, wherever metadata is consistent,
+     * so each part of it fits into the journal.
+     */
+    private boolean isTransactionLarge() {
+        return journal.getTransactionBlocks() > journal.getTransactionCapacity() / 2;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        assertNotClosed();
+        blockStorage.sync();
+    }
+
+    /**
+     * Force changes of the file to the storage device.
+     * Storage is forced as a whole, so this is the same as {@link #sync()}.
+     */
+    void syncINode(INode iNode) throws IOException {
+        sync();
+    }
+
+    @Override
+    public FileSystem openSnapshot() throws IOException {
+        assertNotClosed();
+        assertWritable();
+        CopyOnWriteBlockStorage.Snapshot snapshot;
+        // no operation is in progress while the snapshot is opened, so it sees consistent storage content
+        namespaceLock.asWriteLock().lock();
+        iNodeLocks.lockAll();
+        try {
+            assertNotClosed();
+            allocatorLock.lock();
+            try {
+                BitMap allocatedDNodes = dataNodeBitMap().copy();
+                for (long dNode : deferredDNodes) {
+                    allocatedDNodes.free(dNode);
+                }
+                snapshot = copyOnWriteStorage.openSnapshot(allocatedDNodes);
+            } finally {
+                allocatorLock.unlock();
+            }
+        } finally {
+            iNodeLocks.unlockAll();
+            namespaceLock.asWriteLock().unlock();
+        }
+
+        DefaultFileSystem view = new DefaultFileSystem(blocksPerInodeRatio, pathSeparator, snapshot, Durability.none(), true);
+        try {
+            view.restoreFileSystem();
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
+        return view;
+    }
+
+    /**
+     * Close snapshot, freeing its preserved copies and data blocks kept from reuse for it.
+     */
+    void closeSnapshot(CopyOnWriteBlockStorage.Snapshot snapshot) throws IOException {
+        List<Long> copies = copyOnWriteStorage.closeSnapshot(snapshot);
+        allocatorLock.lock();
+        try {
+            if (closed.get()) {
+                return;
+            }
+            releaseDNodes(copies);
+            releaseDeferredDNodes();
+            persistenceManager.writeBitMap(dataNodeBitMap(), DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    private void releaseDeferredDNodes() throws IOException {
+        Iterator<Long> iterator = deferredDNodes.iterator();
+        while (iterator.hasNext()) {
+            long dNode = iterator.next();
+            if (!copyOnWriteStorage.isHeld(dNode)) {
+                dataNodeBitMap().free(dNode);
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void createSnapshot(String name) throws IOException {
+        assertWritable();
+        assertValidSnapshotName(name);
+        long commit;
+        // no operation is in progress while the snapshot is created, so it shares consistent storage content
+        namespaceLock.asWriteLock().lock();
+        iNodeLocks.lockAll();
+        try {
+            assertNotClosed();
+            journal.begin(true);
+            try {
+                allocatorLock.lock();
+                try {
+                    addNamedSnapshot(name);
+                } finally {
+                    allocatorLock.unlock();
+                }
+            } finally {
+                commit = journal.commit();
+            }
+        } finally {
+            iNodeLocks.unlockAll();
+            namespaceLock.asWriteLock().unlock();
+        }
+        awaitDurable(commit);
+    }
+
+    /**
+     * Create named snapshot writing just its bitmap, empty copy table and the superblock,
+     * whatever amount of data the file system holds.
+     */
+    private void addNamedSnapshot(String name) throws IOException {
+        SnapshotTable snapshotTable = superBlock.getSnapshotTable();
+        if (snapshotTable.find(name) != null) {
+            throw new IllegalArgumentException("Snapshot already exists: " + name);
+        }
+        if (!NamedSnapshot.fits(getBlockSize(), dataNodesStartIndex)) {
+            throw new IOException("Too many metadata blocks for a snapshot: " + dataNodesStartIndex);
+        }
+        BitMap dNodes = dataNodeBitMap().copy();
+        for (long dNode : deferredDNodes) {
+            dNodes.free(dNode);
+        }
+        for (NamedSnapshot snapshot : namedSnapshots) {
+            for (long dNode : snapshot.getOwnedDNodes()) {
+                dNodes.free(dNode);
+            }
+        }
+
+        long bitMapBlock = allocateDNode();
+        long copyTableBlock = allocateDNode();
+        SnapshotTable.Entry entry = new SnapshotTable.Entry(name, bitMapBlock, copyTableBlock);
+        if (bitMapBlock < 0 || copyTableBlock < 0 || !snapshotTable.add(entry, superBlock.getSnapshotTableCapacity())) {
+            for (long dNode : Arrays.asList(bitMapBlock, copyTableBlock)) {
+                if (dNode >= 0) {
+                    dataNodeBitMap().free(dNode);
+                }
+            }
+            throw new IOException(bitMapBlock < 0 || copyTableBlock < 0
+                    ? "Not enough free space to create snapshot: " + name
+                    : "No room for more snapshots in superblock: " + name);
+        }
+        NamedSnapshot snapshot;
+        try {
+            snapshot = NamedSnapshot.create(this, entry, dNodes, dataNodesStartIndex);
+            // written before the snapshot is added, so it is not copied for the snapshot itself
+            persistenceManager.writeBitMap(dataNodeBitMap(), DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+            persistenceManager.writeSuperBlock(superBlock, SUPER_BLOCK_NUMBER);
+        } catch (IOException | RuntimeException e) {
+            snapshotTable.remove(entry);
+            throw e;
+        }
+        namedSnapshots.add(snapshot);
+        updateSharedDNodes();
+    }
+
+    @Override
+    public void deleteSnapshot(String name) throws IOException {
+        assertWritable();
+        assertValidSnapshotName(name);
+        runInTransaction(namespaceLock.asWriteLock(), true, () -> {
+            allocatorLock.lock();
+            try {
+                NamedSnapshot snapshot = getNamedSnapshot(name);
+                if (snapshot.isMounted()) {
+                    throw new IllegalStateException("Snapshot is open: " + name);
+                }
+                superBlock.getSnapshotTable().remove(snapshot.getEntry());
+                persistenceManager.writeSuperBlock(superBlock, SUPER_BLOCK_NUMBER);
+                namedSnapshots.remove(snapshot);
+                // blocks shared with the snapshot only and dropped by the file system become free
+                updateSharedDNodes();
+                for (long dNode : snapshot.getOwnedDNodes()) {
+                    freeDNode(dNode);
+                }
+                persistenceManager.writeBitMap(dataNodeBitMap(), DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+            } finally {
+                allocatorLock.unlock();
+            }
+        });
+    }
+
+    @Override
+    public List<String> listSnapshots() {
+        assertNotClosed();
+        List<String> names = new ArrayList<>();
+        for (NamedSnapshot snapshot : namedSnapshots) {
+            names.add(snapshot.getName());
+        }
+        return names;
+    }
+
+    @Override
+    public FileSystem openSnapshot(String name) throws IOException {
+        assertNotClosed();
+        assertWritable();
+        assertValidSnapshotName(name);
+        NamedSnapshot snapshot;
+        allocatorLock.lock();
+        try {
+            snapshot = getNamedSnapshot(name);
+            snapshot.mount();
+        } finally {
+            allocatorLock.unlock();
+        }
+
+        NamedSnapshot.View storage = snapshot.new View(blockStorage, dataNodesStartIndex);
+        DefaultFileSystem view = new DefaultFileSystem(blocksPerInodeRatio, pathSeparator, storage, Durability.none(), true);
+        try {
+            view.restoreFileSystem();
+        } catch (IOException | RuntimeException e) {
+            storage.close();
+            throw e;
+        }
+        return view;
+    }
+
+    /**
+     * Roll the file system back to the named snapshot, which is kept.
+     * Metadata blocks are overwritten with their copies and the data bitmap with the one of the snapshot,
+     * data blocks the file system used since the snapshot was created are freed unless other snapshots share them.
+     * Should be called right after the file system is restored, before any file is opened.
+     * <p>
+     * Copies may take more than a journal transaction holds, so they are committed in parts. The superblock marks
+     * the rollback in progress from the first part on until the last one, and restore completes a rollback
+     * torn by a crash, as copies are written again just the same.
+     *
+     * @throws IllegalArgumentException if there is no snapshot with given name.
+     */
+    void rollbackToSnapshot(String name) throws IOException {
+        assertWritable();
+        assertValidSnapshotName(name);
+        runInTransaction(namespaceLock.asWriteLock(), true, () -> {
+            allocatorLock.lock();
+            try {
+                NamedSnapshot snapshot = getNamedSnapshot(name);
+                superBlock.setRollbackSnapshot(namedSnapshots.indexOf(snapshot));
+                persistenceManager.writeSuperBlock(superBlock, SUPER_BLOCK_NUMBER);
+                for (Map.Entry<Long, Long> copy : snapshot.getCopies().entrySet()) {
+                    if (copy.getKey() != DATA_NODE_BIT_MAP_BLOCK_NUMBER) {
+                        persistenceManager.copyFromDataBlock(copy.getValue(), copy.getKey());
+                        if (isTransactionLarge()) {
+                            journal.restart();
+                        }
+                    }
+                }
+                BitMap dNodes = snapshot.getDNodes().copy();
+                for (NamedSnapshot namedSnapshot : namedSnapshots) {
+                    for (long dNode : namedSnapshot.getOwnedDNodes()) {
+                        dNodes.markAllocated(dNode);
+                    }
+                }
+                dataNodeBitMap = dNodes;
+                persistenceManager.writeBitMap(dataNodeBitMap, DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+                superBlock.setRollbackSnapshot(-1);
+                persistenceManager.writeSuperBlock(superBlock, SUPER_BLOCK_NUMBER);
+                // iNode bitmap was copied back, so it is read again on first use
+                indexNodeBitMap = null;
+            } finally {
+                allocatorLock.unlock();
+            }
+            iNodes.clear();
+            rootDirectory = new Directory(this, readINode(0));
+        });
+    }
+
+    private NamedSnapshot getNamedSnapshot(String name) {
+        for (NamedSnapshot snapshot : namedSnapshots) {
+            if (snapshot.getName().equals(name)) {
+                return snapshot;
+            }
+        }
+        throw new IllegalArgumentException("Snapshot does not exist: " + name);
+    }
+
+    private void assertValidSnapshotName(String name) {
+        if (name == null) {
+            throw new NullPointerException("Snapshot name is null");
+        }
+        if (name.trim().isEmpty()) {
+            throw new IllegalArgumentException("Snapshot name is empty");
+        }
+    }
+
     @Override
     public void close() throws Exception {
-        lock.writeLock().lock();
+        namespaceLock.asWriteLock().lock();
+        iNodeLocks.lockAll();
         try {
             if (!closed.compareAndSet(false, true)) {
                 return;
             }
-            blockStorage.close();
+            for (INode iNode : iNodes.values()) {
+                iNode.signalSizeWaiters();
+            }
+            if (copyOnWriteStorage != null && !copyOnWriteStorage.getSnapshots().isEmpty()) {
+                allocatorLock.lock();
+                try {
+                    // snapshots cannot outlive the storage they read
+                    for (CopyOnWriteBlockStorage.Snapshot snapshot : copyOnWriteStorage.getSnapshots()) {
+                        releaseDNodes(copyOnWriteStorage.closeSnapshot(snapshot));
+                    }
+                    releaseDeferredDNodes();
+                    persistenceManager.writeBitMap(dataNodeBitMap(), DATA_NODE_BIT_MAP_BLOCK_NUMBER);
+                } finally {
+                    allocatorLock.unlock();
+                }
+            }
+            try {
+                if (!readOnly && superBlock != null) {
+                    // every block reaches its home location before the superblock says the journal needs no replay
+                    journal.flush();
+                    superBlock.setClean(true);
+                    writeSuperBlockInPlace();
+                    syncingStorage.sync();
+                }
+            } finally {
+                blockStorage.close();
+            }
         } finally {
-            lock.writeLock().unlock();
+            iNodeLocks.unlockAll();
+            namespaceLock.asWriteLock().unlock();
         }
     }
 
+    private void assertWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("File system is read-only");
+        }
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
     private void assertNotClosed() {
         if (closed.get()) {
             throw new IllegalStateException("File system closed");
         }
     }
 
+    /**
+     * Directory entries a batch operation is going to add or remove.
+     */
+    private static final class PendingEntries {
+        private final Directory directory;
+        private final Map<String, PendingEntry> entries = new LinkedHashMap<>();
+
+        PendingEntries(Directory directory) {
+            this.directory = directory;
+        }
+    }
+
+    private static final class PendingEntry {
+        private final int index;
+        private final INode iNode;
+        private final DirectoryRecord record;
+
+        PendingEntry(int index, INode iNode, DirectoryRecord record) {
+            this.index = index;
+            this.iNode = iNode;
+            this.record = record;
+        }
+    }
+
     private interface Command<T> {
         T execute() throws IOException;
     }
 
+    interface NamespaceCommand<T> {
+        T execute(boolean locked) throws IOException;
+    }
+
     private interface VoidCommand {
         void execute() throws IOException;
     }
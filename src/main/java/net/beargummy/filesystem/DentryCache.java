@@ -0,0 +1,107 @@
+package net.beargummy.filesystem;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of directory entries used for path resolution.
+ * <p>
+ * Maps (parent directory iNode number, name) to child iNode number.
+ * Names known to be missing are cached as {@link #NEGATIVE} entries.
+ * Cache is bounded, when it is full an arbitrary entry is evicted.
+ */
+class DentryCache {
+
+    static final long NEGATIVE = -1;
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final int capacity;
+    private final ConcurrentMap<Key, Long> entries;
+
+    DentryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    DentryCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be strictly positive number");
+        }
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get cached child iNode number.
+     *
+     * @param parent parent directory iNode number.
+     * @param name   file name in parent directory.
+     * @return child iNode number, {@link #NEGATIVE} if name is known to be missing,
+     * or {@code null} if there is no cached entry.
+     */
+    Long get(long parent, String name) {
+        return entries.get(new Key(parent, name));
+    }
+
+    void put(long parent, String name, long iNodeNumber) {
+        if (entries.size() >= capacity) {
+            evict();
+        }
+        entries.put(new Key(parent, name), iNodeNumber);
+    }
+
+    void invalidate(long parent, String name) {
+        entries.remove(new Key(parent, name));
+    }
+
+    /**
+     * Invalidate all entries of given directories, e.g. when they are deleted
+     * and their iNode numbers may be reused.
+     *
+     * @param parents directory iNode numbers.
+     */
+    void invalidateParents(Set<Long> parents) {
+        if (!parents.isEmpty()) {
+            entries.keySet().removeIf(key -> parents.contains(key.parent));
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        Iterator<Key> iterator = entries.keySet().iterator();
+        if (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Key {
+        private final long parent;
+        private final String name;
+
+        Key(long parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return parent == key.parent &&
+                    Objects.equals(name, key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(parent) + name.hashCode();
+        }
+    }
+}
@@ -1,11 +1,46 @@
 package net.beargummy.filesystem;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.ToIntFunction;
 
+/**
+ * Directory stored as a linear hash table.
+ * <p>
+ * Each data block of the directory is a hash bucket holding {@link DirectoryData}
+ * for names whose hash maps to it, so a lookup reads only one bucket.
+ * Only used part of a bucket is read, and adding or removing a record
+ * writes just the changed bytes and the bucket header.
+ * Amount of buckets is derived from directory size, so no extra header is needed:
+ * with {@code n} buckets and {@code 2^level <= n < 2^(level + 1)},
+ * name goes to bucket {@code hash mod 2^level}, or to {@code hash mod 2^(level + 1)}
+ * if the former bucket has been split already.
+ * When a bucket overflows, buckets are split one by one in order, each split
+ * appending a new bucket to the end of the directory.
+ */
 class Directory {
 
+    private static final int MAX_LEVEL = 32;
+    private static final int KEY_HASH_SHIFT = 31;
+    // cursor position past the whole key space
+    private static final long LISTED = Long.MAX_VALUE;
+    private static final Comparator<DirectoryRecord> LISTING_ORDER = Comparator
+            .comparingLong(Directory::listingKey)
+            .thenComparing(record -> record.name);
+
     private DefaultFileSystem fs;
     private INode iNode;
 
@@ -23,37 +58,119 @@ class Directory {
         return iNode;
     }
 
+    /**
+     * Write single empty bucket to the directory.
+     */
+    void init() throws IOException {
+        writeBucket(0, new DirectoryData(new ArrayList<>()));
+    }
+
     // todo: consider moving it to FS itself
     void addFile(String name, INode fileINode) throws IOException {
-        boolean alreadyExists = containsFile(name);
-        if (alreadyExists) {
-            throw new FileAlreadyExists("File already exists: " + name);
-        }
-        DirectoryData directoryData = getDirectoryData();
-        directoryData.addRecord(new DirectoryRecord(
+        addFiles(Collections.singletonList(newRecord(name, fileINode)));
+    }
+
+    /**
+     * Create record for a file, checking it fits into a bucket.
+     */
+    DirectoryRecord newRecord(String name, INode fileINode) {
+        DirectoryRecord record = new DirectoryRecord(
                 fileINode.getType(),
                 fileINode.getINodeNumber(),
-                name)
-        );
+                name);
+        if (record.recordSize + DirectoryData.HEADER_SIZE > fs.getBlockSize()) {
+            throw new IllegalArgumentException("File name is too long: " + name);
+        }
+        return record;
+    }
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate(fs.getBlockSize());
-        directoryData.writeTo(byteBuffer);
-        fs.writeINodeData(iNode, byteBuffer.array());
+    /**
+     * Add records, reading and writing each touched bucket once.
+     * Records of a bucket are appended past its used space with a single write, then header is written.
+     * Records that do not fit are added in the next round, after a split.
+     */
+    void addFiles(List<DirectoryRecord> records) throws IOException {
+        List<DirectoryRecord> pending = records;
+        while (!pending.isEmpty()) {
+            List<DirectoryRecord> overflow = new ArrayList<>();
+            for (Map.Entry<Long, List<DirectoryRecord>> entry : groupByBucket(pending, record -> record.nameHash).entrySet()) {
+                long bucket = entry.getKey();
+                DirectoryData directoryData = new DirectoryData(readBucket(bucket));
+                int usedBytes = directoryData.getBytesSize();
+                ByteBuffer byteBuffer = ByteBuffer.allocate(fs.getBlockSize() - usedBytes);
+                for (DirectoryRecord record : entry.getValue()) {
+                    if (directoryData.getFileINodeNumber(record.name) != -1) {
+                        throw new FileAlreadyExists("File already exists: " + record.name);
+                    }
+                    if (directoryData.getBytesSize() + record.recordSize <= fs.getBlockSize()) {
+                        record.writeTo(byteBuffer);
+                        directoryData.addRecord(record);
+                    } else {
+                        overflow.add(record);
+                    }
+                }
+                if (byteBuffer.position() > 0) {
+                    // append records past used space, then publish them via header
+                    write(byteBuffer.array(), 0, byteBuffer.position(), bucket * fs.getBlockSize() + usedBytes);
+                    writeBucketHeader(bucket, directoryData);
+                }
+            }
+            if (!overflow.isEmpty()) {
+                split();
+            }
+            pending = overflow;
+        }
     }
 
     // todo: consider moving it to FS itself
     void deleteFile(String name) throws IOException {
-        boolean fileExists = containsFile(name);
-        if (!fileExists) {
+        int hash = hash(name);
+        long bucket = getBucket(hash);
+        ByteBuffer bucketBytes = readBucket(bucket);
+        int recordOffset = DirectoryData.findRecord(bucketBytes, hash, name.getBytes(StandardCharsets.UTF_8));
+        if (recordOffset == -1) {
             throw new FileNotFoundException("File does not exist: " + name);
         }
 
-        DirectoryData directoryData = getDirectoryData();
-        directoryData.deleteRecord(name);
+        // slide records after deleted one to its place
+        int recordSize = bucketBytes.getInt(recordOffset + DirectoryRecord.RECORD_SIZE_OFFSET);
+        int tailOffset = recordOffset + recordSize;
+        int tailLength = bucketBytes.capacity() - tailOffset;
+        if (tailLength > 0) {
+            write(bucketBytes.array(), tailOffset, tailLength, bucket * fs.getBlockSize() + recordOffset);
+        }
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate(fs.getBlockSize());
-        directoryData.writeTo(byteBuffer);
-        fs.writeINodeData(iNode, byteBuffer.array());
+        bucketBytes.putInt(0, bucketBytes.getInt(0) - 1);
+        bucketBytes.putInt(4, bucketBytes.capacity() - recordSize);
+        write(bucketBytes.array(), 0, DirectoryData.HEADER_SIZE, bucket * fs.getBlockSize());
+    }
+
+    /**
+     * Delete records with given names, reading and writing each touched bucket once.
+     */
+    void deleteFiles(Collection<String> names) throws IOException {
+        for (Map.Entry<Long, List<String>> entry : groupByBucket(names, Directory::hash).entrySet()) {
+            long bucket = entry.getKey();
+            Set<String> bucketNames = new HashSet<>(entry.getValue());
+            DirectoryData directoryData = new DirectoryData(readBucket(bucket));
+            DirectoryData removed = directoryData.removeRecordsIf(record -> bucketNames.contains(record.name));
+            if (removed.getSize() != bucketNames.size()) {
+                for (DirectoryRecord record : removed.getRecords()) {
+                    bucketNames.remove(record.name);
+                }
+                throw new FileNotFoundException("File does not exist: " + bucketNames.iterator().next());
+            }
+            writeBucket(bucket, directoryData);
+        }
+    }
+
+    private <T> Map<Long, List<T>> groupByBucket(Collection<T> items, ToIntFunction<T> hash) {
+        Map<Long, List<T>> byBucket = new TreeMap<>();
+        for (T item : items) {
+            byBucket.computeIfAbsent(getBucket(hash.applyAsInt(item)), bucket -> new ArrayList<>())
+                    .add(item);
+        }
+        return byBucket;
     }
 
     boolean containsFile(String name) throws IOException {
@@ -61,19 +178,209 @@ class Directory {
     }
 
     long getFileINodeNumber(String name) throws IOException {
-        return getDirectoryData()
-                .getFileINodeNumber(name);
+        int hash = hash(name);
+        ByteBuffer bucketBytes = readBucket(getBucket(hash));
+        int recordOffset = DirectoryData.findRecord(bucketBytes, hash, name.getBytes(StandardCharsets.UTF_8));
+        return recordOffset == -1
+                ? -1
+                : bucketBytes.getLong(recordOffset + DirectoryRecord.I_NODE_NUMBER_OFFSET);
     }
 
-    private DirectoryData getDirectoryData() throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(fs.getBlockSize());
-        fs.readINodeData(iNode, byteBuffer.array());
-        return new DirectoryData(byteBuffer);
+    boolean isEmpty() throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(4);
+        for (long bucket = 0; bucket < getBucketsCount(); bucket++) {
+            byteBuffer.clear();
+            fs.readDirectoryData(iNode, byteBuffer.array(), 0, 4, bucket * fs.getBlockSize());
+            if (byteBuffer.getInt() != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    boolean isEmpty() throws IOException {
-        return getDirectoryData()
-                .getSize() == 0;
+    /**
+     * Iterate over directory entries, reading one bucket at a time.
+     * <p>
+     * Entries are listed in order of their {@link #listingKey(DirectoryRecord) listing key},
+     * which starts with bit-reversed name hash. Every bucket holds a contiguous range of keys,
+     * and a split divides the range of a bucket in two, so the cursor is a position in key space
+     * rather than in a bucket: listing resumes after the last listed name whatever was deleted
+     * or split meanwhile, and a split never reports moved entries twice.
+     *
+     * @param cursor cursor of the last listed entry, or {@code 0} to start from the beginning.
+     * @param locked whether namespace lock is held while iterating,
+     *               otherwise each bucket is read as an optimistic namespace read.
+     * @return lazy iterator, throwing {@link UncheckedIOException} if bucket read fails.
+     */
+    Iterator<DirectoryEntry> iterator(long cursor, boolean locked) {
+        return new Iterator<DirectoryEntry>() {
+            // least key of entries left to list
+            private long position = cursor;
+            // least key of the bucket after the current one
+            private long nextPosition;
+            private int index;
+            private List<DirectoryRecord> records;
+
+            @Override
+            public boolean hasNext() {
+                while (records == null || index >= records.size()) {
+                    if (records != null) {
+                        position = nextPosition;
+                        index = 0;
+                    }
+                    if (position == LISTED) {
+                        return false;
+                    }
+                    try {
+                        records = locked ? readRecords() : fs.readNamespace(namespaceLocked -> readRecords());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return true;
+            }
+
+            /**
+             * Read records of the bucket holding current position, sorted by key,
+             * and find where the key range of the bucket ends.
+             */
+            private List<DirectoryRecord> readRecords() throws IOException {
+                long bucketsCount = getBucketsCount();
+                int level = getLevel(bucketsCount);
+                long lowBuckets = 1L << level;
+                long bucket = getBucket(Integer.reverse((int) (position >>> KEY_HASH_SHIFT)));
+                int bucketLevel = bucket < bucketsCount - lowBuckets || bucket >= lowBuckets ? level + 1 : level;
+                // bucket holds hashes ending with its bits, reversed they are its key range
+                long rangeEnd = (Integer.reverse((int) bucket) & 0xFFFFFFFFL) + (1L << (32 - bucketLevel));
+                nextPosition = rangeEnd > 0xFFFFFFFFL ? LISTED : rangeEnd << KEY_HASH_SHIFT;
+
+                List<DirectoryRecord> bucketRecords = new ArrayList<>();
+                for (DirectoryRecord record : new DirectoryData(readBucket(bucket)).getRecords()) {
+                    if (listingKey(record) >= position) {
+                        bucketRecords.add(record);
+                    }
+                }
+                bucketRecords.sort(LISTING_ORDER);
+                return bucketRecords;
+            }
+
+            @Override
+            public DirectoryEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                DirectoryRecord record = records.get(index++);
+                return new DirectoryEntry(record.name, record.recordType, record.iNodeNumber, listingKey(record) + 1);
+            }
+        };
+    }
+
+    /**
+     * Key of a record in directory listing: bit-reversed name hash, followed by another 30 bits hash of the name
+     * to tell apart names of the same hash. Names equal in both hashes are listed in order of names,
+     * but a cursor taken between them resumes after all of them.
+     * <p>
+     * Key is less than {@link Long#MAX_VALUE}, so cursor taken after it is positive.
+     */
+    static long listingKey(DirectoryRecord record) {
+        return (Integer.reverse(record.nameHash) & 0xFFFFFFFFL) << KEY_HASH_SHIFT | secondaryHash(record.name);
+    }
+
+    private static int secondaryHash(String name) {
+        // FNV-1a, independent from name.hashCode() the primary hash is derived from
+        int h = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x01000193;
+        }
+        return h & ((1 << KEY_HASH_SHIFT - 1) - 1);
+    }
+
+    /**
+     * Split next bucket in order, moving part of its records to a new bucket at the end.
+     */
+    private void split() throws IOException {
+        long bucketsCount = getBucketsCount();
+        int level = getLevel(bucketsCount);
+        if (level >= MAX_LEVEL) {
+            throw new IllegalStateException("Directory is full");
+        }
+        long lowBuckets = 1L << level;
+        long splitBucket = bucketsCount - lowBuckets;
+        long mask = (lowBuckets << 1) - 1;
+
+        DirectoryData directoryData = new DirectoryData(readBucket(splitBucket));
+        DirectoryData moved = directoryData.removeRecordsIf(record -> (record.nameHash & mask) != splitBucket);
+
+        // new bucket goes first: directory size defines which buckets are split already
+        writeBucket(bucketsCount, moved);
+        writeBucket(splitBucket, directoryData);
+    }
+
+    private long getBucket(int hash) {
+        long bucketsCount = getBucketsCount();
+        long lowBuckets = 1L << getLevel(bucketsCount);
+        long bucket = hash & (lowBuckets - 1);
+        if (bucket < bucketsCount - lowBuckets) {
+            bucket = hash & ((lowBuckets << 1) - 1);
+        }
+        return bucket;
+    }
+
+    private long getBucketsCount() {
+        return (iNode.getSize() + fs.getBlockSize() - 1) / fs.getBlockSize();
+    }
+
+    private static int getLevel(long bucketsCount) {
+        return 63 - Long.numberOfLeadingZeros(bucketsCount);
+    }
+
+    /**
+     * Read used part of the bucket: header first, then as many bytes as header says are used.
+     */
+    private ByteBuffer readBucket(long bucket) throws IOException {
+        long bucketPosition = bucket * fs.getBlockSize();
+        ByteBuffer header = ByteBuffer.allocate(DirectoryData.HEADER_SIZE);
+        fs.readDirectoryData(iNode, header.array(), 0, DirectoryData.HEADER_SIZE, bucketPosition);
+        header.getInt(); // size
+        // bounded, as bucket may be read optimistically while it is being written
+        int bytesSize = Math.min(Math.max(header.getInt(), DirectoryData.HEADER_SIZE), fs.getBlockSize());
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(bytesSize);
+        fs.readDirectoryData(iNode, byteBuffer.array(), 0, bytesSize, bucketPosition);
+        return byteBuffer;
+    }
+
+    private void writeBucket(long bucket, DirectoryData directoryData) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(directoryData.getBytesSize());
+        directoryData.writeTo(byteBuffer);
+        write(byteBuffer.array(), 0, byteBuffer.capacity(), bucket * fs.getBlockSize());
+    }
+
+    private void writeBucketHeader(long bucket, DirectoryData directoryData) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(DirectoryData.HEADER_SIZE);
+        directoryData.writeHeaderTo(byteBuffer);
+        write(byteBuffer.array(), 0, byteBuffer.capacity(), bucket * fs.getBlockSize());
+    }
+
+    private void write(byte[] data, int offset, int length, long position) throws IOException {
+        int bytesWritten = fs.writeINodeData(iNode, data, offset, length, position);
+        if (bytesWritten != length) {
+            throw new IOException("Not enough free space to write directory");
+        }
+    }
+
+    /**
+     * Hash of a file name, low bits of which select a bucket.
+     */
+    static int hash(String name) {
+        int h = name.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
     }
 
     @Override
@@ -2,22 +2,35 @@ package net.beargummy.filesystem;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Predicate;
 
 class DirectoryData implements ByteBufferSerializable {
 
+    static final int HEADER_SIZE = 4 // size
+            + 4 // bytesSize
+            ;
+
     private int size;
+    // serialized size including header, records are appended at this offset
+    private int bytesSize;
     private List<DirectoryRecord> records;
 
     DirectoryData(List<DirectoryRecord> records) {
         this.size = records.size();
+        this.bytesSize = HEADER_SIZE;
+        for (DirectoryRecord record : records) {
+            this.bytesSize += record.recordSize;
+        }
         this.records = records;
     }
 
     DirectoryData(ByteBuffer byteBuffer) {
         this.size = byteBuffer.getInt();
-        this.records = new ArrayList<>(size);
+        this.bytesSize = byteBuffer.getInt();
+        this.records = new ArrayList<>(Math.max(Math.min(size, byteBuffer.remaining() / DirectoryRecord.MIN_SIZE), 0));
         for (int i = 0; i < size; i++) {
             this.records.add(new DirectoryRecord(byteBuffer));
         }
@@ -25,18 +38,62 @@ class DirectoryData implements ByteBufferSerializable {
 
     @Override
     public void writeTo(ByteBuffer byteBuffer) {
-        byteBuffer.putInt(size);
+        writeHeaderTo(byteBuffer);
         records.forEach(record -> record.writeTo(byteBuffer));
     }
 
+    /**
+     * Write only header, which is enough to persist appended or removed records
+     * once their bytes are in place.
+     *
+     * @param byteBuffer byteBuffer to write header to.
+     */
+    void writeHeaderTo(ByteBuffer byteBuffer) {
+        byteBuffer.putInt(size);
+        byteBuffer.putInt(bytesSize);
+    }
+
     void addRecord(DirectoryRecord directoryRecord) {
         this.records.add(directoryRecord);
         this.size += 1;
+        this.bytesSize += directoryRecord.recordSize;
     }
 
     void deleteRecord(String name) {
-        this.records.removeIf(directoryRecord -> name.equals(directoryRecord.name));
-        this.size -= 1;
+        removeRecordsIf(directoryRecord -> name.equals(directoryRecord.name));
+    }
+
+    /**
+     * Remove records matching {@code filter}.
+     *
+     * @param filter predicate for records to remove.
+     * @return removed records.
+     */
+    DirectoryData removeRecordsIf(Predicate<DirectoryRecord> filter) {
+        List<DirectoryRecord> removed = new ArrayList<>();
+        for (Iterator<DirectoryRecord> iterator = records.iterator(); iterator.hasNext(); ) {
+            DirectoryRecord record = iterator.next();
+            if (filter.test(record)) {
+                removed.add(record);
+                iterator.remove();
+            }
+        }
+        DirectoryData removedData = new DirectoryData(removed);
+        this.size -= removedData.size;
+        this.bytesSize -= removedData.bytesSize - HEADER_SIZE;
+        return removedData;
+    }
+
+    /**
+     * Find record with given name in serialized directory data without decoding it.
+     *
+     * @param byteBuffer serialized directory data, absolute offsets are used.
+     * @param nameHash   {@link Directory#hash(String) hash} of the name.
+     * @param nameBytes  UTF-8 encoded name.
+     * @return offset of the record, or -1 if there is no such record.
+     */
+    static int findRecord(ByteBuffer byteBuffer, int nameHash, byte[] nameBytes) {
+        return DirectoryRecord.find(byteBuffer, HEADER_SIZE, byteBuffer.getInt(0), nameHash, nameBytes);
     }
 
     long getFileINodeNumber(String name) {
@@ -48,10 +105,23 @@ class DirectoryData implements ByteBufferSerializable {
         return -1;
     }
 
+    List<DirectoryRecord> getRecords() {
+        return records;
+    }
+
     int getSize() {
         return size;
     }
 
+    /**
+     * Get size of serialized directory data in bytes.
+     *
+     * @return amount of bytes written by {@link #writeTo(ByteBuffer)}.
+     */
+    int getBytesSize() {
+        return bytesSize;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -70,6 +140,7 @@ class DirectoryData implements ByteBufferSerializable {
     public String toString() {
         return "DirectoryData{" +
                 "size=" + size +
+                ", bytesSize=" + bytesSize +
                 ", records=" + records +
                 '}';
     }
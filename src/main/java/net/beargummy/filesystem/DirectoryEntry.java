@@ -0,0 +1,86 @@
+package net.beargummy.filesystem;
+
+import java.util.Objects;
+
+/**
+ * Entry of a directory listing.
+ *
+ * @see FileSystem#list(String)
+ */
+public final class DirectoryEntry {
+
+    private final String name;
+    private final FileType type;
+    private final long iNodeNumber;
+    private final long cursor;
+
+    DirectoryEntry(String name, FileType type, long iNodeNumber, long cursor) {
+        this.name = name;
+        this.type = type;
+        this.iNodeNumber = iNodeNumber;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Get file name within directory.
+     *
+     * @return file name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get file type.
+     *
+     * @return file type
+     */
+    public FileType getType() {
+        return type;
+    }
+
+    /**
+     * Get number of the iNode file is stored in.
+     *
+     * @return iNode number
+     */
+    public long getINodeNumber() {
+        return iNodeNumber;
+    }
+
+    /**
+     * Get opaque position right after this entry in the directory listing.
+     * Pass it to {@link FileSystem#list(String, long)} to resume listing.
+     *
+     * @return listing cursor
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DirectoryEntry that = (DirectoryEntry) o;
+        return iNodeNumber == that.iNodeNumber &&
+                cursor == that.cursor &&
+                Objects.equals(name, that.name) &&
+                type == that.type;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, type, iNodeNumber, cursor);
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryEntry{" +
+                "name='" + name + '\'' +
+                ", type=" + type +
+                ", iNodeNumber=" + iNodeNumber +
+                ", cursor=" + cursor +
+                '}';
+    }
+}
@@ -1,32 +1,54 @@
 package net.beargummy.filesystem;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
+/**
+ * Directory entry as stored in a directory bucket.
+ * <p>
+ * Name is stored in UTF-8 along with its {@link Directory#hash(String) hash},
+ * so lookups can reject most records by hash and compare names as raw bytes.
+ */
 class DirectoryRecord implements ByteBufferSerializable {
-    static final int MIN_SIZE = 3 * 4 + 8;
+
+    static final int RECORD_SIZE_OFFSET = 4;
+    static final int I_NODE_NUMBER_OFFSET = 8;
+    static final int NAME_HASH_OFFSET = 16;
+    static final int NAME_SIZE_OFFSET = 20;
+    static final int NAME_OFFSET = 24;
+
+    static final int MIN_SIZE = NAME_OFFSET;
 
     FileType recordType;
     int recordSize;
     long iNodeNumber;
+    int nameHash;
     int nameSize;
     String name;
+    private byte[] nameBytes;
 
     DirectoryRecord(ByteBuffer byteBuffer) {
         this.recordType = FileType.valueOf(byteBuffer.getInt());
         this.recordSize = byteBuffer.getInt();
         this.iNodeNumber = byteBuffer.getLong();
+        this.nameHash = byteBuffer.getInt();
         this.nameSize = byteBuffer.getInt();
-        byte[] nameBytes = new byte[nameSize];
+        if (nameSize < 0 || nameSize > byteBuffer.remaining()) {
+            throw new IllegalStateException("Corrupted directory record, name size: " + nameSize);
+        }
+        this.nameBytes = new byte[nameSize];
         byteBuffer.get(nameBytes);
-        this.name = new String(nameBytes);
+        this.name = new String(nameBytes, StandardCharsets.UTF_8);
     }
 
     DirectoryRecord(FileType fileType, long iNodeNumber, String name) {
         this.recordType = fileType;
-        this.recordSize = nameSize + MIN_SIZE;
         this.iNodeNumber = iNodeNumber;
-        this.nameSize = name.getBytes().length;
+        this.nameHash = Directory.hash(name);
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        this.nameSize = nameBytes.length;
+        this.recordSize = nameSize + MIN_SIZE;
         this.name = name;
     }
 
@@ -36,10 +58,46 @@ class DirectoryRecord implements ByteBufferSerializable {
                 .putInt(recordType.getCode())
                 .putInt(recordSize)
                 .putLong(iNodeNumber)
-                .putInt(nameSize);
-        if (nameSize > 0) {
-            byteBuffer.put(name.getBytes());
+                .putInt(nameHash)
+                .putInt(nameSize)
+                .put(nameBytes);
+    }
+
+    /**
+     * Find record with given name in serialized records without decoding them.
+     *
+     * @param byteBuffer serialized records, absolute offsets are used.
+     * @param offset     offset of the first record.
+     * @param count      amount of records.
+     * @param nameHash   {@link Directory#hash(String) hash} of the name.
+     * @param nameBytes  UTF-8 encoded name.
+     * @return offset of the record, or -1 if there is no such record.
+     */
+    static int find(ByteBuffer byteBuffer, int offset, int count, int nameHash, byte[] nameBytes) {
+        for (int i = 0; i < count; i++) {
+            if (byteBuffer.getInt(offset + NAME_HASH_OFFSET) == nameHash
+                    && nameEquals(byteBuffer, offset, nameBytes)) {
+                return offset;
+            }
+            int recordSize = byteBuffer.getInt(offset + RECORD_SIZE_OFFSET);
+            if (recordSize < MIN_SIZE) {
+                throw new IllegalStateException("Corrupted directory record, record size: " + recordSize);
+            }
+            offset += recordSize;
+        }
+        return -1;
+    }
+
+    private static boolean nameEquals(ByteBuffer byteBuffer, int offset, byte[] nameBytes) {
+        if (byteBuffer.getInt(offset + NAME_SIZE_OFFSET) != nameBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (byteBuffer.get(offset + NAME_OFFSET + i) != nameBytes[i]) {
+                return false;
+            }
         }
+        return true;
     }
 
     @Override
@@ -49,6 +107,7 @@ class DirectoryRecord implements ByteBufferSerializable {
         DirectoryRecord that = (DirectoryRecord) o;
         return recordSize == that.recordSize &&
                 iNodeNumber == that.iNodeNumber &&
+                nameHash == that.nameHash &&
                 nameSize == that.nameSize &&
                 recordType == that.recordType &&
                 Objects.equals(name, that.name);
@@ -56,7 +115,7 @@ class DirectoryRecord implements ByteBufferSerializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(recordType, recordSize, iNodeNumber, nameSize, name);
+        return Objects.hash(recordType, recordSize, iNodeNumber, nameHash, nameSize, name);
     }
 
     @Override
@@ -65,6 +124,7 @@ class DirectoryRecord implements ByteBufferSerializable {
                 "recordType=" + recordType +
                 ", recordSize=" + recordSize +
                 ", iNodeNumber=" + iNodeNumber +
+                ", nameHash=" + nameHash +
                 ", nameSize=" + nameSize +
                 ", name='" + name + '\'' +
                 '}';
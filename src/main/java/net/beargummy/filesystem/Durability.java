@@ -0,0 +1,100 @@
+package net.beargummy.filesystem;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy of forcing written blocks to the storage device, which trades latency of operations for durability.
+ * <p>
+ * Whatever the policy, {@link FileSystem#sync()} and {@link File#sync()} force written blocks on demand,
+ * and closing the {@link FileSystem} forces them before the storage is closed.
+ *
+ * @see FileSystemManager#create(java.io.File, int, int, Durability)
+ */
+public final class Durability {
+
+    public enum Mode {
+        /**
+         * Written blocks are forced only on demand.
+         */
+        NONE,
+        /**
+         * Written blocks are forced in the background once per interval,
+         * so an operation may be lost in a crash within the interval after it returned.
+         */
+        PERIODIC,
+        /**
+         * Every operation forces written blocks before it returns.
+         */
+        PER_OPERATION,
+        /**
+         * Operations force written blocks before they return, sharing a single force with concurrent operations.
+         * The force waits up to the max delay for more operations to join it.
+         */
+        GROUP_COMMIT
+    }
+
+    private static final Durability NONE = new Durability(Mode.NONE, 0);
+    private static final Durability PER_OPERATION = new Durability(Mode.PER_OPERATION, 0);
+
+    private final Mode mode;
+    private final long delayNanos;
+
+    private Durability(Mode mode, long delayNanos) {
+        this.mode = mode;
+        this.delayNanos = delayNanos;
+    }
+
+    public static Durability none() {
+        return NONE;
+    }
+
+    /**
+     * @param interval time between background forces.
+     * @throws IllegalArgumentException if {@code interval} is not positive.
+     */
+    public static Durability periodic(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval should be positive: " + interval);
+        }
+        return new Durability(Mode.PERIODIC, unit.toNanos(interval));
+    }
+
+    public static Durability perOperation() {
+        return PER_OPERATION;
+    }
+
+    /**
+     * @param maxDelay time a force waits for concurrent operations, {@code 0} to start it at once.
+     * @throws IllegalArgumentException if {@code maxDelay} is negative.
+     */
+    public static Durability groupCommit(long maxDelay, TimeUnit unit) {
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("Max delay should not be negative: " + maxDelay);
+        }
+        return new Durability(Mode.GROUP_COMMIT, unit.toNanos(maxDelay));
+    }
+
+    /**
+     * Get mode of the policy.
+     *
+     * @return durability mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get interval of {@link Mode#PERIODIC} forces, or max delay of {@link Mode#GROUP_COMMIT} ones.
+     *
+     * @param unit time unit of the result.
+     * @return delay, {@code 0} for other modes.
+     */
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "Durability{mode=" + mode + ", delayNanos=" + delayNanos + '}';
+    }
+}
@@ -1,6 +1,10 @@
 package net.beargummy.filesystem;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Represents a file on FileSystem.
@@ -56,6 +60,43 @@ public interface File extends AutoCloseable {
      */
     int read(byte[] buffer, int offset, int length, long position) throws IOException;
 
+    /**
+     * Reads up to {@code length} bytes of data from this file into an array of bytes
+     * starting from {@code position} in file, fetching block-aligned chunks of a large range
+     * concurrently on the file system executor: {@link ForkJoinPool#commonPool()},
+     * or a virtual thread per chunk on Java 21 and later.
+     *
+     * @param buffer   the buffer into which the data is read.
+     * @param offset   the start offset in the buffer.
+     * @param length   amount of bytes to read from file.
+     * @param position the start position in the file.
+     * @throws IllegalArgumentException if {@code offset} or {@code position} is negative.
+     * @throws NullPointerException     if {@code buffer} is {@code null}.
+     * @throws IllegalStateException    if file or related {@link FileSystem} is closed
+     * @throws IOException              if an I/O error occurs.
+     * @see #readParallel(byte[], int, int, long, Executor)
+     */
+    int readParallel(byte[] buffer, int offset, int length, long position) throws IOException;
+
+    /**
+     * Reads up to {@code length} bytes of data from this file into an array of bytes
+     * starting from {@code position} in file, fetching block-aligned chunks of a large range
+     * concurrently on {@code executor}, each into its own region of {@code buffer}.
+     * Ranges which fit a single chunk are read on the calling thread.
+     * The calling thread waits until all chunks are read.
+     *
+     * @param buffer   the buffer into which the data is read.
+     * @param offset   the start offset in the buffer.
+     * @param length   amount of bytes to read from file.
+     * @param position the start position in the file.
+     * @param executor executor to read chunks on.
+     * @throws IllegalArgumentException if {@code offset} or {@code position} is negative.
+     * @throws NullPointerException     if {@code buffer} or {@code executor} is {@code null}.
+     * @throws IllegalStateException    if file or related {@link FileSystem} is closed
+     * @throws IOException              if an I/O error occurs.
+     */
+    int readParallel(byte[] buffer, int offset, int length, long position, Executor executor) throws IOException;
+
     /**
      * Writes {@code buffer.length} bytes from the specified byte array to this file.
      *
@@ -69,12 +110,14 @@ public interface File extends AutoCloseable {
     /**
      * Writes {@code length} bytes from the specified byte array
      * starting at {@code offset} to this file.
+     * {@code position} may be greater than file size, the gap becomes a hole
+     * which reads as zeros and does not consume data blocks.
      *
      * @param buffer   the buffer.
      * @param offset   the start offset in the buffer.
      * @param length   amount of bytes to write from {@code buffer}.
      * @param position the start position in the file.
-     * @throws IllegalArgumentException if {@code offset} is negative.
+     * @throws IllegalArgumentException if {@code offset} or {@code position} is negative.
      * @throws NullPointerException     if {@code buffer} is {@code null}.
      * @throws IllegalStateException    if file or related {@link FileSystem} is closed
      * @throws IOException              if an I/O error occurs.
@@ -106,8 +149,80 @@ public interface File extends AutoCloseable {
      */
     int append(byte[] buffer, int offset, int length) throws IOException;
 
+    /**
+     * Opens a stream of this file data starting from {@code position}, which follows the file as it grows.
+     * Instead of reaching the end of the file, a read blocks until data is written past the stream position,
+     * by an append or by a write which extends the file, and returns the newly written bytes.
+     * The stream ends once it, this file or related {@link FileSystem} is closed.
+     * <p>
+     * The stream does not buffer data, so any number of streams may follow a file.
+     *
+     * @param position the start position in the file.
+     * @return stream of the file data.
+     * @throws IllegalArgumentException if {@code position} is negative.
+     * @throws IllegalStateException    if file or related {@link FileSystem} is closed
+     */
+    InputStream follow(long position);
+
+    /**
+     * Reserves data blocks for the first {@code size} bytes of this file without changing file size.
+     * Blocks are allocated contiguously whenever the storage has a long enough free run.
+     * Subsequent writes within reserved space do not allocate new blocks.
+     *
+     * @param size amount of bytes to reserve space for.
+     * @throws IllegalArgumentException if {@code size} is negative.
+     * @throws IllegalStateException    if file or related {@link FileSystem} is closed
+     * @throws IOException              if there is not enough free space or an I/O error occurs.
+     */
+    void preallocate(long size) throws IOException;
+
+    /**
+     * Truncates this file to {@code size} bytes.
+     * Data blocks past the new end of the file, including preallocated ones, are freed.
+     * If {@code size} is greater than file size, the file is extended with a hole.
+     *
+     * @param size new file size in bytes.
+     * @throws IllegalArgumentException if {@code size} is negative.
+     * @throws IllegalStateException    if file or related {@link FileSystem} is closed
+     * @throws IOException              if an I/O error occurs.
+     */
+    void truncate(long size) throws IOException;
+
+    /**
+     * Locks {@code length} bytes of this file starting from {@code position}, waiting until
+     * no other thread holds a conflicting lock of an overlapping range.
+     * The range may extend past the end of the file.
+     * <p>
+     * Reads and writes lock their range for their own duration, so writes of disjoint ranges
+     * run in parallel and only overlapping ones are serialized.
+     * A held lock keeps other threads from reading (exclusive lock) or writing (any lock)
+     * the range until it is released. Appends are not blocked, as they only write past the end of the file.
+     *
+     * @param position the start position of the range.
+     * @param length   amount of bytes in the range.
+     * @param shared   {@code true} to request a shared lock, {@code false} to request an exclusive one.
+     * @return lock to release once the range is processed.
+     * @throws IllegalArgumentException if {@code position} is negative or {@code length} is not positive.
+     * @throws IllegalStateException    if file or related {@link FileSystem} is closed
+     * @throws InterruptedIOException   if thread is interrupted while waiting for the lock.
+     * @throws IOException              if an I/O error occurs.
+     */
+    RangeLock lock(long position, long length, boolean shared) throws IOException;
+
+    /**
+     * Forces data and metadata written to this file so far to the storage device, whatever the
+     * {@link Durability} policy of related {@link FileSystem} is.
+     * As the storage is forced as a whole, writes to other files become durable too.
+     *
+     * @throws IllegalStateException if file or related {@link FileSystem} is closed
+     * @throws IOException           if an I/O error occurs.
+     */
+    void sync() throws IOException;
+
     /**
      * Get file size in bytes.
+     * Size is shared by all handles of the file and read without locking or accessing the storage,
+     * data of writes covered by the returned size is visible to subsequent reads.
      * Note, data can be stale.
      *
      * @return size of the file data space in bytes
@@ -116,6 +231,17 @@ public interface File extends AutoCloseable {
      */
     long getFileSize() throws IOException;
 
+    /**
+     * Get amount of bytes in data blocks allocated for this file.
+     * Can be less than file size for a sparse file, or greater if space is preallocated.
+     * Note, data can be stale.
+     *
+     * @return size of allocated data blocks in bytes
+     * @throws IllegalStateException if file or related {@link FileSystem} is closed
+     * @throws IOException           if an I/O error occurs.
+     */
+    long getAllocatedSize() throws IOException;
+
     /**
      * Closes {@code File}.
      * A closed file cannot perform IO operations.
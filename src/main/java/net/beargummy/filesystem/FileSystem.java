@@ -1,6 +1,9 @@
 package net.beargummy.filesystem;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * File system interface.
@@ -53,6 +56,191 @@ public interface FileSystem extends AutoCloseable {
      */
     void deleteFile(String name) throws IOException;
 
+    /**
+     * Delete {@link File file} or directory with given name along with all its content.
+     * <p>
+     * The subtree is walked once: data blocks and iNodes are freed in memory,
+     * then the entry is removed from its parent directory and bitmaps are written once.
+     * Directories inside the subtree are not rewritten.
+     *
+     * @param name file or directory name, same as for {@link #deleteFile(String)}.
+     * @throws NullPointerException     if file name is {@code null}.
+     * @throws IllegalArgumentException if file name is empty string or names the root directory.
+     * @throws FileNotFoundException    if the file does not exist.
+     * @throws IllegalStateException    if FileSystem is closed
+     * @throws IOException              if an I/O error occurs.
+     */
+    void deleteRecursively(String name) throws IOException;
+
+    /**
+     * Rename or move {@link File file} or directory, without copying its data.
+     * <p>
+     * Only the directory entry is moved: missing target directories are created first,
+     * then the entry is added to the target directory and removed from the source one.
+     * Concurrent operations observe either the old or the new name, never both or none.
+     * <p>
+     * An existing {@code to} file is replaced atomically: its entry is dropped and its data freed
+     * along with the move, so the name refers either to the old file or to the moved one.
+     * A directory is never replaced, nor is a file replaced with a directory.
+     * Nothing is changed, including missing target directories, if the rename fails.
+     *
+     * @param from current file name, same as for {@link #openFile(String)}.
+     * @param to   new file name, same as for {@link #createFile(String)}.
+     * @throws NullPointerException     if any of file names is {@code null}.
+     * @throws IllegalArgumentException if any of file names is empty string,
+     *                                  or directory is moved into itself.
+     * @throws FileNotFoundException    if the {@code from} file does not exist.
+     * @throws FileAlreadyExists        if the {@code to} file already exists and is a directory,
+     *                                  or {@code from} is a directory.
+     * @throws IllegalStateException    if FileSystem is closed
+     * @throws IOException              if an I/O error occurs.
+     */
+    void rename(String from, String to) throws IOException;
+
+    /**
+     * Create new empty {@link File files} with given names in one batch.
+     * <p>
+     * Missing parent directories are created first, then all files are added at once:
+     * iNodes are allocated together, and bitmaps and each touched directory block are written once.
+     * A batch larger than the journal holds in one transaction is handled in parts the same way,
+     * so a crash may leave files of first parts created.
+     * Failure of one item does not affect the others.
+     *
+     * @param names file names, same as for {@link #createFile(String)}.
+     * @return results in the order of {@code names}, each holding created {@link File}
+     * or the exception {@link #createFile(String)} would have thrown for that name.
+     * @throws NullPointerException  if {@code names} is {@code null}.
+     * @throws IllegalStateException if FileSystem is closed
+     * @throws IOException           if an I/O error occurs while writing shared structures.
+     */
+    List<BatchResult<File>> createFiles(Collection<String> names) throws IOException;
+
+    /**
+     * Delete {@link File files} with given names in one batch.
+     * <p>
+     * Bitmaps and each touched directory block are written once per batch, or per part of a batch larger than
+     * the journal holds in one transaction, so a crash may leave files of first parts deleted.
+     * A directory can be deleted in the same batch as its content if it follows the content in {@code names}.
+     * Failure of one item does not affect the others.
+     *
+     * @param names file names, same as for {@link #deleteFile(String)}.
+     * @return results in the order of {@code names}, each holding
+     * the exception {@link #deleteFile(String)} would have thrown for that name, if any.
+     * @throws NullPointerException  if {@code names} is {@code null}.
+     * @throws IllegalStateException if FileSystem is closed
+     * @throws IOException           if an I/O error occurs while writing shared structures.
+     */
+    List<BatchResult<Void>> deleteFiles(Collection<String> names) throws IOException;
+
+    /**
+     * List entries of directory with given name.
+     * <p>
+     * The {@code dir} can be either absolute path name with directories separated by FS path separator,
+     * simple directory name in root directory, or FS path separator itself for the root directory.
+     * <p>
+     * Returned stream is lazy: directory blocks are read one at a time as the stream is consumed,
+     * so the whole listing is never held in memory.
+     * Listing is weakly consistent: entries created or deleted while the stream is consumed
+     * may or may not be reported.
+     *
+     * @param dir directory name
+     * @return lazy stream of directory entries.
+     * @throws NullPointerException     if directory name is {@code null}.
+     * @throws IllegalArgumentException if directory name is empty string or names a file.
+     * @throws FileNotFoundException    if the directory does not exist.
+     * @throws IllegalStateException    if FileSystem is closed
+     * @throws IOException              if an I/O error occurs.
+     */
+    Stream<DirectoryEntry> list(String dir) throws IOException;
+
+    /**
+     * List entries of directory with given name, resuming after the entry the {@code cursor} was taken from.
+     * <p>
+     * Cursor is a position in directory order rather than an index, so entries neither created
+     * nor deleted between calls are reported exactly once over all pages, however directory has changed meanwhile.
+     *
+     * @param dir    directory name
+     * @param cursor {@link DirectoryEntry#getCursor() cursor} of the last consumed entry,
+     *               or {@code 0} to list from the beginning.
+     * @return lazy stream of directory entries.
+     * @throws NullPointerException     if directory name is {@code null}.
+     * @throws IllegalArgumentException if directory name is empty string or names a file,
+     *                                  or {@code cursor} is negative.
+     * @throws FileNotFoundException    if the directory does not exist.
+     * @throws IllegalStateException    if FileSystem is closed
+     * @throws IOException              if an I/O error occurs.
+     * @see #list(String)
+     */
+    Stream<DirectoryEntry> list(String dir, long cursor) throws IOException;
+
+    /**
+     * Open read-only view of the file system as it is at the moment of the call.
+     * Writers are not blocked by an open snapshot: blocks it reads are copied before they are overwritten.
+     * If there is not enough free space for such a copy, the snapshot is invalidated
+     * and its further reads fail with {@link IOException}.
+     * Closing the snapshot frees the copied blocks, as well as blocks freed while it was open.
+     *
+     * @return snapshot view, which rejects modifications with {@link IllegalStateException}.
+     * @throws IllegalStateException if FileSystem is closed or read-only.
+     * @throws IOException           if an I/O error occurs.
+     */
+    FileSystem openSnapshot() throws IOException;
+
+    /**
+     * Create persistent snapshot of the file system with given name, which survives restarts.
+     * Creation takes constant time whatever amount of data the file system holds:
+     * the snapshot shares all blocks with the file system, and a shared block is copied on its first write.
+     * Blocks are reclaimed once no snapshot shares them anymore.
+     *
+     * @param name snapshot name
+     * @throws NullPointerException     if snapshot name is {@code null}.
+     * @throws IllegalArgumentException if snapshot name is empty string, or such snapshot already exists.
+     * @throws IllegalStateException    if FileSystem is closed or read-only.
+     * @throws IOException              if there is not enough free space, or an I/O error occurs.
+     */
+    void createSnapshot(String name) throws IOException;
+
+    /**
+     * Delete persistent snapshot with given name, freeing blocks no one else shares.
+     *
+     * @param name snapshot name
+     * @throws NullPointerException     if snapshot name is {@code null}.
+     * @throws IllegalArgumentException if snapshot name is empty string, or there is no such snapshot.
+     * @throws IllegalStateException    if FileSystem is closed or read-only, or the snapshot is open.
+     * @throws IOException              if an I/O error occurs.
+     */
+    void deleteSnapshot(String name) throws IOException;
+
+    /**
+     * List names of persistent snapshots in the order they were created.
+     *
+     * @throws IllegalStateException if FileSystem is closed
+     */
+    List<String> listSnapshots();
+
+    /**
+     * Open read-only view of the file system as it was when persistent snapshot with given name was created.
+     * The snapshot can not be deleted until the view is closed.
+     *
+     * @param name snapshot name
+     * @return snapshot view, which rejects modifications with {@link IllegalStateException}.
+     * @throws NullPointerException     if snapshot name is {@code null}.
+     * @throws IllegalArgumentException if snapshot name is empty string, or there is no such snapshot.
+     * @throws IllegalStateException    if FileSystem is closed or read-only.
+     * @throws IOException              if an I/O error occurs.
+     * @see FileSystemManager#restoreSnapshot(java.io.File, int, int, String)
+     */
+    FileSystem openSnapshot(String name) throws IOException;
+
+    /**
+     * Forces all changes made so far to the storage device, whatever the {@link Durability} policy is.
+     * Concurrent calls share a single force of the storage.
+     *
+     * @throws IllegalStateException if FileSystem is closed
+     * @throws IOException           if an I/O error occurs.
+     */
+    void sync() throws IOException;
+
     /**
      * Closes {@code FileSystem} and underlying {@link BlockStorage}.
      *
@@ -0,0 +1,20 @@
+package net.beargummy.filesystem;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Executor for the file system internal parallel work, such as chunks of a parallel read.
+ * <p>
+ * Uses the common {@link ForkJoinPool}. On Java 21 and later, the multi-release jar replaces
+ * this class with one running every task on its own virtual thread.
+ */
+class FileSystemExecutor {
+
+    private FileSystemExecutor() {
+    }
+
+    static Executor defaultExecutor() {
+        return ForkJoinPool.commonPool();
+    }
+}
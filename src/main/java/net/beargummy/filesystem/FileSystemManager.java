@@ -1,8 +1,10 @@
 package net.beargummy.filesystem;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * Filesystem Manager.
@@ -19,6 +21,10 @@ public interface FileSystemManager {
      * Create new {@link FileSystem} on given path.
      * Initializes FS structure in the {@code file}.
      * Note: all content of the {@code file} will be erased.
+     * <p>
+     * Changes go through a journal, so restore after a crash replays them, unless {@code blockCount} is less
+     * than 1024: such a file system has no journal and writes everything in place,
+     * so a crash may leave it inconsistent.
      *
      * @param file       file to use as underlying storage.
      * @param blockSize  block size.
@@ -30,6 +36,39 @@ public interface FileSystemManager {
      */
     public FileSystem create(File file, int blockSize, int blockCount) throws IOException;
 
+    /**
+     * Create new {@link FileSystem} on given path, forcing written blocks to the device as {@code durability} says.
+     *
+     * @param file       file to use as underlying storage.
+     * @param blockSize  block size.
+     * @param blockCount number of blocks in file.
+     * @param durability policy of forcing written blocks to the device.
+     * @return new {@link FileSystem} instance associated with {@code file}.
+     * @throws IllegalArgumentException if {@code blockSize} or {@code blockCount} is non-positive
+     * @throws NullPointerException     if {@code file} or {@code durability} is {@code null}.
+     * @throws IOException              if an I/O error occurs.
+     * @see #create(File, int, int)
+     */
+    public FileSystem create(File file, int blockSize, int blockCount, Durability durability) throws IOException;
+
+    /**
+     * Create new {@link FileSystem} on given path, laying written blocks out as {@code writeMode} says.
+     * The mode is recorded in the {@code file}, so restore picks it up by itself.
+     *
+     * @param file       file to use as underlying storage.
+     * @param blockSize  block size.
+     * @param blockCount number of blocks in file.
+     * @param durability policy of forcing written blocks to the device.
+     * @param writeMode  layout of written blocks.
+     * @return new {@link FileSystem} instance associated with {@code file}.
+     * @throws IllegalArgumentException if {@code blockSize} or {@code blockCount} is non-positive,
+     *                                  or too small for the {@code writeMode}.
+     * @throws NullPointerException     if {@code file}, {@code durability} or {@code writeMode} is {@code null}.
+     * @throws IOException              if an I/O error occurs.
+     * @see #create(File, int, int, Durability)
+     */
+    public FileSystem create(File file, int blockSize, int blockCount, Durability durability, WriteMode writeMode) throws IOException;
+
     /**
      * Create new {@link FileSystem} on given path.
      * Reads existing FS structure and data from the {@code file}.
@@ -38,12 +77,71 @@ public interface FileSystemManager {
      * @param blockSize  block size.
      * @param blockCount number of blocks in file.
      * @return new {@link FileSystem} instance associated with {@code file}.
-     * @throws IllegalArgumentException if {@code blockSize} or {@code blockCount} is non-positive
+     * @throws IllegalArgumentException if {@code blockSize} or {@code blockCount} is non-positive,
+     *                                  or they do not match the superblock of the file system.
      * @throws NullPointerException     if {@code file} is {@code null}.
-     * @throws IOException              if an I/O error occurs.
+     * @throws IOException              if the {@code file} does not hold a file system, or an I/O error occurs.
      */
     public FileSystem restore(File file, int blockSize, int blockCount) throws IOException;
 
+    /**
+     * Restore {@link FileSystem} from given path, forcing written blocks to the device as {@code durability} says.
+     *
+     * @param file       file to use as underlying storage.
+     * @param blockSize  block size.
+     * @param blockCount number of blocks in file.
+     * @param durability policy of forcing written blocks to the device.
+     * @return new {@link FileSystem} instance associated with {@code file}.
+     * @throws IllegalArgumentException if {@code blockSize} or {@code blockCount} is non-positive
+     * @throws NullPointerException     if {@code file} or {@code durability} is {@code null}.
+     * @throws IOException              if the {@code file} does not hold a file system, or an I/O error occurs.
+     * @see #restore(File, int, int)
+     */
+    public FileSystem restore(File file, int blockSize, int blockCount, Durability durability) throws IOException;
+
+    /**
+     * Restore {@link FileSystem} from given path, taking block size and count from its superblock.
+     * Restore of a file system which was closed cleanly skips journal replay,
+     * and bitmaps are read on first allocation, so the restore reads just a few blocks.
+     *
+     * @param file file to use as underlying storage.
+     * @return new {@link FileSystem} instance associated with {@code file}.
+     * @throws NullPointerException if {@code file} is {@code null}.
+     * @throws IOException          if the {@code file} does not hold a file system, or an I/O error occurs.
+     */
+    public FileSystem restore(File file) throws IOException;
+
+    /**
+     * Restore {@link FileSystem} from given path, taking block size and count from its superblock,
+     * and forcing written blocks to the device as {@code durability} says.
+     *
+     * @param file       file to use as underlying storage.
+     * @param durability policy of forcing written blocks to the device.
+     * @return new {@link FileSystem} instance associated with {@code file}.
+     * @throws NullPointerException if {@code file} or {@code durability} is {@code null}.
+     * @throws IOException          if the {@code file} does not hold a file system, or an I/O error occurs.
+     * @see #restore(File)
+     */
+    public FileSystem restore(File file, Durability durability) throws IOException;
+
+    /**
+     * Restore {@link FileSystem} from given path, rolling it back to the persistent snapshot with given name.
+     * Changes made since the snapshot was created are lost, the snapshot itself is kept.
+     * A rollback torn by a crash is completed by the next restore.
+     *
+     * @param file       file to use as underlying storage.
+     * @param blockSize  block size.
+     * @param blockCount number of blocks in file.
+     * @param snapshot   name of the snapshot to roll back to.
+     * @return new {@link FileSystem} instance associated with {@code file}.
+     * @throws IllegalArgumentException if {@code blockSize} or {@code blockCount} is non-positive,
+     *                                  or there is no such snapshot.
+     * @throws NullPointerException     if {@code file} or {@code snapshot} is {@code null}.
+     * @throws IOException              if an I/O error occurs.
+     * @see FileSystem#createSnapshot(String)
+     */
+    public FileSystem restoreSnapshot(File file, int blockSize, int blockCount, String snapshot) throws IOException;
+
     class DefaultFileSystemManager implements FileSystemManager {
 
         private static class LazyHolder {
@@ -56,19 +154,145 @@ public interface FileSystemManager {
 
         @Override
         public FileSystem create(File file, int blockSize, int blockCount) throws IOException {
+            return create(file, blockSize, blockCount, Durability.none());
+        }
+
+        @Override
+        public FileSystem create(File file, int blockSize, int blockCount, Durability durability) throws IOException {
+            return create(file, blockSize, blockCount, durability, WriteMode.IN_PLACE);
+        }
+
+        @Override
+        public FileSystem create(File file, int blockSize, int blockCount, Durability durability, WriteMode writeMode) throws IOException {
+            if (durability == null) {
+                throw new NullPointerException("Durability is null");
+            }
+            if (writeMode == null) {
+                throw new NullPointerException("Write mode is null");
+            }
             RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
             BlockStorage blockStorage = new SingleFileBlockStorage(randomAccessFile, blockSize, blockCount);
-            DefaultFileSystem fileSystem = new DefaultFileSystem(blockStorage);
+            if (writeMode == WriteMode.LOG_STRUCTURED) {
+                try {
+                    blockStorage = LogStructuredBlockStorage.format(blockStorage, FileSystemExecutor.defaultExecutor());
+                } catch (IOException | RuntimeException e) {
+                    randomAccessFile.close();
+                    throw e;
+                }
+            }
+            blockStorage = new CoalescingBlockStorage(blockStorage);
+            DefaultFileSystem fileSystem = new DefaultFileSystem(1, blockStorage, durability);
             fileSystem.initFileSystem();
             return fileSystem;
         }
 
         @Override
         public FileSystem restore(File file, int blockSize, int blockCount) throws IOException {
+            return restore(file, blockSize, blockCount, Durability.none());
+        }
+
+        @Override
+        public FileSystem restore(File file, int blockSize, int blockCount, Durability durability) throws IOException {
+            if (durability == null) {
+                throw new NullPointerException("Durability is null");
+            }
+            BlockStorage blockStorage = openStorage(new RandomAccessFile(file, "rw"), blockSize, blockCount);
+            return restore(new DefaultFileSystem(1, blockStorage, durability), blockStorage);
+        }
+
+        /**
+         * Restore file system, closing its storage if the storage holds no file system to restore.
+         */
+        private static FileSystem restore(DefaultFileSystem fileSystem, BlockStorage blockStorage) throws IOException {
+            try {
+                fileSystem.restoreFileSystem();
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(blockStorage, e);
+                throw e;
+            }
+            return fileSystem;
+        }
+
+        @Override
+        public FileSystem restore(File file) throws IOException {
+            return restore(file, Durability.none());
+        }
+
+        @Override
+        public FileSystem restore(File file, Durability durability) throws IOException {
+            if (durability == null) {
+                throw new NullPointerException("Durability is null");
+            }
             RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-            BlockStorage blockStorage = new SingleFileBlockStorage(randomAccessFile, blockSize, blockCount);
-            DefaultFileSystem fileSystem = new DefaultFileSystem(blockStorage);
-            fileSystem.restoreFileSystem();
+            BlockStorage blockStorage;
+            SuperBlock superBlock;
+            try {
+                // superblock and log header start with the same fields, geometry of the file is in either
+                ByteBuffer header = ByteBuffer.allocate(SuperBlock.HEADER_SIZE);
+                randomAccessFile.seek(0);
+                randomAccessFile.readFully(header.array());
+                if (!SuperBlock.isSuperBlock(header) && !LogStructuredBlockStorage.isLogStructured(header)) {
+                    throw new IOException("File does not hold a file system image");
+                }
+                blockStorage = openStorage(randomAccessFile, header.getInt(4 + 4), header.getLong(4 + 4 + 4));
+            } catch (EOFException e) {
+                randomAccessFile.close();
+                throw new IOException("File is too short for a file system image", e);
+            } catch (IOException | RuntimeException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+            try {
+                superBlock = SuperBlock.read(blockStorage);
+            } catch (IOException e) {
+                closeQuietly(blockStorage, e);
+                throw e;
+            }
+            return restore(new DefaultFileSystem(superBlock.getBlocksPerInodeRatio(), blockStorage, durability), blockStorage);
+        }
+
+        /**
+         * Open storage in {@code file}, picking up the log if the file system was created in log-structured mode.
+         */
+        private static BlockStorage openStorage(RandomAccessFile file, int blockSize, long blockCount) throws IOException {
+            BlockStorage blockStorage = new SingleFileBlockStorage(file, blockSize, blockCount);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(blockSize);
+                blockStorage.readBlock(0, header.array());
+                if (LogStructuredBlockStorage.isLogStructured(header)) {
+                    blockStorage = LogStructuredBlockStorage.open(blockStorage, FileSystemExecutor.defaultExecutor());
+                }
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(blockStorage, e);
+                throw e;
+            }
+            return new CoalescingBlockStorage(blockStorage);
+        }
+
+        private static void closeQuietly(BlockStorage blockStorage, Exception cause) {
+            try {
+                blockStorage.close();
+            } catch (Exception suppressed) {
+                cause.addSuppressed(suppressed);
+            }
+        }
+
+        @Override
+        public FileSystem restoreSnapshot(File file, int blockSize, int blockCount, String snapshot) throws IOException {
+            if (snapshot == null) {
+                throw new NullPointerException("Snapshot name is null");
+            }
+            DefaultFileSystem fileSystem = (DefaultFileSystem) restore(file, blockSize, blockCount);
+            try {
+                fileSystem.rollbackToSnapshot(snapshot);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    fileSystem.close();
+                } catch (Exception suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
             return fileSystem;
         }
     }
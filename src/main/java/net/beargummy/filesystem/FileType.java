@@ -1,6 +1,9 @@
 package net.beargummy.filesystem;
 
-enum FileType {
+/**
+ * Type of a file system entry.
+ */
+public enum FileType {
 
     FILE(100),
     DIRECTORY(200);
@@ -0,0 +1,84 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Stream of file data, which waits for the file to grow instead of ending at its current size.
+ * <p>
+ * A follower keeps nothing but its position: data is read straight into the caller's buffer,
+ * and a blocked follower is only woken when the file size changes or the stream is closed.
+ */
+class FollowInputStream extends InputStream {
+
+    private final DefaultFileSystem fs;
+    private final DefaultFile file;
+    private final INode iNode;
+    private long position;
+    private volatile boolean closed;
+
+    FollowInputStream(DefaultFileSystem fs, DefaultFile file, INode iNode, long position) {
+        this.fs = fs;
+        this.file = file;
+        this.iNode = iNode;
+        this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] buffer = new byte[1];
+        int bytesRead = read(buffer, 0, 1);
+        return bytesRead == -1 ? -1 : buffer[0] & 0xff;
+    }
+
+    /**
+     * Reads up to {@code length} bytes available past the current position,
+     * waiting until the file grows past it.
+     *
+     * @return amount of bytes read, or {@code -1} if the stream, the file or its {@link FileSystem} is closed.
+     * @throws InterruptedIOException if thread is interrupted while waiting for data.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (buffer == null)
+            throw new NullPointerException("Buffer is null");
+        if (offset < 0 || length < 0 || length > buffer.length - offset)
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + offset + " + " + length + ") out of bounds for length " + buffer.length);
+        if (length == 0) {
+            return 0;
+        }
+
+        long size;
+        try {
+            size = iNode.awaitSize(position, this::isStopped);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file to grow");
+        }
+        if (size <= position) {
+            return -1;
+        }
+        int bytesRead = fs.readINodeData(iNode, buffer, offset, (int) Math.min(length, size - position), position);
+        position += bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public int available() {
+        if (isStopped()) {
+            return 0;
+        }
+        return (int) Math.min(Math.max(iNode.getSize() - position, 0), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        iNode.signalSizeWaiters();
+    }
+
+    private boolean isStopped() {
+        return closed || file.isClosed() || fs.isClosed();
+    }
+}
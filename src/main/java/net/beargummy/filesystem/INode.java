@@ -3,8 +3,15 @@ package net.beargummy.filesystem;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 class INode implements ByteBufferSerializable {
@@ -14,20 +21,41 @@ class INode implements ByteBufferSerializable {
             + 4 // type
             + 8 // size
             + 8 // dataBlocksCount
+            + 8 // allocatedBlocksCount
             + 12 * 8 // directDataBlocks
             + 8 // indirectDataBlock
             + 8 // doubleIndirectDataBlock
             ;
 
+    /**
+     * Marks data block index of a sparse file which has no data block allocated.
+     * Reading a hole yields zeros.
+     */
+    static final long HOLE = -1;
+
     private static final int typeTag = 2096414118;
 
     private final DefaultFileSystem fs;
 
     private final long iNodeNumber;
     private final FileType type;
-    private long size;
-
+    // shared by all handles of the file and read without locks, so written after the data it covers
+    private volatile long size;
+    // end of the byte range reserved by appends, never less than size
+    private final AtomicLong reservedSize;
+    // byte-range locks held on the file data, kept in memory only
+    private final RangeLocks rangeLocks = new RangeLocks();
+    // orders size publications of concurrent appends
+    private final Lock publicationLock = new ReentrantLock();
+    // threads waiting for the file growth
+    private final AtomicInteger sizeWaiters = new AtomicInteger();
+    private final Lock sizeLock = new ReentrantLock();
+    private final Condition sizeChanged = sizeLock.newCondition();
+
+    // amount of data block indexes mapped by this iNode, holes included
     private long dataBlocksCount;
+    // amount of data blocks actually allocated, holes excluded
+    private long allocatedBlocksCount;
 
     private final int directDataBlocksMaxCount = 12;
     // up to 12 direct data blocks
@@ -47,9 +75,13 @@ class INode implements ByteBufferSerializable {
         this.iNodeNumber = iNodeNumber;
         this.type = fileType;
         this.size = size;
+        this.reservedSize = new AtomicLong(size);
 
         this.dataBlocksCount = dataBlocks.size();
+        this.allocatedBlocksCount = dataBlocks.stream().filter(block -> block != HOLE).count();
         this.directDataBlocks = dataBlocks.stream().limit(directDataBlocksMaxCount).collect(Collectors.toList());
+        this.indirectDataBlockNode = HOLE;
+        this.doubleIndirectDataBlockNode = HOLE;
     }
 
     INode(DefaultFileSystem fs, ByteBuffer byteBuffer) {
@@ -63,22 +95,36 @@ class INode implements ByteBufferSerializable {
         this.iNodeNumber = byteBuffer.getLong();
         this.type = FileType.valueOf(byteBuffer.getInt());
         this.size = byteBuffer.getLong();
+        this.reservedSize = new AtomicLong(size);
         this.dataBlocksCount = byteBuffer.getLong();
+        this.allocatedBlocksCount = byteBuffer.getLong();
         int directDataBlocksCount = (int) Math.min(dataBlocksCount, directDataBlocksMaxCount);
         this.directDataBlocks = new ArrayList<>(directDataBlocksCount);
         for (int i = 0; i < directDataBlocksCount; i++) {
             directDataBlocks.add(byteBuffer.getLong());
         }
+        this.indirectDataBlockNode = byteBuffer.getLong();
+        this.doubleIndirectDataBlockNode = byteBuffer.getLong();
     }
 
     long getDataBlocksCount() {
         return dataBlocksCount;
     }
 
+    long getAllocatedBlocksCount() {
+        return allocatedBlocksCount;
+    }
+
+    /**
+     * Get data block number by its index in the file.
+     *
+     * @param index data block index.
+     * @return data block number, or {@link #HOLE} if there is no data block allocated for the index.
+     */
     long getBlockByIndex(long index) throws IOException {
         long currentIndex = index;
-        if (currentIndex >= dataBlocksCount) {
-            return -1;
+        if (currentIndex < 0 || currentIndex >= dataBlocksCount) {
+            return HOLE;
         }
 
         if (currentIndex < directDataBlocksMaxCount) {
@@ -87,139 +133,325 @@ class INode implements ByteBufferSerializable {
 
         currentIndex -= directDataBlocksMaxCount;
         if (currentIndex < indirectDataBlocksMaxCount) {
-            return getIndirectBlockByIndex(currentIndex);
+            return readIndirectBlockEntry(indirectDataBlockNode, currentIndex);
         }
 
         currentIndex -= indirectDataBlocksMaxCount;
         if (currentIndex < doubleIndirectDataBlocksMaxCount) {
-            return getDoubleIndirectDataBlockByIndex(currentIndex);
+            long indirectBlock = readIndirectBlockEntry(doubleIndirectDataBlockNode, currentIndex / indirectDataBlocksMaxCount);
+            return readIndirectBlockEntry(indirectBlock, currentIndex % indirectDataBlocksMaxCount);
         }
 
-        return -1;
-    }
-
-    private long getDoubleIndirectDataBlockByIndex(long currentIndex) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(8);
-        long indirectDataBlockOffset = (currentIndex / getInodesPerBlock()) * 8;
-        fs.readDataBlock(buffer.array(), 0, 8, indirectDataBlockOffset, doubleIndirectDataBlockNode);
-        long allocatedIndirectBlock = buffer.getLong();
-        long position = (currentIndex % getInodesPerBlock()) * 8;
-        buffer.clear();
-        fs.readDataBlock(buffer.array(), 0, 8, position, allocatedIndirectBlock);
-
-        return buffer.getLong();
+        return HOLE;
     }
 
-    private long getIndirectBlockByIndex(long currentIndex) throws IOException {
+    private long readIndirectBlockEntry(long indirectBlock, long entry) throws IOException {
+        if (indirectBlock == HOLE) {
+            return HOLE;
+        }
         ByteBuffer buffer = ByteBuffer.allocate(8);
-        long position = currentIndex * 8;
-        int readBytes = fs.readDataBlock(buffer.array(), 0, 8, position, indirectDataBlockNode);
+        int readBytes = fs.readDataBlock(buffer.array(), 0, 8, entry * 8, indirectBlock);
         if (readBytes != 8) {
-            return -1;
+            return HOLE;
         }
         return buffer.getLong();
     }
 
+    /**
+     * Get data block number by its index in the file, allocating it if the index is a hole
+     * or lies beyond mapped data blocks. Indexes skipped over become holes.
+     *
+     * @param index data block index.
+     * @return data block number, or {@link #HOLE} if there is no free space.
+     */
     long getOrCreateBlockByIndex(long index) throws IOException {
-        if (index < dataBlocksCount) {
-            return getBlockByIndex(index);
+        long dataBlock = getBlockByIndex(index);
+        if (dataBlock != HOLE) {
+            return dataBlock;
         }
 
-        return allocate();
+        return allocate(index);
     }
 
-    private long allocate() throws IOException {
-        long dNode = doAllocate();
-        if (dNode >= 0) {
-            dataBlocksCount += 1;
+    private long allocate(long index) throws IOException {
+        long dataBlock = fs.allocateDNode();
+        if (dataBlock < 0) {
+            return HOLE;
         }
-        return dNode;
+        if (!setBlockByIndex(index, dataBlock)) {
+            fs.freeDNode(dataBlock);
+            return HOLE;
+        }
+        return dataBlock;
+    }
+
+    /**
+     * Map already allocated {@code dataBlock} as the next data block of this iNode.
+     *
+     * @param dataBlock allocated data block.
+     * @return {@code true} if block was mapped, {@code false} if there is no room for it.
+     */
+    boolean appendBlock(long dataBlock) throws IOException {
+        return setBlockByIndex(dataBlocksCount, dataBlock);
     }
 
-    private long doAllocate() throws IOException {
-        long currentDataBlockIndex = dataBlocksCount;
-        if (currentDataBlockIndex < directDataBlocksMaxCount) {
-            return allocateDirectBlock();
+    /**
+     * Map already allocated {@code dataBlock} to the hole at {@code index}.
+     *
+     * @param index     data block index which is a hole.
+     * @param dataBlock allocated data block.
+     * @return {@code true} if block was mapped, {@code false} if there is no room for it.
+     */
+    boolean setBlockByIndex(long index, long dataBlock) throws IOException {
+        boolean mapped = doSetBlockByIndex(index, dataBlock);
+        if (mapped) {
+            dataBlocksCount = Math.max(dataBlocksCount, index + 1);
+            allocatedBlocksCount += 1;
         }
+        return mapped;
+    }
 
-        currentDataBlockIndex -= directDataBlocksMaxCount;
-        if (currentDataBlockIndex < indirectDataBlocksMaxCount) {
-            return allocateIndirectDataBlock(currentDataBlockIndex);
+    /**
+     * Free data block at {@code index} turning it into a hole.
+     *
+     * @param index data block index.
+     */
+    void freeBlockByIndex(long index) throws IOException {
+        long dataBlock = getBlockByIndex(index);
+        if (dataBlock == HOLE) {
+            return;
+        }
+        if (!doSetBlockByIndex(index, HOLE)) {
+            throw new IOException("Not enough free space to copy block shared with a snapshot");
         }
+        freeDataBlock(dataBlock);
+    }
 
-        currentDataBlockIndex -= indirectDataBlocksMaxCount;
-        if (currentDataBlockIndex < doubleIndirectDataBlocksMaxCount) {
-            return allocateDoubleIndirectDataBlock(currentDataBlockIndex);
+    /**
+     * Replace data block at {@code index}, which is shared with a named snapshot, by its copy,
+     * so it can be written in place without changing the snapshot.
+     *
+     * @param index       data block index.
+     * @param keepContent {@code false} if the block is going to be overwritten as a whole, so there is nothing to copy.
+     * @return data block number to write, or {@link #HOLE} if there is no free space for the copy.
+     */
+    long unshareBlockByIndex(long index, boolean keepContent) throws IOException {
+        long dataBlock = getBlockByIndex(index);
+        if (dataBlock == HOLE || !fs.isSharedDNode(dataBlock)) {
+            return dataBlock;
+        }
+        long copy = fs.copyDNode(dataBlock, keepContent);
+        if (copy < 0) {
+            return HOLE;
+        }
+        if (!doSetBlockByIndex(index, copy)) {
+            fs.freeDNode(copy);
+            return HOLE;
         }
+        fs.freeDNode(dataBlock);
+        return copy;
+    }
 
-        return -1;
+    private boolean doSetBlockByIndex(long index, long dataBlock) throws IOException {
+        long currentIndex = index;
+        if (currentIndex < directDataBlocksMaxCount) {
+            while (directDataBlocks.size() <= currentIndex) {
+                directDataBlocks.add(HOLE);
+            }
+            directDataBlocks.set((int) currentIndex, dataBlock);
+            return true;
+        }
+
+        currentIndex -= directDataBlocksMaxCount;
+        if (currentIndex < indirectDataBlocksMaxCount) {
+            long indirectBlock = indirectDataBlockNode == HOLE
+                    ? allocateIndirectBlock()
+                    : ownIndirectBlock(indirectDataBlockNode);
+            if (indirectBlock == HOLE) {
+                return false;
+            }
+            indirectDataBlockNode = indirectBlock;
+            writeIndirectBlockEntry(indirectDataBlockNode, currentIndex, dataBlock);
+            padDirectDataBlocks();
+            return true;
+        }
+
+        currentIndex -= indirectDataBlocksMaxCount;
+        if (currentIndex < doubleIndirectDataBlocksMaxCount) {
+            long doubleIndirectBlock = doubleIndirectDataBlockNode == HOLE
+                    ? allocateIndirectBlock()
+                    : ownIndirectBlock(doubleIndirectDataBlockNode);
+            if (doubleIndirectBlock == HOLE) {
+                return false;
+            }
+            doubleIndirectDataBlockNode = doubleIndirectBlock;
+            long table = currentIndex / indirectDataBlocksMaxCount;
+            long currentBlock = readIndirectBlockEntry(doubleIndirectDataBlockNode, table);
+            long indirectBlock = currentBlock == HOLE
+                    ? allocateIndirectBlock()
+                    : ownIndirectBlock(currentBlock);
+            if (indirectBlock == HOLE) {
+                return false;
+            }
+            if (indirectBlock != currentBlock) {
+                writeIndirectBlockEntry(doubleIndirectDataBlockNode, table, indirectBlock);
+            }
+            writeIndirectBlockEntry(indirectBlock, currentIndex % indirectDataBlocksMaxCount, dataBlock);
+            padDirectDataBlocks();
+            return true;
+        }
+
+        return false;
     }
 
-    private long allocateDirectBlock() {
-        long dataBlock = fs.allocateDNode();
-        if (dataBlock < 0) {
-            return -1;
+    private void padDirectDataBlocks() {
+        while (directDataBlocks.size() < directDataBlocksMaxCount) {
+            directDataBlocks.add(HOLE);
         }
-        directDataBlocks.add(dataBlock);
-        return dataBlock;
     }
 
-    private long allocateIndirectDataBlock(long currentDataBlockIndex) throws IOException {
-        if (currentDataBlockIndex == 0 && indirectDataBlockNode <= 0) {
-            long allocatedDNode = fs.allocateDNode();
-            if (allocatedDNode < 0) {
-                return -1;
-            }
-            indirectDataBlockNode = allocatedDNode;
+    /**
+     * Allocate a block for data block pointers with all entries set to {@link #HOLE}.
+     */
+    private long allocateIndirectBlock() throws IOException {
+        long allocatedDNode = fs.allocateDNode();
+        if (allocatedDNode < 0) {
+            return HOLE;
         }
-        long dataBlock = fs.allocateDNode();
-        if (dataBlock < 0) {
-            return -1;
+        fillIndirectBlockEntries(allocatedDNode, 0, indirectDataBlocksMaxCount);
+        return allocatedDNode;
+    }
+
+    /**
+     * Get block of data block pointers which can be written in place: a block shared with a named snapshot
+     * is replaced by its copy, which the caller should point to instead.
+     *
+     * @return block to write, or {@link #HOLE} if there is no free space for the copy.
+     */
+    private long ownIndirectBlock(long indirectBlock) throws IOException {
+        if (!fs.isSharedDNode(indirectBlock)) {
+            return indirectBlock;
+        }
+        long copy = fs.copyDNode(indirectBlock, true);
+        if (copy < 0) {
+            return HOLE;
         }
+        fs.freeDNode(indirectBlock);
+        return copy;
+    }
 
+    private long ownIndirectBlockOrFail(long indirectBlock) throws IOException {
+        long owned = ownIndirectBlock(indirectBlock);
+        if (owned == HOLE) {
+            throw new IOException("Not enough free space to copy block shared with a snapshot");
+        }
+        return owned;
+    }
+
+    private void fillIndirectBlockEntries(long indirectBlock, long from, long to) throws IOException {
+        int length = (int) (to - from) * 8;
+        byte[] holes = new byte[length];
+        Arrays.fill(holes, (byte) 0xFF); // every entry reads as HOLE
+        fs.writeDataBlock(holes, 0, length, from * 8, indirectBlock);
+    }
+
+    private void writeIndirectBlockEntry(long indirectBlock, long entry, long dataBlock) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(8).putLong(dataBlock);
-        fs.writeDataBlock(buffer.array(), 0, 8, currentDataBlockIndex * 8, indirectDataBlockNode);
-        return dataBlock;
+        fs.writeDataBlock(buffer.array(), 0, 8, entry * 8, indirectBlock);
     }
 
-    private long allocateDoubleIndirectDataBlock(long currentDataBlockIndex) throws IOException {
-        if (currentDataBlockIndex == 0 && doubleIndirectDataBlockNode <= 0) {
-            long allocatedDNode = fs.allocateDNode();
-            if (allocatedDNode < 0) {
-                return -1;
-            }
-            this.doubleIndirectDataBlockNode = allocatedDNode;
+    /**
+     * Free all data blocks starting from {@code blocksCount} index,
+     * including indirect blocks which are not needed anymore.
+     *
+     * @param blocksCount amount of data block indexes to keep.
+     */
+    void truncateBlocks(long blocksCount) throws IOException {
+        if (blocksCount >= dataBlocksCount) {
+            return;
         }
 
-        long indirectDataBlockOffset = (currentDataBlockIndex / indirectDataBlocksMaxCount) * 8;
-        long allocatedIndirectBlock;
-        if (currentDataBlockIndex % indirectDataBlocksMaxCount == 0) {
-            allocatedIndirectBlock = fs.allocateDNode();
-            if (allocatedIndirectBlock < 0) {
-                return -1;
+        for (long index = blocksCount; index < Math.min(dataBlocksCount, directDataBlocksMaxCount); index++) {
+            freeDataBlock(directDataBlocks.get((int) index));
+        }
+        if (blocksCount < directDataBlocksMaxCount) {
+            directDataBlocks.subList((int) blocksCount, directDataBlocks.size()).clear();
+        }
+
+        long indirectFrom = Math.max(blocksCount - directDataBlocksMaxCount, 0);
+        long indirectTo = Math.min(dataBlocksCount - directDataBlocksMaxCount, indirectDataBlocksMaxCount);
+        if (indirectTo > indirectFrom && indirectDataBlockNode != HOLE) {
+            if (indirectFrom > 0) {
+                // kept block is rewritten, so it is copied before any of its entries is freed
+                indirectDataBlockNode = ownIndirectBlockOrFail(indirectDataBlockNode);
+            }
+            freeIndirectBlockEntries(indirectDataBlockNode, indirectFrom, indirectTo);
+            if (indirectFrom == 0) {
+                fs.freeDNode(indirectDataBlockNode);
+                indirectDataBlockNode = HOLE;
+            } else {
+                fillIndirectBlockEntries(indirectDataBlockNode, indirectFrom, indirectTo);
             }
-            ByteBuffer buffer = ByteBuffer.allocate(8).putLong(allocatedIndirectBlock);
-            fs.writeDataBlock(buffer.array(), 0, 8, indirectDataBlockOffset, doubleIndirectDataBlockNode);
-        } else {
-            ByteBuffer buffer = ByteBuffer.allocate(8);
-            fs.readDataBlock(buffer.array(), 0, 8, indirectDataBlockOffset, doubleIndirectDataBlockNode);
-            allocatedIndirectBlock = buffer.getLong();
         }
 
-        long dataBlock = fs.allocateDNode();
-        if (dataBlock < 0) {
-            return -1;
+        long doubleIndirectFrom = Math.max(blocksCount - directDataBlocksMaxCount - indirectDataBlocksMaxCount, 0);
+        long doubleIndirectTo = dataBlocksCount - directDataBlocksMaxCount - indirectDataBlocksMaxCount;
+        if (doubleIndirectTo > doubleIndirectFrom && doubleIndirectDataBlockNode != HOLE) {
+            if (doubleIndirectFrom > 0) {
+                doubleIndirectDataBlockNode = ownIndirectBlockOrFail(doubleIndirectDataBlockNode);
+            }
+            long firstTable = doubleIndirectFrom / indirectDataBlocksMaxCount;
+            long lastTable = (doubleIndirectTo - 1) / indirectDataBlocksMaxCount;
+            for (long table = firstTable; table <= lastTable; table++) {
+                long indirectBlock = readIndirectBlockEntry(doubleIndirectDataBlockNode, table);
+                if (indirectBlock == HOLE) {
+                    continue;
+                }
+
+                long tableStart = table * indirectDataBlocksMaxCount;
+                long from = Math.max(doubleIndirectFrom - tableStart, 0);
+                long to = Math.min(doubleIndirectTo - tableStart, indirectDataBlocksMaxCount);
+                if (from > 0) {
+                    long owned = ownIndirectBlockOrFail(indirectBlock);
+                    if (owned != indirectBlock) {
+                        writeIndirectBlockEntry(doubleIndirectDataBlockNode, table, owned);
+                        indirectBlock = owned;
+                    }
+                }
+                freeIndirectBlockEntries(indirectBlock, from, to);
+                if (from == 0) {
+                    fs.freeDNode(indirectBlock);
+                    if (doubleIndirectFrom > 0) {
+                        // table is kept, so the pointer should not dangle
+                        writeIndirectBlockEntry(doubleIndirectDataBlockNode, table, HOLE);
+                    }
+                } else {
+                    fillIndirectBlockEntries(indirectBlock, from, to);
+                }
+            }
+            if (doubleIndirectFrom == 0) {
+                fs.freeDNode(doubleIndirectDataBlockNode);
+                doubleIndirectDataBlockNode = HOLE;
+            }
         }
 
-        ByteBuffer allocate = ByteBuffer.allocate(8).putLong(dataBlock);
-        long position = (currentDataBlockIndex % indirectDataBlocksMaxCount) * 8;
-        fs.writeDataBlock(allocate.array(), 0, 8, position, allocatedIndirectBlock);
+        dataBlocksCount = blocksCount;
+    }
 
-        return dataBlock;
+    private void freeIndirectBlockEntries(long indirectBlock, long from, long to) throws IOException {
+        int length = (int) (to - from) * 8;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        fs.readDataBlock(buffer.array(), 0, length, from * 8, indirectBlock);
+        while (buffer.hasRemaining()) {
+            freeDataBlock(buffer.getLong());
+        }
     }
 
-    private long getInodesPerBlock() {
-        return indirectDataBlocksMaxCount;
+    private void freeDataBlock(long dataBlock) throws IOException {
+        if (dataBlock != HOLE) {
+            fs.freeDNode(dataBlock);
+            allocatedBlocksCount -= 1;
+        }
     }
 
     public void writeTo(ByteBuffer byteBuffer) {
@@ -228,7 +460,8 @@ class INode implements ByteBufferSerializable {
                 .putLong(iNodeNumber)
                 .putInt(type.getCode())
                 .putLong(size)
-                .putLong(dataBlocksCount);
+                .putLong(dataBlocksCount)
+                .putLong(allocatedBlocksCount);
         for (int i = 0; i < Math.min(directDataBlocksMaxCount, dataBlocksCount); i++) {
             byteBuffer.putLong(directDataBlocks.get(i));
         }
@@ -250,6 +483,78 @@ class INode implements ByteBufferSerializable {
 
     void setSize(long size) {
         this.size = size;
+        this.reservedSize.set(size);
+        signalSizeWaiters();
+    }
+
+    /**
+     * Publish size of data written by appends, leaving reserved range intact.
+     */
+    void publishSize(long size) {
+        this.size = size;
+        signalSizeWaiters();
+    }
+
+    /**
+     * Wait until size becomes greater than {@code position}, or {@code stop} condition holds.
+     * The condition is rechecked on every {@link #signalSizeWaiters()}.
+     *
+     * @return current size, which is not greater than {@code position} if waiting is stopped.
+     */
+    long awaitSize(long position, BooleanSupplier stop) throws InterruptedException {
+        long currentSize = size;
+        if (currentSize > position) {
+            return currentSize;
+        }
+        // waiter is registered before size is rechecked, and writers check waiters after size is set,
+        // so either the waiter sees the new size or the writer sees the waiter
+        sizeWaiters.incrementAndGet();
+        sizeLock.lock();
+        try {
+            while ((currentSize = size) <= position && !stop.getAsBoolean()) {
+                sizeChanged.await();
+            }
+            return currentSize;
+        } finally {
+            sizeLock.unlock();
+            sizeWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake threads waiting in {@link #awaitSize(long, BooleanSupplier)}, if there are any.
+     */
+    void signalSizeWaiters() {
+        if (sizeWaiters.get() == 0) {
+            return;
+        }
+        sizeLock.lock();
+        try {
+            sizeChanged.signalAll();
+        } finally {
+            sizeLock.unlock();
+        }
+    }
+
+    Lock getPublicationLock() {
+        return publicationLock;
+    }
+
+    RangeLocks getRangeLocks() {
+        return rangeLocks;
+    }
+
+    long getReservedSize() {
+        return reservedSize.get();
+    }
+
+    /**
+     * Atomically reserve {@code [expected, expected + length)} range at the end of the file.
+     *
+     * @return {@code true} if no other range was reserved since {@code expected} was read.
+     */
+    boolean reserve(long expected, int length) {
+        return reservedSize.compareAndSet(expected, expected + length);
     }
 
     @Override
@@ -260,6 +565,7 @@ class INode implements ByteBufferSerializable {
         return iNodeNumber == iNode.iNodeNumber &&
                 size == iNode.size &&
                 dataBlocksCount == iNode.dataBlocksCount &&
+                allocatedBlocksCount == iNode.allocatedBlocksCount &&
                 indirectDataBlockNode == iNode.indirectDataBlockNode &&
                 doubleIndirectDataBlockNode == iNode.doubleIndirectDataBlockNode &&
                 Objects.equals(fs, iNode.fs) &&
@@ -269,7 +575,7 @@ class INode implements ByteBufferSerializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(fs, directDataBlocksMaxCount, indirectDataBlocksMaxCount, doubleIndirectDataBlocksMaxCount, iNodeNumber, type, size, dataBlocksCount, directDataBlocks, indirectDataBlockNode, doubleIndirectDataBlockNode);
+        return Objects.hash(fs, directDataBlocksMaxCount, indirectDataBlocksMaxCount, doubleIndirectDataBlocksMaxCount, iNodeNumber, type, size, dataBlocksCount, allocatedBlocksCount, directDataBlocks, indirectDataBlockNode, doubleIndirectDataBlockNode);
     }
 
     @Override
@@ -283,6 +589,7 @@ class INode implements ByteBufferSerializable {
                 ", type=" + type +
                 ", size=" + size +
                 ", dataBlocksCount=" + dataBlocksCount +
+                ", allocatedBlocksCount=" + allocatedBlocksCount +
                 ", directDataBlocks=" + directDataBlocks +
                 ", indirectDataBlockNode=" + indirectDataBlockNode +
                 ", doubleIndirectDataBlockNode=" + doubleIndirectDataBlockNode +
@@ -70,6 +70,11 @@ class InMemoryBlockStorage implements BlockStorage {
         return blocksCount;
     }
 
+    @Override
+    public void sync() {
+        assertNotClosed();
+    }
+
     @Override
     public void close() throws Exception {
         if (!closed.compareAndSet(false, true)) {
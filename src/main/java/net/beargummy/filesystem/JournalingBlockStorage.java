@@ -0,0 +1,763 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@link BlockStorage} decorator, which writes metadata blocks through a write-ahead journal.
+ * <p>
+ * The journal is a circular region of the storage: a header block pointing to the oldest record,
+ * followed by record blocks. A record is a header block with block numbers and a checksum,
+ * followed by the new content of those blocks.
+ * <p>
+ * Writes of a thread's transaction are buffered until it commits. Commit applies them to in-memory
+ * images of the blocks, which all readers see from then on, and queues them as consecutive records,
+ * the last of which is flagged so. A transaction may write at most {@link #getTransactionCapacity()} blocks.
+ * Records queued by concurrent transactions are written by whichever committer comes first,
+ * in one sequential batch (group commit). A checkpoint writes images to their home locations,
+ * in the background or when the journal is full, and only then the journal space is reused.
+ * <p>
+ * Metadata blocks written outside a transaction are committed one by one. Data blocks are journaled
+ * only within a transaction which asks for it, other data writes go straight to the storage.
+ * <p>
+ * Records written after the last checkpoint are replayed by {@link #recover()}, a transaction once its last record
+ * is read. Replay stops at the first record which fails its checksum, as it was torn by a crash,
+ * dropping records of the transaction in progress.
+ */
+class JournalingBlockStorage implements BlockStorage {
+
+    private static final int JOURNAL_MAGIC = 0x4a524e4c;
+    private static final int RECORD_MAGIC = 0x4a524543;
+    // magic, sequence, blocks count, checksum, last record flag
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4 + 4;
+    // checksum covers the header from the flag on
+    private static final int CHECKSUM_OFFSET = 4 + 8 + 4;
+    private static final int FLAG_OFFSET = CHECKSUM_OFFSET + 4;
+
+    private final BlockStorage blockStorage;
+    private final long journalStart;
+    private final long recordBlocks;
+    private final long dataNodesStartIndex;
+    private final int blockSize;
+    private final int maxRecordBlocks;
+    private final Executor executor;
+
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+    // committed content of blocks not written to their home locations yet
+    private final ConcurrentMap<Long, Image> images = new ConcurrentHashMap<>();
+    // content of blocks as of the last transaction written to the journal, which is what a checkpoint may write home:
+    // a later image may belong to a transaction not in the journal yet, and a crash would tear it
+    private final Map<Long, Image> journaled = new LinkedHashMap<>();
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition recordsWritten = lock.newCondition();
+    private final Deque<Record> queued = new ArrayDeque<>();
+    private long committedSequence;
+    // last record of the last transaction written
+    private long writtenSequence;
+    private boolean writing;
+    // positions in the record area, growing monotonically: end of the last transaction written and start of the oldest one
+    private long head;
+    private long tail;
+
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param journalStart        first block of the journal region.
+     * @param journalBlocks       blocks in the journal region, {@code 0} to write everything in place.
+     * @param dataNodesStartIndex first data block, blocks before it but the journal region are metadata.
+     * @param executor            executor for background checkpoints.
+     */
+    JournalingBlockStorage(BlockStorage blockStorage, long journalStart, long journalBlocks,
+                           long dataNodesStartIndex, Executor executor) {
+        this.blockStorage = blockStorage;
+        this.journalStart = journalStart;
+        this.recordBlocks = Math.max(journalBlocks - 1, 0);
+        this.dataNodesStartIndex = dataNodesStartIndex;
+        this.blockSize = blockStorage.getBlockSize();
+        this.maxRecordBlocks = (int) Math.min((blockSize - RECORD_HEADER_SIZE) / Long.BYTES, recordBlocks - 1);
+        this.executor = executor;
+    }
+
+    /**
+     * Check whether blocks are written through the journal.
+     */
+    boolean isEnabled() {
+        return maxRecordBlocks > 0;
+    }
+
+    /**
+     * Maximal amount of blocks a transaction may write: its records, headers included, have to fit into the journal.
+     *
+     * @return capacity, or {@code 0} if the journal is disabled.
+     */
+    int getTransactionCapacity() {
+        if (!isEnabled()) {
+            return 0;
+        }
+        // every maxRecordBlocks blocks take one more for the record header
+        return (int) (recordBlocks - (recordBlocks + maxRecordBlocks) / (maxRecordBlocks + 1));
+    }
+
+    /**
+     * Amount of blocks written by transaction of the current thread so far, {@code 0} if there is none.
+     */
+    int getTransactionBlocks() {
+        Transaction current = transaction.get();
+        return current != null ? current.writes.size() : 0;
+    }
+
+    /**
+     * Start an empty journal, discarding any records in the journal region.
+     */
+    void format() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        writeJournalHeader(0, 1);
+        lock.lock();
+        try {
+            images.clear();
+            journaled.clear();
+            queued.clear();
+            head = tail = 0;
+            committedSequence = writtenSequence = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replay records written after the last checkpoint to their home locations.
+     *
+     * @throws IOException if the journal region holds no journal header, as only {@link #format()} starts a journal.
+     */
+    void recover() throws IOException {
+        open(true);
+    }
+
+    /**
+     * Continue the journal after a clean shutdown, which checkpointed all records,
+     * reading just the journal header instead of looking for records to replay.
+     */
+    void resume() throws IOException {
+        open(false);
+    }
+
+    private void open(boolean replay) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(blockSize);
+        blockStorage.readBlock(journalStart, header.array());
+        if (header.getInt() != JOURNAL_MAGIC) {
+            throw new IOException("Journal is not formatted");
+        }
+        long position = header.getLong();
+        long sequence = header.getLong();
+
+        if (replay) {
+            List<byte[][]> transactionRecords = new ArrayList<>();
+            long transactionEnd = position;
+            byte[][] content;
+            while ((content = readRecord(position, sequence)) != null) {
+                transactionRecords.add(content);
+                position += content.length;
+                sequence++;
+                if (ByteBuffer.wrap(content[0]).getInt(FLAG_OFFSET) != 0) {
+                    for (byte[][] record : transactionRecords) {
+                        ByteBuffer recordHeader = ByteBuffer.wrap(record[0]);
+                        recordHeader.position(RECORD_HEADER_SIZE);
+                        for (int i = 1; i < record.length; i++) {
+                            blockStorage.writeBlock(recordHeader.getLong(), record[i]);
+                        }
+                    }
+                    transactionRecords.clear();
+                    transactionEnd = position;
+                }
+            }
+            // records of a torn transaction are overwritten, and their sequences are never reused,
+            // so replay does not take them for records written later
+            position = transactionEnd;
+            writeJournalHeader(position, sequence);
+        }
+
+        lock.lock();
+        try {
+            head = tail = position;
+            committedSequence = writtenSequence = sequence - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read record at {@code position}, header first.
+     *
+     * @return record blocks, or {@code null} if there is no valid record with given sequence.
+     */
+    private byte[][] readRecord(long position, long sequence) throws IOException {
+        byte[] headerBlock = new byte[blockSize];
+        blockStorage.readBlock(recordBlock(position), headerBlock);
+        ByteBuffer header = ByteBuffer.wrap(headerBlock);
+        if (header.getInt() != RECORD_MAGIC || header.getLong() != sequence) {
+            return null;
+        }
+        int count = header.getInt();
+        int checksum = header.getInt();
+        if (count <= 0 || count > maxRecordBlocks) {
+            return null;
+        }
+        byte[][] content = new byte[count + 1][];
+        content[0] = headerBlock;
+        for (int i = 1; i <= count; i++) {
+            content[i] = new byte[blockSize];
+            blockStorage.readBlock(recordBlock(position + i), content[i]);
+        }
+        return checksum(content, count) == checksum ? content : null;
+    }
+
+    /**
+     * Start transaction of the current thread, or join the one already in progress.
+     *
+     * @param journalData {@code true} to journal data blocks too, {@code false} to journal metadata only.
+     */
+    void begin(boolean journalData) {
+        if (!isEnabled()) {
+            return;
+        }
+        Transaction current = transaction.get();
+        if (current != null) {
+            current.depth++;
+            return;
+        }
+        transaction.set(new Transaction(journalData));
+    }
+
+    /**
+     * Commit transaction of the current thread: its writes become visible to readers and are queued to the journal.
+     * Should be called before locks guarding the written blocks are released, so records follow the order of changes.
+     * A joined transaction commits along with the outer one.
+     *
+     * @return commit to pass to {@link #awaitCommitted(long)}, once the locks are released.
+     */
+    long commit() throws IOException {
+        if (!isEnabled()) {
+            return 0;
+        }
+        Transaction current = transaction.get();
+        if (current == null) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        if (--current.depth > 0) {
+            return 0;
+        }
+        transaction.remove();
+        return commit(current.writes);
+    }
+
+    /**
+     * Commit transaction of the current thread and continue in a new one, joined as deep as the committed one,
+     * so an operation writing more than a transaction holds goes to the journal in parts.
+     * The new transaction commits after this one, so awaiting its commit awaits both.
+     */
+    void restart() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        Transaction current = transaction.get();
+        if (current == null) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        commit(current.writes);
+        Transaction next = new Transaction(current.journalData);
+        next.depth = current.depth;
+        transaction.set(next);
+    }
+
+    /**
+     * Wait until records up to the {@code commit} are written to the journal.
+     * Writes queued records itself, along with records of other transactions, unless another committer already does.
+     */
+    void awaitCommitted(long commit) throws IOException {
+        if (commit == 0) {
+            return;
+        }
+        boolean checkpointNeeded;
+        lock.lock();
+        try {
+            while (writtenSequence < commit) {
+                if (writing) {
+                    recordsWritten.awaitUninterruptibly();
+                    continue;
+                }
+                writing = true;
+                List<Record> batch = new ArrayList<>(queued);
+                queued.clear();
+                lock.unlock();
+                try {
+                    writeRecords(batch);
+                } finally {
+                    lock.lock();
+                    writing = false;
+                    recordsWritten.signalAll();
+                }
+            }
+            checkpointNeeded = head - tail > recordBlocks / 2;
+        } finally {
+            lock.unlock();
+        }
+        if (checkpointNeeded && checkpointScheduled.compareAndSet(false, true)) {
+            executor.execute(this::checkpointInBackground);
+        }
+    }
+
+    /**
+     * Apply writes to images and queue them as consecutive records, or reject them all if they do not fit into the journal.
+     */
+    private long commit(Map<Long, List<Write>> writes) throws IOException {
+        List<Long> blocks = new ArrayList<>(writes.keySet());
+        if (blocks.isEmpty()) {
+            return 0;
+        }
+        int records = (blocks.size() + maxRecordBlocks - 1) / maxRecordBlocks;
+        if (blocks.size() + records > recordBlocks) {
+            throw new IllegalStateException("Transaction of " + blocks.size()
+                    + " blocks does not fit into the journal, which holds " + getTransactionCapacity());
+        }
+        lock.lock();
+        try {
+            assertNotClosed();
+            for (int from = 0; from < blocks.size(); from += maxRecordBlocks) {
+                int to = Math.min(from + maxRecordBlocks, blocks.size());
+                commitRecord(blocks.subList(from, to), writes, from == 0 ? blocks.size() + records : 0, to == blocks.size());
+            }
+            return committedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply writes of {@code blocks} to their images and queue them as a record. Caller should hold the lock.
+     */
+    private void commitRecord(List<Long> blocks, Map<Long, List<Write>> writes, int transactionBlocks, boolean last)
+            throws IOException {
+        long sequence = ++committedSequence;
+        byte[][] content = new byte[blocks.size()][];
+        for (int i = 0; i < blocks.size(); i++) {
+            long blockNumber = blocks.get(i);
+            Image image = images.get(blockNumber);
+            byte[] data = image != null ? image.data.clone() : readHomeBlock(blockNumber);
+            long lastFullWrite = image != null ? image.lastFullWrite : 0;
+            for (Write write : writes.get(blockNumber)) {
+                // a later full block write of another transaction already has this one's content
+                if (write.sequence < lastFullWrite) {
+                    continue;
+                }
+                write.applyTo(data);
+                if (write.isFull(blockSize)) {
+                    lastFullWrite = write.sequence;
+                }
+            }
+            images.put(blockNumber, new Image(data, sequence, lastFullWrite));
+            content[i] = data;
+        }
+        queued.add(new Record(sequence, new ArrayList<>(blocks), content, transactionBlocks, last));
+    }
+
+    /**
+     * Write records to the journal one after another, checkpointing when a transaction does not fit into the rest of it.
+     * A transaction counts as written once its last record is, only then checkpoints may write its blocks home.
+     * Records of transactions not written because of an error are queued again for the next committer.
+     */
+    private void writeRecords(List<Record> batch) throws IOException {
+        // batch starts with the first record of a transaction, as they are queued together
+        int transactionStart = 0;
+        long position = 0;
+        Map<Long, Image> written = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            try {
+                if (record.transactionBlocks > 0) {
+                    transactionStart = i;
+                    boolean full;
+                    lock.lock();
+                    try {
+                        // only the committer writing records moves the head
+                        position = head;
+                        full = position + record.transactionBlocks - tail > recordBlocks;
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (full) {
+                        checkpoint();
+                    }
+                }
+                writeRecord(record, position);
+                position += record.blocks.size() + 1;
+                for (int j = 0; j < record.blocks.size(); j++) {
+                    written.put(record.blocks.get(j), new Image(record.content[j], record.sequence, 0));
+                }
+                if (record.last) {
+                    lock.lock();
+                    try {
+                        head = position;
+                        writtenSequence = record.sequence;
+                        journaled.putAll(written);
+                    } finally {
+                        lock.unlock();
+                    }
+                    written.clear();
+                }
+            } catch (IOException | RuntimeException e) {
+                lock.lock();
+                try {
+                    for (int j = batch.size() - 1; j >= transactionStart; j--) {
+                        queued.addFirst(batch.get(j));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void writeRecord(Record record, long position) throws IOException {
+        int count = record.blocks.size();
+        byte[][] content = new byte[count + 1][];
+        System.arraycopy(record.content, 0, content, 1, count);
+        ByteBuffer header = ByteBuffer.allocate(blockSize);
+        header.putInt(RECORD_MAGIC).putLong(record.sequence).putInt(count).putInt(0).putInt(record.last ? 1 : 0);
+        for (long blockNumber : record.blocks) {
+            header.putLong(blockNumber);
+        }
+        content[0] = header.array();
+        header.putInt(CHECKSUM_OFFSET, checksum(content, count));
+
+        for (int i = 1; i <= count; i++) {
+            blockStorage.writeBlock(recordBlock(position + i), content[i]);
+        }
+        // header goes last, though a torn record fails its checksum anyway
+        blockStorage.writeBlock(recordBlock(position), content[0]);
+    }
+
+    /**
+     * Checksum of the flag and block numbers in the header and of the content blocks.
+     */
+    private int checksum(byte[][] content, int count) {
+        CRC32 crc = new CRC32();
+        crc.update(content[0], FLAG_OFFSET, RECORD_HEADER_SIZE - FLAG_OFFSET + count * Long.BYTES);
+        for (int i = 1; i <= count; i++) {
+            crc.update(content[i]);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write content of transactions already in the journal to their home locations, then release the journal space.
+     * Images of transactions not in the journal yet stay in memory, their blocks get the last journaled content.
+     */
+    void checkpoint() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        checkpointLock.lock();
+        try {
+            long position;
+            long sequence;
+            List<Map.Entry<Long, Image>> written = new ArrayList<>();
+            lock.lock();
+            try {
+                position = head;
+                sequence = writtenSequence + 1;
+                if (position == tail) {
+                    return;
+                }
+                for (Map.Entry<Long, Image> entry : journaled.entrySet()) {
+                    written.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // records reach the device before their blocks are overwritten in place,
+            // and blocks reach it before the journal header releases the records
+            blockStorage.sync();
+            for (Map.Entry<Long, Image> entry : written) {
+                blockStorage.writeBlock(entry.getKey(), entry.getValue().data);
+            }
+            blockStorage.sync();
+            writeJournalHeader(position, sequence);
+
+            lock.lock();
+            try {
+                tail = position;
+                for (Map.Entry<Long, Image> entry : written) {
+                    long checkpointed = entry.getValue().sequence;
+                    journaled.remove(entry.getKey(), entry.getValue());
+                    images.computeIfPresent(entry.getKey(),
+                            (blockNumber, image) -> image.sequence <= checkpointed ? null : image);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private void checkpointInBackground() {
+        try {
+            if (!closed.get()) {
+                checkpoint();
+            }
+        } catch (IOException | RuntimeException e) {
+            // journal is left as it is, so the next checkpoint retries and reports the error to its caller
+        } finally {
+            checkpointScheduled.set(false);
+        }
+    }
+
+    private void writeJournalHeader(long tail, long sequence) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(blockSize);
+        header.putInt(JOURNAL_MAGIC).putLong(tail).putLong(sequence);
+        blockStorage.writeBlock(journalStart, header.array());
+    }
+
+    private long recordBlock(long position) {
+        return journalStart + 1 + position % recordBlocks;
+    }
+
+    private boolean isMetadata(long blockNumber) {
+        return blockNumber < dataNodesStartIndex
+                && (blockNumber < journalStart || blockNumber > journalStart + recordBlocks);
+    }
+
+    private byte[] readHomeBlock(long blockNumber) throws IOException {
+        byte[] data = new byte[blockSize];
+        blockStorage.readBlock(blockNumber, data);
+        return data;
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+        return readBlock(blockNumber, buffer, 0, buffer.length, 0);
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        if (!isEnabled()) {
+            return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+        }
+        Transaction current = transaction.get();
+        List<Write> own = current != null ? current.writes.get(blockNumber) : null;
+        Image image = images.get(blockNumber);
+        if (own == null && image == null) {
+            return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+        }
+        byte[] data = image != null ? image.data : readHomeBlock(blockNumber);
+        if (own != null) {
+            data = image != null ? data.clone() : data;
+            for (Write write : own) {
+                write.applyTo(data);
+            }
+        }
+        int bytesRead = (int) Math.max(Math.min(length, blockSize - position), 0);
+        System.arraycopy(data, (int) position, buffer, offset, bytesRead);
+        return bytesRead;
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer) throws IOException {
+        writeBlock(blockNumber, buffer, 0, buffer.length, 0);
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        if (!isEnabled()) {
+            blockStorage.writeBlock(blockNumber, buffer, offset, length, position);
+            return;
+        }
+        boolean metadata = isMetadata(blockNumber);
+        Transaction current = transaction.get();
+        if (!metadata && (current == null || !current.journalData)) {
+            writeBlockInPlace(blockNumber, buffer, offset, length, position);
+            return;
+        }
+        if (position + length > blockSize) {
+            throw new IllegalArgumentException("Data is greater than block for length=" + length + ", position=" + position);
+        }
+        Write write = new Write(writeSequence.incrementAndGet(), Arrays.copyOfRange(buffer, offset, offset + length), (int) position);
+        if (current != null) {
+            current.writes.computeIfAbsent(blockNumber, ignored -> new ArrayList<>()).add(write);
+        } else {
+            awaitCommitted(commit(Collections.singletonMap(blockNumber, Collections.singletonList(write))));
+        }
+    }
+
+    /**
+     * Write block straight to its home location, bypassing the journal and the current transaction.
+     */
+    void writeBlockInPlace(long blockNumber, byte[] buffer) throws IOException {
+        writeBlockInPlace(blockNumber, buffer, 0, buffer.length, 0);
+    }
+
+    private void writeBlockInPlace(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        if (isEnabled() && images.containsKey(blockNumber)) {
+            // a journaled block was freed and reused, replay must not overwrite it with the old content
+            awaitCommitted(lastCommitted());
+            checkpoint();
+        }
+        blockStorage.writeBlock(blockNumber, buffer, offset, length, position);
+    }
+
+    private long lastCommitted() {
+        lock.lock();
+        try {
+            return committedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes queued records, then forces the storage, so committed transactions survive a crash.
+     */
+    @Override
+    public void sync() throws IOException {
+        if (isEnabled()) {
+            awaitCommitted(lastCommitted());
+        }
+        blockStorage.sync();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long getBlocksCount() {
+        return blockStorage.getBlocksCount();
+    }
+
+    /**
+     * Writes queued records and checkpoints the journal, then closes underlying storage.
+     */
+    @Override
+    public void close() throws Exception {
+        if (isEnabled() && !closed.get()) {
+            flush();
+            closed.set(true);
+        }
+        blockStorage.close();
+    }
+
+    /**
+     * Write all committed records and checkpoint them, so every block is at its home location.
+     */
+    void flush() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        awaitCommitted(lastCommitted());
+        checkpoint();
+    }
+
+    private void assertNotClosed() {
+        if (closed.get()) {
+            throw new IllegalStateException("Block storage is closed");
+        }
+    }
+
+    /**
+     * Buffered writes of a thread's transaction, by block.
+     */
+    private static final class Transaction {
+
+        private final boolean journalData;
+        private final Map<Long, List<Write>> writes = new LinkedHashMap<>();
+        private int depth = 1;
+
+        private Transaction(boolean journalData) {
+            this.journalData = journalData;
+        }
+    }
+
+    private static final class Write {
+
+        private final long sequence;
+        private final byte[] data;
+        private final int position;
+
+        private Write(long sequence, byte[] data, int position) {
+            this.sequence = sequence;
+            this.data = data;
+            this.position = position;
+        }
+
+        private boolean isFull(int blockSize) {
+            return position == 0 && data.length == blockSize;
+        }
+
+        private void applyTo(byte[] block) {
+            System.arraycopy(data, 0, block, position, data.length);
+        }
+    }
+
+    /**
+     * Committed block content, which is never modified.
+     */
+    private static final class Image {
+
+        private final byte[] data;
+        private final long sequence;
+        private final long lastFullWrite;
+
+        private Image(byte[] data, long sequence, long lastFullWrite) {
+            this.data = data;
+            this.sequence = sequence;
+            this.lastFullWrite = lastFullWrite;
+        }
+    }
+
+    private static final class Record {
+
+        private final long sequence;
+        private final List<Long> blocks;
+        private final byte[][] content;
+        // blocks of all records of the transaction, headers included, on its first record only
+        private final int transactionBlocks;
+        private final boolean last;
+
+        private Record(long sequence, List<Long> blocks, byte[][] content, int transactionBlocks, boolean last) {
+            this.sequence = sequence;
+            this.blocks = blocks;
+            this.content = content;
+            this.transactionBlocks = transactionBlocks;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,684 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@link BlockStorage} decorator, which appends every written block to a log instead of writing it in place,
+ * so scattered small writes reach the device as large sequential ones.
+ * <p>
+ * The log is split into segments. Written blocks are buffered and appended to the head segment
+ * as a partial segment: a summary block listing which blocks follow it, then the blocks themselves,
+ * in one sequential write. Block map locates the current version of every block, older versions are dead.
+ * iNodes, bitmaps and the journal are ordinary blocks here, so the block map serves as the iNode map too.
+ * <p>
+ * Block map is saved by checkpoints, alternating between two checkpoint regions.
+ * Partial segments written after the last checkpoint are rolled forward on open: each summary carries
+ * its sequence, a checksum and the segment the log continues in, so roll-forward stops at the first
+ * partial segment torn by a crash.
+ * <p>
+ * Cleaner copies live blocks of a segment to the head, so the segment can be reused. Victims are chosen
+ * by cost-benefit: free space gained times age of the data, divided by the cost of reading the segment
+ * and writing its live blocks back, so cold segments are cleaned before hot ones of the same utilization.
+ * Cleaner runs in the background once free segments are scarce, and in the writer if they run out.
+ * Segments freed since the last checkpoint are reused only after the next one, as it may still refer to them.
+ * <p>
+ * Only a share of the log capacity is exposed as blocks, the rest keeps cleaning cheap.
+ */
+class LogStructuredBlockStorage implements BlockStorage {
+
+    private static final int typeTag = 0x4c4f4753;
+    private static final int VERSION = 1;
+    private static final int SUMMARY_MAGIC = 0x53554d4d;
+    private static final int CHECKPOINT_MAGIC = 0x43484b50;
+
+    // typeTag, version, block size, blocks count, segment blocks, segments count, logical blocks count,
+    // checkpoint region blocks; starts as the superblock does, so an image is recognized by either
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 8 + 4;
+    // magic, sequence, next segment, blocks count, checksum
+    private static final int SUMMARY_HEADER_SIZE = 4 + 8 + 4 + 4 + 4;
+    private static final int SUMMARY_CHECKSUM_OFFSET = 4 + 8 + 4 + 4;
+    // magic, checkpoint sequence, write sequence, head segment, head offset, next segment, checksum
+    private static final int CHECKPOINT_HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4 + 4;
+    private static final int CHECKPOINT_CHECKSUM_OFFSET = 4 + 8 + 8 + 4 + 4 + 4;
+
+    private static final int DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    private static final int MIN_SEGMENT_BLOCKS = 4;
+    private static final int MIN_SEGMENTS = 8;
+    // segments only the cleaner takes, so it always has room for live blocks it moves
+    private static final int RESERVED_SEGMENTS = 2;
+    private static final int UTILIZATION_PERCENT = 80;
+    // bounds roll-forward on open
+    private static final int CHECKPOINT_INTERVAL_SEGMENTS = 16;
+    private static final long UNMAPPED = -1;
+
+    private final BlockStorage blockStorage;
+    private final Executor executor;
+    private final int blockSize;
+    private final int segmentBlocks;
+    private final int segmentsCount;
+    private final long logicalBlocks;
+    private final int checkpointBlocks;
+    private final long segmentsStart;
+    private final int summaryCapacity;
+    private final int lowWatermark;
+    private final int highWatermark;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // log slot of every block, UNMAPPED if the block was never written
+    private final long[] blockMap;
+    // block held by every log slot, UNMAPPED for summaries, unused and dead slots
+    private final long[] slotOwners;
+    private final int[] liveBlocks;
+    // write sequence of the latest partial segment of every segment, age of its data is measured by it
+    private final long[] segmentWrites;
+    private final Deque<Integer> freeSegments = new ArrayDeque<>();
+    // freed since the last checkpoint, which may still refer to them
+    private final List<Integer> releasedSegments = new ArrayList<>();
+    // blocks of the next partial segment, in the order of their slots
+    private final Map<Long, byte[]> pending = new LinkedHashMap<>();
+
+    private int headSegment;
+    private int headOffset;
+    private int nextSegment;
+    private long writeSequence;
+    private long checkpointSequence;
+    private int sealedSinceCheckpoint;
+
+    private final AtomicBoolean cleanerScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private LogStructuredBlockStorage(BlockStorage blockStorage, Executor executor, int segmentBlocks,
+                                      int segmentsCount, long logicalBlocks, int checkpointBlocks) {
+        this.blockStorage = blockStorage;
+        this.executor = executor;
+        this.blockSize = blockStorage.getBlockSize();
+        this.segmentBlocks = segmentBlocks;
+        this.segmentsCount = segmentsCount;
+        this.logicalBlocks = logicalBlocks;
+        this.checkpointBlocks = checkpointBlocks;
+        this.segmentsStart = 1 + 2L * checkpointBlocks;
+        this.summaryCapacity = summaryCapacity(blockSize);
+        this.lowWatermark = Math.max(RESERVED_SEGMENTS + 2, segmentsCount / 8);
+        this.highWatermark = Math.max(lowWatermark + 2, segmentsCount / 4);
+
+        this.blockMap = new long[(int) logicalBlocks];
+        this.slotOwners = new long[segmentsCount * segmentBlocks];
+        this.liveBlocks = new int[segmentsCount];
+        this.segmentWrites = new long[segmentsCount];
+        Arrays.fill(blockMap, UNMAPPED);
+        Arrays.fill(slotOwners, UNMAPPED);
+    }
+
+    /**
+     * Start an empty log on {@code blockStorage}, discarding its content.
+     *
+     * @param executor executor for background cleaning.
+     * @throws IllegalArgumentException if the storage is too small for the log.
+     */
+    static LogStructuredBlockStorage format(BlockStorage blockStorage, Executor executor) throws IOException {
+        int blockSize = blockStorage.getBlockSize();
+        long blocksCount = blockStorage.getBlocksCount();
+        if (blockSize < Math.max(HEADER_SIZE, SUMMARY_HEADER_SIZE + 8 * MIN_SEGMENT_BLOCKS)) {
+            throw new IllegalArgumentException("Block size is too small for log-structured mode: " + blockSize);
+        }
+        if (blocksCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Storage is too large for log-structured mode: " + blocksCount);
+        }
+        int segmentBlocks = (int) Math.max(MIN_SEGMENT_BLOCKS, Math.min(blocksCount / (2 * MIN_SEGMENTS),
+                Math.min(DEFAULT_SEGMENT_BYTES / blockSize, summaryCapacity(blockSize) + 1)));
+        // checkpoint regions are sized for as many segments as would fit without them
+        long maxSegments = (blocksCount - 1) / segmentBlocks;
+        long checkpointBytes = CHECKPOINT_HEADER_SIZE + 8 * maxSegments * (segmentBlocks - 1) + 8 * maxSegments;
+        int checkpointBlocks = (int) ((checkpointBytes + blockSize - 1) / blockSize);
+        long segmentsCount = (blocksCount - 1 - 2L * checkpointBlocks) / segmentBlocks;
+        if (segmentsCount < MIN_SEGMENTS) {
+            throw new IllegalArgumentException("Storage is too small for log-structured mode: " + blocksCount + " blocks");
+        }
+        long logicalBlocks = (segmentsCount - RESERVED_SEGMENTS) * (segmentBlocks - 1) * UTILIZATION_PERCENT / 100;
+
+        LogStructuredBlockStorage storage = new LogStructuredBlockStorage(blockStorage, executor, segmentBlocks,
+                (int) segmentsCount, logicalBlocks, checkpointBlocks);
+        ByteBuffer header = ByteBuffer.allocate(blockSize);
+        header.putInt(typeTag)
+                .putInt(VERSION)
+                .putInt(blockSize)
+                .putLong(blocksCount)
+                .putInt(segmentBlocks)
+                .putInt((int) segmentsCount)
+                .putLong(logicalBlocks)
+                .putInt(checkpointBlocks);
+        blockStorage.writeBlock(0, header.array());
+        // the other region holds no valid checkpoint until the second one is written
+        blockStorage.writeBlock(1, new byte[blockSize]);
+
+        storage.headSegment = 0;
+        storage.nextSegment = 1;
+        for (int segment = 2; segment < segmentsCount; segment++) {
+            storage.freeSegments.add(segment);
+        }
+        storage.checkpoint();
+        return storage;
+    }
+
+    /**
+     * Open the log on {@code blockStorage}, rolling forward partial segments written after the last checkpoint.
+     *
+     * @param executor executor for background cleaning.
+     * @throws IllegalArgumentException if the storage geometry does not match the log header.
+     * @throws IOException              if the storage does not hold a log, or an I/O error occurs.
+     */
+    static LogStructuredBlockStorage open(BlockStorage blockStorage, Executor executor) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(blockStorage.getBlockSize());
+        blockStorage.readBlock(0, header.array());
+        if (!isLogStructured(header)) {
+            throw new IOException("Storage does not hold a log");
+        }
+        header.position(4);
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported log version: " + version);
+        }
+        int blockSize = header.getInt();
+        long blocksCount = header.getLong();
+        if (blockSize != blockStorage.getBlockSize() || blocksCount != blockStorage.getBlocksCount()) {
+            throw new IllegalArgumentException("Storage geometry does not match the log header: block size "
+                    + blockSize + ", blocks count " + blocksCount);
+        }
+        int segmentBlocks = header.getInt();
+        int segmentsCount = header.getInt();
+        long logicalBlocks = header.getLong();
+        int checkpointBlocks = header.getInt();
+
+        LogStructuredBlockStorage storage = new LogStructuredBlockStorage(blockStorage, executor, segmentBlocks,
+                segmentsCount, logicalBlocks, checkpointBlocks);
+        storage.recover();
+        return storage;
+    }
+
+    /**
+     * Check whether {@code byteBuffer} starts with a log header, leaving its position intact.
+     */
+    static boolean isLogStructured(ByteBuffer byteBuffer) {
+        return byteBuffer.remaining() >= 4 && byteBuffer.getInt(byteBuffer.position()) == typeTag;
+    }
+
+    private static int summaryCapacity(int blockSize) {
+        return (blockSize - SUMMARY_HEADER_SIZE) / 8;
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+        return readBlock(blockNumber, buffer, 0, Math.min(buffer.length, blockSize), 0);
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        assertNotClosed();
+        assertBlockNumberValid(blockNumber);
+        lock.readLock().lock();
+        try {
+            long slot = blockMap[(int) blockNumber];
+            if (slot == UNMAPPED) {
+                Arrays.fill(buffer, offset, offset + length, (byte) 0);
+                return length;
+            }
+            byte[] buffered = pending.get(blockNumber);
+            if (buffered != null) {
+                System.arraycopy(buffered, (int) position, buffer, offset, length);
+                return length;
+            }
+            return blockStorage.readBlock(segmentsStart + slot, buffer, offset, length, position);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer) throws IOException {
+        writeBlock(blockNumber, buffer, 0, buffer.length, 0);
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        assertNotClosed();
+        if (buffer == null) {
+            throw new NullPointerException("Buffer is null");
+        }
+        assertBlockNumberValid(blockNumber);
+        if (length + position > blockSize) {
+            throw new IllegalArgumentException("Data is greater than block for length=" + length + ", position=" + position);
+        }
+        lock.writeLock().lock();
+        try {
+            // goes first, as the cleaner may move the block to the partial segment
+            ensureFreeSegments();
+            byte[] buffered = pending.get(blockNumber);
+            if (buffered != null) {
+                // rewritten before it reached the log, so it keeps its slot
+                System.arraycopy(buffer, offset, buffered, (int) position, length);
+                return;
+            }
+            byte[] data = new byte[blockSize];
+            if (length < blockSize) {
+                readCurrent(blockNumber, data);
+            }
+            System.arraycopy(buffer, offset, data, (int) position, length);
+            append(blockNumber, data);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes buffered blocks to the log, then forces the storage.
+     * Blocks written so far survive a crash, as they are rolled forward on open.
+     */
+    @Override
+    public void sync() throws IOException {
+        assertNotClosed();
+        lock.writeLock().lock();
+        try {
+            flush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        blockStorage.sync();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get amount of blocks exposed by the log, which is less than amount of blocks of the underlying storage.
+     */
+    @Override
+    public long getBlocksCount() {
+        return logicalBlocks;
+    }
+
+    /**
+     * Writes buffered blocks and a checkpoint, so the next open has nothing to roll forward.
+     */
+    @Override
+    public void close() throws Exception {
+        lock.writeLock().lock();
+        try {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            checkpoint();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        blockStorage.close();
+    }
+
+    private void readCurrent(long blockNumber, byte[] data) throws IOException {
+        long slot = blockMap[(int) blockNumber];
+        if (slot != UNMAPPED) {
+            blockStorage.readBlock(segmentsStart + slot, data, 0, blockSize, 0);
+        }
+    }
+
+    /**
+     * Buffer block as the next one of the partial segment, writing the partial segment first if it is full.
+     */
+    private void append(long blockNumber, byte[] data) throws IOException {
+        if (pending.size() == Math.min(segmentBlocks - headOffset - 1, summaryCapacity)) {
+            flush();
+        }
+        if (segmentBlocks - headOffset < 2) {
+            advance();
+        }
+        long slot = (long) headSegment * segmentBlocks + headOffset + 1 + pending.size();
+        pending.put(blockNumber, data);
+        remap(blockNumber, slot);
+    }
+
+    private void remap(long blockNumber, long slot) {
+        long oldSlot = blockMap[(int) blockNumber];
+        if (oldSlot != UNMAPPED) {
+            slotOwners[(int) oldSlot] = UNMAPPED;
+            int segment = (int) (oldSlot / segmentBlocks);
+            if (--liveBlocks[segment] == 0 && segment != headSegment) {
+                releasedSegments.add(segment);
+            }
+        }
+        blockMap[(int) blockNumber] = slot;
+        slotOwners[(int) slot] = blockNumber;
+        liveBlocks[(int) (slot / segmentBlocks)]++;
+    }
+
+    /**
+     * Write buffered blocks to the head segment as one partial segment.
+     */
+    private void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        int count = pending.size();
+        byte[] content = new byte[(count + 1) * blockSize];
+        ByteBuffer summary = ByteBuffer.wrap(content, 0, blockSize);
+        summary.putInt(SUMMARY_MAGIC)
+                .putLong(writeSequence)
+                .putInt(nextSegment)
+                .putInt(count)
+                .putInt(0);
+        int index = 1;
+        for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+            summary.putLong(entry.getKey());
+            System.arraycopy(entry.getValue(), 0, content, index * blockSize, blockSize);
+            index++;
+        }
+        summary.putInt(SUMMARY_CHECKSUM_OFFSET, checksum(content));
+        blockStorage.writeBlocks(segmentsStart + (long) headSegment * segmentBlocks + headOffset, content, count + 1);
+
+        pending.clear();
+        segmentWrites[headSegment] = writeSequence;
+        writeSequence++;
+        headOffset += count + 1;
+    }
+
+    /**
+     * Move to the next segment once the head segment is full. The one after it is taken first,
+     * so the log is left intact if there is none.
+     */
+    private void advance() throws IOException {
+        int next = takeSegment();
+        int sealed = headSegment;
+        headSegment = nextSegment;
+        headOffset = 0;
+        nextSegment = next;
+        if (liveBlocks[sealed] == 0) {
+            releasedSegments.add(sealed);
+        }
+        if (++sealedSinceCheckpoint >= CHECKPOINT_INTERVAL_SEGMENTS) {
+            checkpoint();
+        }
+        if (freeSegments.size() < lowWatermark && cleanerScheduled.compareAndSet(false, true)) {
+            executor.execute(this::cleanInBackground);
+        }
+    }
+
+    private int takeSegment() throws IOException {
+        Integer segment = freeSegments.poll();
+        if (segment == null) {
+            throw new IOException("Not enough free space in the log");
+        }
+        return segment;
+    }
+
+    /**
+     * Make sure the writer leaves the segments reserved for the cleaner intact,
+     * reclaiming segments freed since the last checkpoint, or cleaning segments with the least live blocks.
+     */
+    private void ensureFreeSegments() throws IOException {
+        while (freeSegments.size() <= RESERVED_SEGMENTS) {
+            if (!releasedSegments.isEmpty()) {
+                checkpoint();
+                continue;
+            }
+            int victim = selectVictim(true);
+            // live blocks of a victim take at most one more segment
+            if (victim < 0 || freeSegments.isEmpty()) {
+                throw new IOException("Not enough free space in the log");
+            }
+            clean(victim);
+        }
+    }
+
+    /**
+     * Select a segment to clean among the ones with dead blocks.
+     *
+     * @param greedy {@code true} to select the one with the least live blocks, regardless of its age.
+     * @return segment with the best cost-benefit, or -1 if cleaning would gain nothing.
+     */
+    int selectVictim(boolean greedy) {
+        int victim = -1;
+        double best = 0;
+        int capacity = segmentBlocks - 1;
+        for (int segment = 0; segment < segmentsCount; segment++) {
+            if (segment == headSegment || segment == nextSegment || liveBlocks[segment] == 0) {
+                continue;
+            }
+            double utilization = (double) liveBlocks[segment] / capacity;
+            double score = greedy
+                    ? 1 - utilization
+                    // space gained times age, divided by reading the segment and writing live blocks back
+                    : (1 - utilization) * (writeSequence - segmentWrites[segment]) / (1 + utilization);
+            if (score > best) {
+                best = score;
+                victim = segment;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Move live blocks of the segment to the head, so the segment is freed once they are checkpointed.
+     */
+    private void clean(int victim) throws IOException {
+        byte[] content = new byte[segmentBlocks * blockSize];
+        long firstSlot = (long) victim * segmentBlocks;
+        blockStorage.readBlocks(segmentsStart + firstSlot, content, segmentBlocks);
+        // owners are taken first: once the last one is moved, the victim may be reused while this loop runs
+        long[] owners = Arrays.copyOfRange(slotOwners, (int) firstSlot, (int) firstSlot + segmentBlocks);
+        for (int offset = 0; offset < segmentBlocks; offset++) {
+            if (owners[offset] != UNMAPPED) {
+                append(owners[offset], Arrays.copyOfRange(content, offset * blockSize, (offset + 1) * blockSize));
+            }
+        }
+    }
+
+    private void cleanInBackground() {
+        try {
+            for (int cleaned = 0; cleaned < segmentsCount; cleaned++) {
+                lock.writeLock().lock();
+                try {
+                    if (closed.get() || freeSegments.size() + releasedSegments.size() >= highWatermark) {
+                        break;
+                    }
+                    if (freeSegments.size() <= RESERVED_SEGMENTS && !releasedSegments.isEmpty()) {
+                        checkpoint();
+                        continue;
+                    }
+                    int victim = selectVictim(false);
+                    if (victim < 0 || freeSegments.isEmpty()) {
+                        break;
+                    }
+                    clean(victim);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            lock.writeLock().lock();
+            try {
+                if (!closed.get() && !releasedSegments.isEmpty()) {
+                    checkpoint();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the writer cleans in the foreground once it runs out of free segments
+        } finally {
+            cleanerScheduled.set(false);
+        }
+    }
+
+    /**
+     * Write block map to the older checkpoint region, then reuse segments freed since the previous checkpoint.
+     */
+    private void checkpoint() throws IOException {
+        flush();
+        long sequence = checkpointSequence + 1;
+        byte[] content = new byte[checkpointBlocks * blockSize];
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        buffer.putInt(CHECKPOINT_MAGIC)
+                .putLong(sequence)
+                .putLong(writeSequence)
+                .putInt(headSegment)
+                .putInt(headOffset)
+                .putInt(nextSegment)
+                .putInt(0);
+        for (long slot : blockMap) {
+            buffer.putLong(slot);
+        }
+        for (long segmentWrite : segmentWrites) {
+            buffer.putLong(segmentWrite);
+        }
+        buffer.putInt(CHECKPOINT_CHECKSUM_OFFSET, checksum(content));
+
+        // partial segments reach the device before the checkpoint refers to them,
+        // and the checkpoint reaches it before freed segments are overwritten
+        blockStorage.sync();
+        blockStorage.writeBlocks(checkpointRegion(sequence), content, checkpointBlocks);
+        blockStorage.sync();
+
+        checkpointSequence = sequence;
+        sealedSinceCheckpoint = 0;
+        freeSegments.addAll(releasedSegments);
+        releasedSegments.clear();
+    }
+
+    private long checkpointRegion(long sequence) {
+        return 1 + (sequence % 2) * checkpointBlocks;
+    }
+
+    /**
+     * Load the latest valid checkpoint, roll forward partial segments written after it,
+     * then checkpoint again, so segments rolled forward are never reused while the checkpoint refers to them.
+     */
+    private void recover() throws IOException {
+        ByteBuffer checkpoint = null;
+        for (long region = 0; region < 2; region++) {
+            byte[] content = new byte[checkpointBlocks * blockSize];
+            blockStorage.readBlocks(1 + region * checkpointBlocks, content, checkpointBlocks);
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            if (buffer.getInt(0) != CHECKPOINT_MAGIC) {
+                continue;
+            }
+            int expectedChecksum = buffer.getInt(CHECKPOINT_CHECKSUM_OFFSET);
+            buffer.putInt(CHECKPOINT_CHECKSUM_OFFSET, 0);
+            if (checksum(content) == expectedChecksum && (checkpoint == null || buffer.getLong(4) > checkpoint.getLong(4))) {
+                checkpoint = buffer;
+            }
+        }
+        if (checkpoint == null) {
+            throw new IOException("Log has no valid checkpoint");
+        }
+        checkpoint.position(4);
+        checkpointSequence = checkpoint.getLong();
+        writeSequence = checkpoint.getLong();
+        headSegment = checkpoint.getInt();
+        headOffset = checkpoint.getInt();
+        nextSegment = checkpoint.getInt();
+        checkpoint.getInt();
+        for (int blockNumber = 0; blockNumber < logicalBlocks; blockNumber++) {
+            long slot = checkpoint.getLong();
+            if (slot != UNMAPPED) {
+                remap(blockNumber, slot);
+            }
+        }
+        for (int segment = 0; segment < segmentsCount; segment++) {
+            segmentWrites[segment] = checkpoint.getLong();
+        }
+        releasedSegments.clear();
+
+        boolean rolledForward = false;
+        while (rollForward()) {
+            rolledForward = true;
+        }
+        for (int segment = 0; segment < segmentsCount; segment++) {
+            if (segment != headSegment && segment != nextSegment && liveBlocks[segment] == 0) {
+                freeSegments.add(segment);
+            }
+        }
+        releasedSegments.clear();
+        if (nextSegment < 0) {
+            nextSegment = takeSegment();
+        }
+        if (rolledForward) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Apply the partial segment at the head of the log, if it is intact and written after the checkpoint.
+     */
+    private boolean rollForward() throws IOException {
+        if (segmentBlocks - headOffset < 2) {
+            if (nextSegment < 0) {
+                return false;
+            }
+            headSegment = nextSegment;
+            headOffset = 0;
+            nextSegment = -1;
+        }
+        long firstSlot = (long) headSegment * segmentBlocks + headOffset;
+        ByteBuffer summary = ByteBuffer.allocate(blockSize);
+        blockStorage.readBlock(segmentsStart + firstSlot, summary.array());
+        if (summary.getInt() != SUMMARY_MAGIC || summary.getLong() != writeSequence) {
+            return false;
+        }
+        int next = summary.getInt();
+        int count = summary.getInt();
+        if (count < 1 || count > Math.min(segmentBlocks - headOffset - 1, summaryCapacity)
+                || next < 0 || next >= segmentsCount) {
+            return false;
+        }
+        byte[] content = new byte[(count + 1) * blockSize];
+        blockStorage.readBlocks(segmentsStart + firstSlot, content, count + 1);
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        int expectedChecksum = buffer.getInt(SUMMARY_CHECKSUM_OFFSET);
+        buffer.putInt(SUMMARY_CHECKSUM_OFFSET, 0);
+        if (checksum(content) != expectedChecksum) {
+            return false; // torn by a crash
+        }
+
+        buffer.position(SUMMARY_HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            long blockNumber = buffer.getLong();
+            if (blockNumber >= 0 && blockNumber < logicalBlocks) {
+                remap(blockNumber, firstSlot + 1 + i);
+            }
+        }
+        segmentWrites[headSegment] = writeSequence;
+        writeSequence++;
+        headOffset += count + 1;
+        nextSegment = next;
+        return true;
+    }
+
+    private static int checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    private void assertBlockNumberValid(long blockNumber) {
+        if (blockNumber < 0 || blockNumber >= logicalBlocks) {
+            throw new IllegalArgumentException("Block index is out of bounds");
+        }
+    }
+
+    private void assertNotClosed() {
+        if (closed.get()) {
+            throw new IllegalStateException("Block storage closed");
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent snapshot of the file system, which shares blocks with it instead of copying them.
+ * <p>
+ * A snapshot keeps data bitmap as of its creation: data blocks allocated then are shared with the file system,
+ * which copies a shared block before writing it and points to the copy instead, leaving the snapshot's one intact.
+ * Metadata blocks have fixed locations, so it is the other way round for them: the first write of a metadata block
+ * since the snapshot was created copies its old content to a data block owned by the snapshot.
+ * <p>
+ * Copies are indexed by a two-level copy table: the root block points to leaf blocks,
+ * each leaf holds copy block numbers for a range of metadata blocks, or {@link INode#HOLE} if there is no copy.
+ * Blocks of the snapshot itself are allocated in the data bitmap of the file system.
+ */
+class NamedSnapshot {
+
+    private final DefaultFileSystem fs;
+    private final SnapshotTable.Entry entry;
+    private final int entriesPerBlock;
+
+    // data blocks in use as of creation, excluding blocks of snapshots
+    private final BitMap dNodes;
+    // bitmap copy, copy table and copied blocks
+    private final Set<Long> ownedDNodes = new HashSet<>();
+    // metadata block number to data block holding its copy
+    private final ConcurrentMap<Long, Long> copies = new ConcurrentHashMap<>();
+    private final long[] leaves;
+    private final AtomicInteger mounts = new AtomicInteger();
+
+    private NamedSnapshot(DefaultFileSystem fs, SnapshotTable.Entry entry, BitMap dNodes, long metadataBlocks) {
+        this.fs = fs;
+        this.entry = entry;
+        this.entriesPerBlock = fs.getBlockSize() / 8;
+        this.dNodes = dNodes;
+        this.leaves = new long[(int) ((metadataBlocks + entriesPerBlock - 1) / entriesPerBlock)];
+        Arrays.fill(leaves, INode.HOLE);
+        ownedDNodes.add(entry.getBitMapBlock());
+        ownedDNodes.add(entry.getCopyTableBlock());
+    }
+
+    /**
+     * Check whether copy table of a snapshot has room for every metadata block.
+     */
+    static boolean fits(int blockSize, long metadataBlocks) {
+        long entriesPerBlock = blockSize / 8;
+        return metadataBlocks <= entriesPerBlock * entriesPerBlock;
+    }
+
+    /**
+     * Create snapshot writing its bitmap and empty copy table to blocks of {@code entry}.
+     *
+     * @param dNodes         data blocks in use, which the snapshot shares with the file system.
+     * @param metadataBlocks amount of blocks preceding data blocks.
+     */
+    static NamedSnapshot create(DefaultFileSystem fs, SnapshotTable.Entry entry, BitMap dNodes, long metadataBlocks) throws IOException {
+        NamedSnapshot snapshot = new NamedSnapshot(fs, entry, dNodes, metadataBlocks);
+        ByteBuffer bitMap = ByteBuffer.allocate(fs.getBlockSize());
+        dNodes.writeTo(bitMap);
+        fs.writeDataBlock(bitMap.array(), 0, bitMap.capacity(), 0, entry.getBitMapBlock());
+        snapshot.writeHoles(entry.getCopyTableBlock());
+        return snapshot;
+    }
+
+    /**
+     * Read snapshot from blocks of {@code entry}.
+     * Copies which are not allocated in {@code allocatedDNodes} were made by a transaction lost in a crash,
+     * so the blocks they copy were not changed either and are read in place.
+     */
+    static NamedSnapshot load(DefaultFileSystem fs, SnapshotTable.Entry entry, BitMap allocatedDNodes, long metadataBlocks) throws IOException {
+        ByteBuffer bitMap = ByteBuffer.allocate(fs.getBlockSize());
+        fs.readDataBlock(bitMap.array(), 0, bitMap.capacity(), 0, entry.getBitMapBlock());
+        NamedSnapshot snapshot = new NamedSnapshot(fs, entry, new BitMap(bitMap), metadataBlocks);
+
+        long[] root = snapshot.readEntries(entry.getCopyTableBlock());
+        for (int leafIndex = 0; leafIndex < snapshot.leaves.length; leafIndex++) {
+            long leaf = root[leafIndex];
+            if (leaf == INode.HOLE || !allocatedDNodes.isAllocated(leaf)) {
+                continue;
+            }
+            snapshot.leaves[leafIndex] = leaf;
+            snapshot.ownedDNodes.add(leaf);
+            long[] leafEntries = snapshot.readEntries(leaf);
+            for (int i = 0; i < leafEntries.length; i++) {
+                long copy = leafEntries[i];
+                if (copy != INode.HOLE && allocatedDNodes.isAllocated(copy)) {
+                    snapshot.copies.put((long) leafIndex * snapshot.entriesPerBlock + i, copy);
+                    snapshot.ownedDNodes.add(copy);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    SnapshotTable.Entry getEntry() {
+        return entry;
+    }
+
+    String getName() {
+        return entry.getName();
+    }
+
+    BitMap getDNodes() {
+        return dNodes;
+    }
+
+    Set<Long> getOwnedDNodes() {
+        return Collections.unmodifiableSet(ownedDNodes);
+    }
+
+    Map<Long, Long> getCopies() {
+        return Collections.unmodifiableMap(copies);
+    }
+
+    /**
+     * Get data block holding copy of metadata block.
+     *
+     * @return data block number, or {@link INode#HOLE} if the block was not written since the snapshot was created.
+     */
+    long getCopy(long blockNumber) {
+        Long copy = copies.get(blockNumber);
+        return copy != null ? copy : INode.HOLE;
+    }
+
+    /**
+     * Record {@code dataBlock} as a copy of metadata block, which should be written only after this call.
+     *
+     * @throws IOException if there is no free space for a block of the copy table, or an I/O error occurs.
+     */
+    void addCopy(long blockNumber, long dataBlock) throws IOException {
+        int leafIndex = (int) (blockNumber / entriesPerBlock);
+        long leaf = leaves[leafIndex];
+        if (leaf == INode.HOLE) {
+            leaf = fs.allocateDNode();
+            if (leaf < 0) {
+                throw new IOException("Not enough free space to preserve snapshot blocks");
+            }
+            ownedDNodes.add(leaf);
+            writeHoles(leaf);
+            writeEntry(entry.getCopyTableBlock(), leafIndex, leaf);
+            leaves[leafIndex] = leaf;
+        }
+        writeEntry(leaf, (int) (blockNumber % entriesPerBlock), dataBlock);
+        ownedDNodes.add(dataBlock);
+        // readers check for the copy after reading the block in place, so it is published before the block is written
+        copies.put(blockNumber, dataBlock);
+    }
+
+    void mount() {
+        mounts.incrementAndGet();
+    }
+
+    void unmount() {
+        mounts.decrementAndGet();
+    }
+
+    boolean isMounted() {
+        return mounts.get() > 0;
+    }
+
+    private void writeHoles(long block) throws IOException {
+        byte[] holes = new byte[entriesPerBlock * 8];
+        Arrays.fill(holes, (byte) 0xFF); // every entry reads as HOLE
+        fs.writeDataBlock(holes, 0, holes.length, 0, block);
+    }
+
+    private void writeEntry(long block, int index, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8).putLong(value);
+        fs.writeDataBlock(buffer.array(), 0, 8, (long) index * 8, block);
+    }
+
+    private long[] readEntries(long block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entriesPerBlock * 8);
+        fs.readDataBlock(buffer.array(), 0, buffer.capacity(), 0, block);
+        long[] entries = new long[entriesPerBlock];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = buffer.getLong();
+        }
+        return entries;
+    }
+
+    /**
+     * Read-only storage view of the snapshot, a mounted snapshot reads the file system through it.
+     * <p>
+     * Metadata blocks are read from their copies, if there are any. Readers do not take locks:
+     * a reader of a metadata block checks for its copy again after reading it in place,
+     * as the copy is published before the block is overwritten. Shared data blocks are never written,
+     * so they are always read in place.
+     */
+    class View implements BlockStorage {
+
+        private final BlockStorage blockStorage;
+        private final long dataNodesStartIndex;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        View(BlockStorage blockStorage, long dataNodesStartIndex) {
+            this.blockStorage = blockStorage;
+            this.dataNodesStartIndex = dataNodesStartIndex;
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+            return readBlock(blockNumber, buffer, 0, buffer.length, 0);
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+            if (closed.get()) {
+                throw new IllegalStateException("Snapshot closed");
+            }
+            if (blockNumber >= dataNodesStartIndex) {
+                return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+            }
+            long copy = getCopy(blockNumber);
+            if (copy == INode.HOLE) {
+                int bytesRead = blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+                copy = getCopy(blockNumber);
+                if (copy == INode.HOLE) {
+                    return bytesRead;
+                }
+            }
+            return blockStorage.readBlock(dataNodesStartIndex + copy, buffer, offset, length, position);
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer) {
+            throw new IllegalStateException("Snapshot is read-only");
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) {
+            throw new IllegalStateException("Snapshot is read-only");
+        }
+
+        @Override
+        public void sync() {
+            // nothing is ever written through a snapshot
+        }
+
+        @Override
+        public int getBlockSize() {
+            return blockStorage.getBlockSize();
+        }
+
+        @Override
+        public long getBlocksCount() {
+            return blockStorage.getBlocksCount();
+        }
+
+        /**
+         * Closes the view, the snapshot can be deleted once all its views are closed.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                unmount();
+            }
+        }
+    }
+}
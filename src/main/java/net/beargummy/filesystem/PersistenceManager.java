@@ -1,10 +1,20 @@
 package net.beargummy.filesystem;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 class PersistenceManager {
 
+    // amount of bytes read by a single task of a parallel read, rounded down to whole blocks
+    static final int PARALLEL_READ_CHUNK_SIZE = 1024 * 1024;
+
     private final BlockStorage blockStorage;
     private final DefaultFileSystem fileSystem;
 
@@ -45,49 +55,41 @@ class PersistenceManager {
         ByteBuffer byteBuffer = ByteBuffer.allocate(iNodeLength);
         iNode.writeTo(byteBuffer);
         byte[] array = byteBuffer.array();
+        fileSystem.preserveForSnapshots(iNodeBlock);
         blockStorage.writeBlock(iNodeBlock, array, 0, iNodeLength, iNodePositionInBlock);
     }
 
     int readINodeData(INode iNode, byte[] buffer, int offset, int length, long position) throws IOException {
         verifyArguments(buffer, offset, length, position);
 
-        int bytesRead = 0;
-        long dataBlocksCount = iNode.getDataBlocksCount();
-        if (position / blockSize > dataBlocksCount) {
-            return 0;
-        }
-
         long iNodeSize = iNode.getSize();
-        int bytesToRead = (int) Math.min(iNodeSize - position, length);
-
-        if (bytesToRead == 0) {
+        if (position >= iNodeSize) {
             return 0;
         }
+        int bytesToRead = (int) Math.min(iNodeSize - position, length);
 
-        long blocksNeeded = position + bytesToRead > blockSize
-                ? ((position + bytesToRead - 1) / blockSize) + 1
-                : 1;
-        blocksNeeded = Math.min(blocksNeeded, dataBlocksCount);
-
+        int bytesRead = 0;
         ByteBuffer byteBuffer = ByteBuffer.allocate(blockSize);
-
-        long firstBlockOffsetToRead = (int) (position / blockSize);
-        long lastBlockToRead = blocksNeeded - 1;
-        for (long block = firstBlockOffsetToRead; block <= lastBlockToRead; block++) {
-            long currentPosition = block == firstBlockOffsetToRead ? (int) (position % blockSize) : 0;
-            int currentLength = bytesToRead >= blockSize
-                    ? blockSize
-                    : (int) Math.min(bytesToRead, blockSize - currentPosition);
+        while (bytesRead < bytesToRead) {
+            long currentPosition = position + bytesRead;
+            long block = currentPosition / blockSize;
+            int currentBlockPosition = (int) (currentPosition % blockSize);
+            int currentLength = Math.min(bytesToRead - bytesRead, blockSize - currentBlockPosition);
             long currentBlockNumber = iNode.getBlockByIndex(block);
 
+            if (currentBlockNumber == INode.HOLE) {
+                Arrays.fill(buffer, offset + bytesRead, offset + bytesRead + currentLength, (byte) 0);
+                bytesRead += currentLength;
+                continue;
+            }
+
             byteBuffer.clear();
-            int fetchedFromBS = blockStorage.readBlock(dataNodesStartIndex + currentBlockNumber, byteBuffer.array(), 0, currentLength, currentPosition);
+            int fetchedFromBS = blockStorage.readBlock(dataNodesStartIndex + currentBlockNumber, byteBuffer.array(), 0, currentLength, currentBlockPosition);
             if (fetchedFromBS == -1) {
                 return bytesRead;
             }
             byteBuffer.get(buffer, bytesRead + offset, fetchedFromBS);
             bytesRead += fetchedFromBS;
-            bytesToRead -= fetchedFromBS;
             if (fetchedFromBS != currentLength) {
                 return bytesRead;
             }
@@ -95,6 +97,68 @@ class PersistenceManager {
         return bytesRead;
     }
 
+    /**
+     * Read data splitting the range into block-aligned chunks, which are read concurrently on {@code executor}
+     * into disjoint regions of {@code buffer}. Ranges not longer than a single chunk are read sequentially.
+     */
+    int readINodeData(INode iNode, byte[] buffer, int offset, int length, long position, Executor executor) throws IOException {
+        verifyArguments(buffer, offset, length, position);
+
+        long iNodeSize = iNode.getSize();
+        if (position >= iNodeSize) {
+            return 0;
+        }
+        int bytesToRead = (int) Math.min(iNodeSize - position, length);
+        int chunkSize = Math.max(PARALLEL_READ_CHUNK_SIZE / blockSize, 1) * blockSize;
+        if (bytesToRead <= chunkSize) {
+            return readINodeData(iNode, buffer, offset, bytesToRead, position);
+        }
+
+        List<Integer> chunkLengths = new ArrayList<>();
+        List<CompletableFuture<Integer>> chunks = new ArrayList<>();
+        // first chunk ends on a block boundary, so the following ones are block-aligned
+        int chunkLength = chunkSize - (int) (position % blockSize);
+        for (int chunkOffset = 0; chunkOffset < bytesToRead; chunkOffset += chunkLength, chunkLength = chunkSize) {
+            int currentOffset = chunkOffset;
+            int currentLength = Math.min(chunkLength, bytesToRead - chunkOffset);
+            chunkLengths.add(currentLength);
+            chunks.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readINodeData(iNode, buffer, offset + currentOffset, currentLength, position + currentOffset);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+
+        try {
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+
+        int bytesRead = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int chunkRead = chunks.get(i).join();
+            bytesRead += chunkRead;
+            if (chunkRead != chunkLengths.get(i)) {
+                // data past a short read is not contiguous with the data before it
+                return bytesRead;
+            }
+        }
+        return bytesRead;
+    }
+
     void writeDataBlock(byte[] data, int offset, int length, long position, long block) throws IOException {
         verifyArguments(data, offset, length, position);
         if (length + position > blockSize) {
@@ -117,40 +181,152 @@ class PersistenceManager {
         verifyArguments(data, offset, length, position);
 
         long iNodeSize = iNode.getSize();
-        long newSize = Math.max(position + length, iNodeSize);
+        if (position > iNodeSize) {
+            // allocated blocks past the end of file may keep stale bytes
+            zeroINodeData(iNode, iNodeSize, position);
+        }
 
-        long blocksNeeded = (long) Math.ceil(((double) newSize) / blockSize);
         long firstBlockOffsetToWrite = position / blockSize;
-        long lastBlockToWrite = blocksNeeded - firstBlockOffsetToWrite - 1;
-        lastBlockToWrite = lastBlockToWrite == 0 ? firstBlockOffsetToWrite : lastBlockToWrite;
+        long lastBlockToWrite = (position + length - 1) / blockSize;
 
         int bytesWritten = 0;
         ByteBuffer byteBuffer = ByteBuffer.allocate(blockSize);
         for (long block = firstBlockOffsetToWrite; block <= lastBlockToWrite; block++) {
             int currentBlockPosition = block == firstBlockOffsetToWrite ? (int) (position % blockSize) : 0;
+            int currentLength = Math.min(length - bytesWritten, blockSize - currentBlockPosition);
+
+            long currentBlockNumber = iNode.getBlockByIndex(block);
+            boolean allocated = currentBlockNumber == INode.HOLE;
+            if (allocated) {
+                currentBlockNumber = iNode.getOrCreateBlockByIndex(block);
+                if (currentBlockNumber == INode.HOLE) {
+                    break;
+                }
+            } else if (fileSystem.isSharedDNode(currentBlockNumber)) {
+                boolean wholeBlock = currentBlockPosition == 0 && currentLength == blockSize;
+                currentBlockNumber = iNode.unshareBlockByIndex(block, !wholeBlock);
+                if (currentBlockNumber == INode.HOLE) {
+                    break;
+                }
+            }
 
-            int currentLength;
-            if (block == firstBlockOffsetToWrite) {
-                currentLength = Math.min(length, blockSize - currentBlockPosition);
-            } else if (block == lastBlockToWrite) {
-                currentLength = Math.min(length - bytesWritten, blockSize - currentBlockPosition);
+            byteBuffer.clear();
+            if (allocated) {
+                // fresh block: bytes around written data that lie within the file must read as zeros
+                long blockStart = block * blockSize;
+                int end = (int) Math.max(currentBlockPosition + currentLength, Math.min(blockSize, iNodeSize - blockStart));
+                Arrays.fill(byteBuffer.array(), 0, end, (byte) 0);
+                System.arraycopy(data, bytesWritten + offset, byteBuffer.array(), currentBlockPosition, currentLength);
+                blockStorage.writeBlock(dataNodesStartIndex + currentBlockNumber, byteBuffer.array(), 0, end, 0);
             } else {
-                currentLength = Math.min(blockSize, length) - currentBlockPosition % Math.min(blockSize, length);
+                byteBuffer.put(data, bytesWritten + offset, currentLength);
+                byteBuffer.flip();
+                blockStorage.writeBlock(dataNodesStartIndex + currentBlockNumber, byteBuffer.array(), 0, currentLength, currentBlockPosition);
+            }
+            bytesWritten += currentLength;
+        }
+
+        if (bytesWritten > 0) {
+            iNode.setSize(Math.max(position + bytesWritten, iNodeSize));
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Check that every block of {@code [position, position + length)} range of file is allocated
+     * and is not shared with a named snapshot, so the range can be written in place.
+     */
+    boolean isINodeDataWritable(INode iNode, long position, int length) throws IOException {
+        long lastBlock = (position + length - 1) / blockSize;
+        for (long block = position / blockSize; block <= lastBlock; block++) {
+            long dataBlock = iNode.getBlockByIndex(block);
+            if (dataBlock == INode.HOLE || fileSystem.isSharedDNode(dataBlock)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allocate data blocks for {@code [position, position + length)} range of file without writing the data.
+     * Bytes of fresh blocks which lie within the file are zeroed.
+     * Blocks shared with a named snapshot are replaced by their copies.
+     *
+     * @return amount of bytes starting from {@code position} backed by data blocks,
+     * less than {@code length} if there is not enough free space.
+     */
+    int allocateINodeData(INode iNode, long position, int length) throws IOException {
+        long iNodeSize = iNode.getSize();
+        long lastBlock = (position + length - 1) / blockSize;
+        for (long block = position / blockSize; block <= lastBlock; block++) {
+            long blockStart = block * blockSize;
+            long dataBlock = iNode.getBlockByIndex(block);
+            if (dataBlock != INode.HOLE) {
+                if (fileSystem.isSharedDNode(dataBlock)) {
+                    boolean wholeBlock = position <= blockStart && position + length >= blockStart + blockSize;
+                    if (iNode.unshareBlockByIndex(block, !wholeBlock) == INode.HOLE) {
+                        return (int) Math.max(blockStart - position, 0);
+                    }
+                }
+                continue;
             }
             long currentBlockNumber = iNode.getOrCreateBlockByIndex(block);
-            if (currentBlockNumber == -1) {
-                break;
+            if (currentBlockNumber == INode.HOLE) {
+                return (int) Math.max(blockStart - position, 0);
+            }
+            int end = (int) Math.max(Math.min(blockSize, iNodeSize - blockStart), 0);
+            boolean coveredByData = position <= blockStart && position + length >= blockStart + end;
+            if (!coveredByData) {
+                blockStorage.writeBlock(dataNodesStartIndex + currentBlockNumber, new byte[end], 0, end, 0);
             }
+        }
+        return length;
+    }
 
-            byteBuffer.clear();
-            byteBuffer.put(data, bytesWritten + offset, currentLength);
-            byteBuffer.flip();
-            blockStorage.writeBlock(dataNodesStartIndex + currentBlockNumber, byteBuffer.array(), 0, currentLength, currentBlockPosition);
+    /**
+     * Write data to {@code [position, position + length)} range of file, which blocks are already allocated.
+     * Does not change the file size.
+     */
+    void copyINodeData(INode iNode, byte[] data, int offset, int length, long position) throws IOException {
+        verifyArguments(data, offset, length, position);
+
+        int bytesWritten = 0;
+        while (bytesWritten < length) {
+            long current = position + bytesWritten;
+            int currentBlockPosition = (int) (current % blockSize);
+            int currentLength = Math.min(length - bytesWritten, blockSize - currentBlockPosition);
+            long currentBlockNumber = iNode.getBlockByIndex(current / blockSize);
+            if (currentBlockNumber == INode.HOLE) {
+                throw new IllegalStateException("Data block is not allocated at position " + current);
+            }
+            blockStorage.writeBlock(dataNodesStartIndex + currentBlockNumber, data, offset + bytesWritten, currentLength, currentBlockPosition);
             bytesWritten += currentLength;
         }
+    }
 
-        iNode.setSize(newSize);
-        return bytesWritten;
+    /**
+     * Fill {@code [from, to)} range of file with zeros, skipping holes.
+     * Does not allocate any data blocks, but copies of blocks shared with a named snapshot.
+     */
+    void zeroINodeData(INode iNode, long from, long to) throws IOException {
+        byte[] zeros = new byte[blockSize];
+        long lastBlock = Math.min((to - 1) / blockSize, iNode.getDataBlocksCount() - 1);
+        for (long block = from / blockSize; block <= lastBlock; block++) {
+            long currentBlockNumber = iNode.getBlockByIndex(block);
+            if (currentBlockNumber == INode.HOLE) {
+                continue;
+            }
+            long blockStart = block * blockSize;
+            int start = (int) (Math.max(from, blockStart) - blockStart);
+            int end = (int) (Math.min(to, blockStart + blockSize) - blockStart);
+            if (fileSystem.isSharedDNode(currentBlockNumber)) {
+                currentBlockNumber = iNode.unshareBlockByIndex(block, end - start < blockSize);
+                if (currentBlockNumber == INode.HOLE) {
+                    throw new IOException("Not enough free space to copy block shared with a snapshot");
+                }
+            }
+            blockStorage.writeBlock(dataNodesStartIndex + currentBlockNumber, zeros, 0, end - start, start);
+        }
     }
 
     BitMap readBitMap(long blockNumber) throws IOException {
@@ -162,11 +338,64 @@ class PersistenceManager {
     }
 
     void writeBitMap(BitMap bitMap, long blockNumber) throws IOException {
+        fileSystem.preserveForSnapshots(blockNumber);
         ByteBuffer byteBuffer = ByteBuffer.allocate(blockSize);
         bitMap.writeTo(byteBuffer);
         blockStorage.writeBlock(blockNumber, byteBuffer.array());
     }
 
+    /**
+     * Read superblock from {@code blockStorage}, which may be the storage underlying the journal.
+     *
+     * @return superblock, or {@code null} if the block does not hold one, as the storage predates superblocks.
+     */
+    SuperBlock readSuperBlock(BlockStorage blockStorage, long blockNumber) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(blockSize);
+        blockStorage.readBlock(blockNumber, byteBuffer.array());
+        return SuperBlock.isSuperBlock(byteBuffer) ? SuperBlock.decode(byteBuffer) : null;
+    }
+
+    void writeSuperBlock(SuperBlock superBlock, long blockNumber) throws IOException {
+        writeSuperBlock(blockStorage, superBlock, blockNumber);
+    }
+
+    /**
+     * Write superblock to {@code blockStorage}, which may be the storage underlying the journal.
+     */
+    void writeSuperBlock(BlockStorage blockStorage, SuperBlock superBlock, long blockNumber) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(blockSize);
+        superBlock.writeTo(byteBuffer);
+        blockStorage.writeBlock(blockNumber, byteBuffer.array());
+    }
+
+    /**
+     * Copy content of data block {@code from} to data block {@code to}.
+     */
+    void copyDataBlock(long from, long to) throws IOException {
+        copyBlock(dataNodesStartIndex + from, dataNodesStartIndex + to);
+    }
+
+    /**
+     * Copy content of metadata block to data {@code block}, which preserves it for a named snapshot.
+     */
+    void copyToDataBlock(long blockNumber, long block) throws IOException {
+        copyBlock(blockNumber, dataNodesStartIndex + block);
+    }
+
+    /**
+     * Overwrite metadata block with content of data {@code block}, preserving it for named snapshots first.
+     */
+    void copyFromDataBlock(long block, long blockNumber) throws IOException {
+        fileSystem.preserveForSnapshots(blockNumber);
+        copyBlock(dataNodesStartIndex + block, blockNumber);
+    }
+
+    private void copyBlock(long from, long to) throws IOException {
+        byte[] content = new byte[blockSize];
+        blockStorage.readBlock(from, content, 0, blockSize, 0);
+        blockStorage.writeBlock(to, content);
+    }
+
     private void verifyArguments(byte[] buffer, int offset, int length, long position) {
         if (null == buffer) {
             throw new NullPointerException("Buffer is null");
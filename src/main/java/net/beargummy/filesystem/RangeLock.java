@@ -0,0 +1,40 @@
+package net.beargummy.filesystem;
+
+/**
+ * Lock on a byte range of a {@link File}.
+ * <p>
+ * Shared locks of a range may be held by several threads at once, an exclusive lock excludes any other
+ * lock of an overlapping range. Locks are held on behalf of the thread which acquired them, so its own
+ * reads and writes within the range are not blocked.
+ *
+ * @see File#lock(long, long, boolean)
+ */
+public interface RangeLock extends AutoCloseable {
+
+    /**
+     * Get position in the file the locked range starts at.
+     *
+     * @return start position of the range
+     */
+    long getPosition();
+
+    /**
+     * Get length of the locked range in bytes.
+     *
+     * @return length of the range
+     */
+    long getLength();
+
+    /**
+     * Check whether lock is shared or exclusive.
+     *
+     * @return {@code true} if the lock is shared
+     */
+    boolean isShared();
+
+    /**
+     * Releases the lock. Releasing an already released lock has no effect.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,127 @@
+package net.beargummy.filesystem;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-range locks of a single file.
+ * <p>
+ * A lock conflicts with locks of overlapping ranges held by other threads, unless both locks are shared.
+ * Waiting threads are woken on every release and recheck their range, which is cheap as long as
+ * a file has a handful of ranges locked at a time.
+ */
+class RangeLocks {
+
+    private final List<Range> ranges = new ArrayList<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    /**
+     * Lock {@code [position, position + length)} range, waiting for conflicting locks to be released.
+     * A range with {@code position + length} past {@link Long#MAX_VALUE} spans up to the end of any file.
+     *
+     * @throws InterruptedIOException if thread is interrupted while waiting.
+     */
+    RangeLock lock(long position, long length, boolean shared) throws InterruptedIOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Position cannot be negative");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length should be strictly positive number");
+        }
+        Range range = new Range(position, length, shared, Thread.currentThread());
+        lock.lock();
+        try {
+            while (hasConflict(range)) {
+                released.await();
+            }
+            ranges.add(range);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for range lock");
+        } finally {
+            lock.unlock();
+        }
+        return range;
+    }
+
+    private boolean hasConflict(Range range) {
+        for (Range held : ranges) {
+            if (held.owner != range.owner && held.overlaps(range) && !(held.shared && range.shared)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void unlock(Range range) {
+        lock.lock();
+        try {
+            // identity removal, equal ranges of the same owner are distinct locks
+            for (int i = 0; i < ranges.size(); i++) {
+                if (ranges.get(i) == range) {
+                    ranges.remove(i);
+                    released.signalAll();
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Range implements RangeLock {
+
+        private final long position;
+        private final long length;
+        private final long end;
+        private final boolean shared;
+        private final Thread owner;
+
+        private Range(long position, long length, boolean shared, Thread owner) {
+            this.position = position;
+            this.length = length;
+            long end = position + length;
+            this.end = end < 0 ? Long.MAX_VALUE : end;
+            this.shared = shared;
+            this.owner = owner;
+        }
+
+        private boolean overlaps(Range other) {
+            return position < other.end && other.position < end;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean isShared() {
+            return shared;
+        }
+
+        @Override
+        public void close() {
+            unlock(this);
+        }
+
+        @Override
+        public String toString() {
+            return "RangeLock{" +
+                    "position=" + position +
+                    ", length=" + length +
+                    ", shared=" + shared +
+                    '}';
+        }
+    }
+}
@@ -2,20 +2,26 @@ package net.beargummy.filesystem;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Single-file-backed implementation of {@link BlockStorage}.
+ * <p>
+ * Uses positional I/O, so blocks can be read and written concurrently.
  */
 class SingleFileBlockStorage implements BlockStorage {
 
     private final RandomAccessFile file;
+    private final FileChannel channel;
     private final int blockSize;
     private final long blockCount;
     private AtomicBoolean closed;
 
     SingleFileBlockStorage(RandomAccessFile file, int blockSize, long blockCount) {
         this.file = file;
+        this.channel = file.getChannel();
         this.blockSize = blockSize;
         this.blockCount = blockCount;
         this.closed = new AtomicBoolean(false);
@@ -30,8 +36,16 @@ class SingleFileBlockStorage implements BlockStorage {
     @Override
     public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
         assertNotClosed();
-        file.seek(blockNumber * blockSize + position);
-        return file.read(buffer, 0, length);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+        long filePosition = blockNumber * blockSize + position;
+        while (byteBuffer.hasRemaining()) {
+            int bytesRead = channel.read(byteBuffer, filePosition + byteBuffer.position() - offset);
+            if (bytesRead == -1) {
+                break;
+            }
+        }
+        int totalRead = byteBuffer.position() - offset;
+        return totalRead == 0 && length > 0 ? -1 : totalRead;
     }
 
     @Override
@@ -47,8 +61,47 @@ class SingleFileBlockStorage implements BlockStorage {
         assertBlockNumberValid(blockNumber);
         assertOffsetValid(buffer, offset, length, position);
 
-        file.seek(blockNumber * blockSize + position);
-        file.write(buffer, offset, length);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+        long filePosition = blockNumber * blockSize + position;
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer, filePosition + byteBuffer.position() - offset);
+        }
+    }
+
+    @Override
+    public void readBlocks(long firstBlock, byte[] buffer, int blocks) throws IOException {
+        assertNotClosed();
+        assertDataNonNull(buffer);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, blocks * blockSize);
+        long filePosition = firstBlock * blockSize;
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer, filePosition + byteBuffer.position()) == -1) {
+                break;
+            }
+        }
+        // blocks past the end of file were never written
+        while (byteBuffer.hasRemaining()) {
+            byteBuffer.put((byte) 0);
+        }
+    }
+
+    @Override
+    public void writeBlocks(long firstBlock, byte[] buffer, int blocks) throws IOException {
+        assertNotClosed();
+        assertDataNonNull(buffer);
+        assertBlockNumberValid(firstBlock + blocks - 1);
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, blocks * blockSize);
+        long filePosition = firstBlock * blockSize;
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer, filePosition + byteBuffer.position());
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        assertNotClosed();
+        channel.force(false);
     }
 
     private void assertBlockNumberValid(long blockNumber) {
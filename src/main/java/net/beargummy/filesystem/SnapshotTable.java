@@ -0,0 +1,122 @@
+package net.beargummy.filesystem;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table of named snapshots, kept in the superblock.
+ * <p>
+ * Each entry points to two data blocks of the snapshot: a copy of the data bitmap as of its creation,
+ * and the root of its copy table.
+ */
+class SnapshotTable implements ByteBufferSerializable {
+
+    private static final int typeTag = 0x534e4150;
+
+    // typeTag, entries count
+    private static final int HEADER_SIZE = 4 + 4;
+    // name length, bitmap block, copy table block
+    private static final int ENTRY_FIXED_SIZE = 2 + 8 + 8;
+
+    private final List<Entry> entries;
+
+    SnapshotTable() {
+        this.entries = new ArrayList<>();
+    }
+
+    SnapshotTable(ByteBuffer byteBuffer) {
+        if (typeTag != byteBuffer.getInt()) {
+            throw new IllegalArgumentException("TypeTag mismatched");
+        }
+        int count = byteBuffer.getInt();
+        this.entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[byteBuffer.getShort()];
+            byteBuffer.get(name);
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8), byteBuffer.getLong(), byteBuffer.getLong()));
+        }
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    Entry find(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add entry to the table.
+     *
+     * @return {@code false} if the table would not fit into {@code maxSize} bytes with the entry.
+     */
+    boolean add(Entry entry, int maxSize) {
+        if (getSerializedSize() + entry.getSerializedSize() > maxSize) {
+            return false;
+        }
+        entries.add(entry);
+        return true;
+    }
+
+    void remove(Entry entry) {
+        entries.remove(entry);
+    }
+
+    private int getSerializedSize() {
+        int size = HEADER_SIZE;
+        for (Entry entry : entries) {
+            size += entry.getSerializedSize();
+        }
+        return size;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer byteBuffer) {
+        byteBuffer.putInt(typeTag)
+                .putInt(entries.size());
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            byteBuffer.putShort((short) name.length)
+                    .put(name)
+                    .putLong(entry.bitMapBlock)
+                    .putLong(entry.copyTableBlock);
+        }
+    }
+
+    static final class Entry {
+
+        private final String name;
+        private final long bitMapBlock;
+        private final long copyTableBlock;
+
+        Entry(String name, long bitMapBlock, long copyTableBlock) {
+            this.name = name;
+            this.bitMapBlock = bitMapBlock;
+            this.copyTableBlock = copyTableBlock;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getBitMapBlock() {
+            return bitMapBlock;
+        }
+
+        long getCopyTableBlock() {
+            return copyTableBlock;
+        }
+
+        private int getSerializedSize() {
+            return ENTRY_FIXED_SIZE + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package net.beargummy.filesystem;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Fixed table of {@link StampedLock stamped locks}, keyed by a {@code long} such as iNode number.
+ * <p>
+ * Locks are not reentrant and distinct keys may share a stripe, so callers should not hold
+ * a stripe lock while acquiring a lock for another key, except via {@link #lockAll()}.
+ */
+class StripedLock {
+
+    static final int DEFAULT_STRIPES = 256;
+
+    private final StampedLock[] stripes;
+    private final int mask;
+
+    StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    StripedLock(int stripes) {
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripes count should be a power of two: " + stripes);
+        }
+        this.stripes = new StampedLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new StampedLock();
+        }
+        this.mask = stripes - 1;
+    }
+
+    StampedLock get(long key) {
+        return stripes[(int) (key ^ (key >>> 32)) & mask];
+    }
+
+    /**
+     * Acquire write locks of all stripes in ascending order.
+     */
+    void lockAll() {
+        for (StampedLock stripe : stripes) {
+            stripe.asWriteLock().lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].asWriteLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Superblock of the file system, the first block of the storage.
+ * <p>
+ * Records geometry and layout of the storage, so an image can be restored without knowing its parameters,
+ * a clean flag, set once the file system is closed and cleared while it is in use,
+ * and the snapshot a rollback is in progress to, so one torn by a crash is completed on restore.
+ * The {@link SnapshotTable table of named snapshots} takes the rest of the block.
+ * <p>
+ * The superblock is always read in place: its clean flag tells whether the journal needs replay,
+ * so the flag is written straight to the storage, bypassing the journal.
+ */
+class SuperBlock implements ByteBufferSerializable {
+
+    private static final int typeTag = 0x53424c4b;
+    /**
+     * Version of the on-disk format, covering every layout the file system writes: this superblock
+     * and the region layout it records, bitmaps, journal records, {@link INode iNodes},
+     * and {@link DirectoryData directory buckets} with their {@link DirectoryRecord records}.
+     * Bumped whenever any of them changes, as images of another version are neither read nor migrated.
+     */
+    static final int FORMAT_VERSION = 2;
+
+    // typeTag, version, block size, blocks count, blocks per iNode ratio,
+    // journal start and size, iNodes start, data nodes start, clean flag, rollback snapshot
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 8 + 8 + 8 + 8 + 1 + 4;
+
+    private final int blockSize;
+    private final long blocksCount;
+    private final int blocksPerInodeRatio;
+    private final long journalStartIndex;
+    private final long journalBlocks;
+    private final long iNodesStartIndex;
+    private final long dataNodesStartIndex;
+    private volatile boolean clean;
+    // index of the snapshot table entry, -1 if no rollback is in progress
+    private int rollbackSnapshot;
+    private final SnapshotTable snapshotTable;
+
+    SuperBlock(int blockSize, long blocksCount, int blocksPerInodeRatio, long journalStartIndex, long journalBlocks,
+               long iNodesStartIndex, long dataNodesStartIndex) {
+        this.blockSize = blockSize;
+        this.blocksCount = blocksCount;
+        this.blocksPerInodeRatio = blocksPerInodeRatio;
+        this.journalStartIndex = journalStartIndex;
+        this.journalBlocks = journalBlocks;
+        this.iNodesStartIndex = iNodesStartIndex;
+        this.dataNodesStartIndex = dataNodesStartIndex;
+        this.clean = false;
+        this.rollbackSnapshot = -1;
+        this.snapshotTable = new SnapshotTable();
+    }
+
+    SuperBlock(ByteBuffer byteBuffer) {
+        if (typeTag != byteBuffer.getInt()) {
+            throw new IllegalArgumentException("TypeTag mismatched");
+        }
+        int version = byteBuffer.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported file system format version: " + version);
+        }
+        this.blockSize = byteBuffer.getInt();
+        this.blocksCount = byteBuffer.getLong();
+        this.blocksPerInodeRatio = byteBuffer.getInt();
+        this.journalStartIndex = byteBuffer.getLong();
+        this.journalBlocks = byteBuffer.getLong();
+        this.iNodesStartIndex = byteBuffer.getLong();
+        this.dataNodesStartIndex = byteBuffer.getLong();
+        this.clean = byteBuffer.get() != 0;
+        this.rollbackSnapshot = byteBuffer.getInt();
+        this.snapshotTable = new SnapshotTable(byteBuffer);
+    }
+
+    /**
+     * Check whether {@code byteBuffer} starts with a superblock, leaving its position intact.
+     */
+    static boolean isSuperBlock(ByteBuffer byteBuffer) {
+        return byteBuffer.remaining() >= HEADER_SIZE && byteBuffer.getInt(byteBuffer.position()) == typeTag;
+    }
+
+    /**
+     * Read superblock of the file system in {@code blockStorage}.
+     *
+     * @throws IOException if the storage does not hold a file system, or an I/O error occurs.
+     */
+    static SuperBlock read(BlockStorage blockStorage) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(blockStorage.getBlockSize());
+        blockStorage.readBlock(0, block.array());
+        if (!isSuperBlock(block)) {
+            throw new IOException("File does not hold a file system image");
+        }
+        return decode(block);
+    }
+
+    /**
+     * Decode superblock at the position of {@code byteBuffer}, which {@link #isSuperBlock(ByteBuffer) starts with one}.
+     *
+     * @throws IOException if the image has another {@link #FORMAT_VERSION format version}, or the superblock is corrupted.
+     */
+    static SuperBlock decode(ByteBuffer byteBuffer) throws IOException {
+        int version = byteBuffer.getInt(byteBuffer.position() + 4);
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported file system format version: " + version);
+        }
+        try {
+            return new SuperBlock(byteBuffer);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Superblock is corrupted", e);
+        }
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    long getBlocksCount() {
+        return blocksCount;
+    }
+
+    int getBlocksPerInodeRatio() {
+        return blocksPerInodeRatio;
+    }
+
+    /**
+     * Check whether layout of the superblock is the one of {@code other}, which the file system computed itself.
+     */
+    boolean hasLayoutOf(SuperBlock other) {
+        return blockSize == other.blockSize
+                && blocksCount == other.blocksCount
+                && blocksPerInodeRatio == other.blocksPerInodeRatio
+                && journalStartIndex == other.journalStartIndex
+                && journalBlocks == other.journalBlocks
+                && iNodesStartIndex == other.iNodesStartIndex
+                && dataNodesStartIndex == other.dataNodesStartIndex;
+    }
+
+    boolean isClean() {
+        return clean;
+    }
+
+    void setClean(boolean clean) {
+        this.clean = clean;
+    }
+
+    /**
+     * Index of the {@link #getSnapshotTable() snapshot table} entry a rollback is in progress to, {@code -1} if none is.
+     */
+    int getRollbackSnapshot() {
+        return rollbackSnapshot;
+    }
+
+    void setRollbackSnapshot(int rollbackSnapshot) {
+        this.rollbackSnapshot = rollbackSnapshot;
+    }
+
+    SnapshotTable getSnapshotTable() {
+        return snapshotTable;
+    }
+
+    /**
+     * Maximal serialized size of the snapshot table.
+     */
+    int getSnapshotTableCapacity() {
+        return blockSize - HEADER_SIZE;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer byteBuffer) {
+        byteBuffer.putInt(typeTag)
+                .putInt(FORMAT_VERSION)
+                .putInt(blockSize)
+                .putLong(blocksCount)
+                .putInt(blocksPerInodeRatio)
+                .putLong(journalStartIndex)
+                .putLong(journalBlocks)
+                .putLong(iNodesStartIndex)
+                .putLong(dataNodesStartIndex)
+                .put((byte) (clean ? 1 : 0))
+                .putInt(rollbackSnapshot);
+        snapshotTable.writeTo(byteBuffer);
+    }
+
+    @Override
+    public String toString() {
+        return "SuperBlock{" +
+                "blockSize=" + blockSize +
+                ", blocksCount=" + blocksCount +
+                ", blocksPerInodeRatio=" + blocksPerInodeRatio +
+                ", journalStartIndex=" + journalStartIndex +
+                ", journalBlocks=" + journalBlocks +
+                ", iNodesStartIndex=" + iNodesStartIndex +
+                ", dataNodesStartIndex=" + dataNodesStartIndex +
+                ", clean=" + clean +
+                ", rollbackSnapshot=" + rollbackSnapshot +
+                '}';
+    }
+}
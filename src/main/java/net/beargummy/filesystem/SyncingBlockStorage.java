@@ -0,0 +1,177 @@
+package net.beargummy.filesystem;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link BlockStorage} decorator, which forces written blocks to the device according to {@link Durability} policy.
+ * <p>
+ * Concurrent {@link #sync()} calls share a single force of the underlying storage: a caller waits
+ * for a force started after its call, as the one in progress may miss its writes.
+ * {@link #awaitDurable()} marks the end of an operation and forces blocks as the policy says.
+ */
+class SyncingBlockStorage implements BlockStorage {
+
+    private final BlockStorage blockStorage;
+    private final Durability durability;
+    private final ScheduledExecutorService scheduler;
+    // blocks were written since the last force
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    // never signalled, the caller starting a force just lets others join meanwhile
+    private final Condition delayed = lock.newCondition();
+    private long startedSyncs;
+    private long completedSyncs;
+    private boolean syncing;
+
+    SyncingBlockStorage(BlockStorage blockStorage, Durability durability) {
+        this.blockStorage = blockStorage;
+        this.durability = durability;
+        if (durability.getMode() == Durability.Mode.PERIODIC) {
+            long interval = durability.getDelay(TimeUnit.NANOSECONDS);
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "block-storage-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.scheduler.scheduleWithFixedDelay(this::syncInBackground, interval, interval, TimeUnit.NANOSECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Make blocks written by the operation, which has just completed, as durable as the policy requires.
+     */
+    void awaitDurable() throws IOException {
+        switch (durability.getMode()) {
+            case PER_OPERATION:
+                dirty.set(false);
+                blockStorage.sync();
+                break;
+            case GROUP_COMMIT:
+                sync(durability.getDelay(TimeUnit.NANOSECONDS));
+                break;
+            default:
+                // forced in the background or on demand only
+                break;
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        sync(0);
+    }
+
+    /**
+     * Wait for a force started after the call. The caller which starts it waits {@code delayNanos} first,
+     * so that operations completed meanwhile share the force.
+     */
+    private void sync(long delayNanos) throws IOException {
+        lock.lock();
+        try {
+            long target = startedSyncs + 1;
+            while (completedSyncs < target) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                try {
+                    long remaining = delayNanos;
+                    while (remaining > 0) {
+                        remaining = delayed.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                long started = ++startedSyncs;
+                boolean forced = false;
+                lock.unlock();
+                try {
+                    dirty.set(false);
+                    blockStorage.sync();
+                    forced = true;
+                } finally {
+                    lock.lock();
+                    if (forced) {
+                        completedSyncs = started;
+                    } else {
+                        dirty.set(true);
+                    }
+                    syncing = false;
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncInBackground() {
+        if (!dirty.get()) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException | RuntimeException e) {
+            // storage stays dirty, so the next run retries
+        }
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+        return blockStorage.readBlock(blockNumber, buffer);
+    }
+
+    @Override
+    public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer) throws IOException {
+        blockStorage.writeBlock(blockNumber, buffer);
+        dirty.set(true);
+    }
+
+    @Override
+    public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+        blockStorage.writeBlock(blockNumber, buffer, offset, length, position);
+        dirty.set(true);
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockStorage.getBlockSize();
+    }
+
+    @Override
+    public long getBlocksCount() {
+        return blockStorage.getBlocksCount();
+    }
+
+    /**
+     * Forces written blocks, then closes underlying storage.
+     */
+    @Override
+    public void close() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        try {
+            if (dirty.get()) {
+                sync();
+            }
+        } finally {
+            blockStorage.close();
+        }
+    }
+}
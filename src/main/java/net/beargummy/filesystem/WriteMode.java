@@ -0,0 +1,20 @@
+package net.beargummy.filesystem;
+
+/**
+ * How the file system lays written blocks out on the storage.
+ *
+ * @see FileSystemManager#create(java.io.File, int, int, Durability, WriteMode)
+ */
+public enum WriteMode {
+    /**
+     * Every block is written at its own place.
+     */
+    IN_PLACE,
+    /**
+     * Written blocks are appended to a log in large sequential writes, which suits write-heavy workloads
+     * on devices slow at small random writes. A background cleaner reclaims space of overwritten blocks,
+     * and only about 80% of the storage is available to the file system, the rest keeps cleaning cheap.
+     * The mode is recorded in the storage, so restore picks it up by itself.
+     */
+    LOG_STRUCTURED
+}
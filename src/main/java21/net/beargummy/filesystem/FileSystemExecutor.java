@@ -0,0 +1,23 @@
+package net.beargummy.filesystem;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executor for the file system internal parallel work, such as chunks of a parallel read.
+ * <p>
+ * Runs every task on its own virtual thread, so tasks blocked on storage I/O or file locks
+ * do not hold platform threads.
+ */
+class FileSystemExecutor {
+
+    private static final ExecutorService VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private FileSystemExecutor() {
+    }
+
+    static Executor defaultExecutor() {
+        return VIRTUAL_THREADS;
+    }
+}
@@ -89,4 +89,52 @@ public class BitMapTest {
                 .as("allocation after free")
                 .isEqualTo(0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_allocate_contiguous_range() {
+        BitMap bitMap = new BitMap(8);
+        bitMap.allocate();
+        bitMap.allocate();
+        bitMap.allocate();
+        bitMap.free(1);
+
+        assertThat(bitMap.allocateRange(2))
+                .as("range allocation skips too short free run")
+                .isEqualTo(3);
+        assertThat(bitMap.numFree())
+                .as("num free should be reduced")
+                .isEqualTo(4);
+        assertThat(bitMap.allocateRange(4))
+                .as("range allocation without long enough free run")
+                .isEqualTo(-1);
+        assertThat(bitMap.allocateRange(3))
+                .as("range allocation at the end")
+                .isEqualTo(5);
+    }
+
+    @Test
+    public void should_skip_excluded_nodes() {
+        BitMap bitMap = new BitMap(8);
+        bitMap.allocate();
+        BitMap excluded = new BitMap(8);
+        excluded.markAllocated(1);
+        excluded.markAllocated(2);
+        excluded.markAllocated(5);
+
+        assertThat(bitMap.allocate(excluded))
+                .as("allocation skips excluded nodes")
+                .isEqualTo(3);
+        assertThat(bitMap.allocateRange(2, excluded))
+                .as("range allocation skips excluded nodes")
+                .isEqualTo(6);
+        assertThat(bitMap.allocateRange(2, excluded))
+                .as("range allocation without long enough free run")
+                .isEqualTo(-1);
+        assertThat(bitMap.allocate(excluded))
+                .as("allocation of the last not excluded node")
+                .isEqualTo(4);
+        assertThat(bitMap.allocate(excluded))
+                .as("allocation when only excluded nodes are free")
+                .isEqualTo(-1);
+    }
+}
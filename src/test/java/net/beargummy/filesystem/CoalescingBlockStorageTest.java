@@ -0,0 +1,177 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CoalescingBlockStorageTest {
+
+    public static final int BLOCK_SIZE = 1024;
+    public static final int THREADS = 8;
+
+    private GatedBlockStorage gatedStorage;
+    private CoalescingBlockStorage blockStorage;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        gatedStorage = new GatedBlockStorage(new InMemoryBlockStorage(BLOCK_SIZE, 4));
+        blockStorage = new CoalescingBlockStorage(gatedStorage);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void should_share_in_flight_read_of_the_same_range() throws Exception {
+        byte[] data = new byte[BLOCK_SIZE];
+        Arrays.fill(data, (byte) 42);
+        blockStorage.writeBlock(1, data);
+
+        gatedStorage.gate = new CountDownLatch(1);
+        List<Future<byte[]>> reads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            reads.add(executor.submit(() -> {
+                byte[] buffer = new byte[BLOCK_SIZE / 2 + 8];
+                int bytesRead = blockStorage.readBlock(1, buffer, 8, BLOCK_SIZE / 2, 16);
+                assertThat(bytesRead)
+                        .as("bytes read")
+                        .isEqualTo(BLOCK_SIZE / 2);
+                return buffer;
+            }));
+        }
+        // let readers pile up on the first storage read
+        Thread.sleep(100);
+        gatedStorage.gate.countDown();
+
+        for (Future<byte[]> read : reads) {
+            assertThat(Arrays.copyOfRange(read.get(1, TimeUnit.SECONDS), 8, BLOCK_SIZE / 2 + 8))
+                    .as("read data")
+                    .containsOnly((byte) 42);
+        }
+        assertThat(gatedStorage.reads.get())
+                .as("storage reads")
+                .isLessThan(THREADS);
+    }
+
+    @Test
+    public void should_not_share_read_across_completed_write() throws Exception {
+        blockStorage.writeBlock(1, new byte[BLOCK_SIZE]);
+        blockStorage.readBlock(1, new byte[BLOCK_SIZE]);
+
+        byte[] data = new byte[BLOCK_SIZE];
+        Arrays.fill(data, (byte) 7);
+        blockStorage.writeBlock(1, data);
+
+        byte[] buffer = new byte[BLOCK_SIZE];
+        blockStorage.readBlock(1, buffer);
+        assertThat(buffer)
+                .as("data read after write")
+                .containsOnly((byte) 7);
+        assertThat(gatedStorage.reads.get())
+                .as("storage reads")
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void should_propagate_read_failure() {
+        gatedStorage.failure = new IOException("Disk failure");
+        assertThatThrownBy(() -> blockStorage.readBlock(1, new byte[BLOCK_SIZE]))
+                .as("read failure")
+                .isSameAs(gatedStorage.failure);
+
+        gatedStorage.failure = null;
+        assertThat(readWholeBlock())
+                .as("read after failure")
+                .isEqualTo(BLOCK_SIZE);
+    }
+
+    private int readWholeBlock() {
+        try {
+            return blockStorage.readBlock(1, new byte[BLOCK_SIZE]);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Counts storage reads, which wait for a latch and may fail.
+     */
+    private static class GatedBlockStorage implements BlockStorage {
+
+        private final BlockStorage blockStorage;
+        private final AtomicInteger reads = new AtomicInteger();
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private volatile IOException failure;
+
+        GatedBlockStorage(BlockStorage blockStorage) {
+            this.blockStorage = blockStorage;
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+            return readBlock(blockNumber, buffer, 0, buffer.length, 0);
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+            reads.incrementAndGet();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer) throws IOException {
+            blockStorage.writeBlock(blockNumber, buffer);
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+            blockStorage.writeBlock(blockNumber, buffer, offset, length, position);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            blockStorage.sync();
+        }
+
+        @Override
+        public int getBlockSize() {
+            return blockStorage.getBlockSize();
+        }
+
+        @Override
+        public long getBlocksCount() {
+            return blockStorage.getBlocksCount();
+        }
+
+        @Override
+        public void close() throws Exception {
+            blockStorage.close();
+        }
+    }
+}
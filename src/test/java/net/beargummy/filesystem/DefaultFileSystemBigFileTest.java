@@ -6,6 +6,9 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -109,4 +112,76 @@ public class DefaultFileSystemBigFileTest {
                 .as("file size")
                 .isEqualTo(bytesWritten);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_truncate_double_indirect_blocked_inode_and_grow_again() throws IOException {
+        File file = defaultFileSystem.createFile("foo");
+
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        int directINodes = 12;
+        int indirectINodes = (BLOCK_SIZE / 8);
+        int nodesNeeded = directINodes + indirectINodes + 2 * indirectINodes;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < nodesNeeded; i++) {
+                buffer.clear();
+                for (int j = 0; j < BLOCK_SIZE / 4; j++) {
+                    buffer.putInt(i + round);
+                }
+                int written = file.write(buffer.array(), 0, BLOCK_SIZE, BLOCK_SIZE * (long) i);
+                assertThat(written)
+                        .as("bytes written on write %d in round %d", i, round)
+                        .isEqualTo(BLOCK_SIZE);
+            }
+
+            buffer.clear();
+            file.read(buffer.array(), 0, 4, (nodesNeeded - 1) * (long) BLOCK_SIZE);
+            assertThat(buffer.getInt())
+                    .as("last int in round %d", round)
+                    .isEqualTo(nodesNeeded - 1 + round);
+
+            file.truncate(BLOCK_SIZE * (long) (directINodes + 1));
+            assertThat(file.getFileSize())
+                    .as("file size after truncate in round %d", round)
+                    .isEqualTo(BLOCK_SIZE * (long) (directINodes + 1));
+        }
+    }
+
+    @Test
+    public void should_read_large_range_in_parallel() throws Exception {
+        File file = defaultFileSystem.createFile("foo");
+        int size = 3 * PersistenceManager.PARALLEL_READ_CHUNK_SIZE + BLOCK_SIZE / 3;
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + i / BLOCK_SIZE);
+        }
+        // leave a hole within the second chunk
+        int holeStart = PersistenceManager.PARALLEL_READ_CHUNK_SIZE + 5 * BLOCK_SIZE;
+        Arrays.fill(content, holeStart, holeStart + 3 * BLOCK_SIZE, (byte) 0);
+        file.write(content, 0, holeStart, 0);
+        file.write(content, holeStart + 3 * BLOCK_SIZE, size - holeStart - 3 * BLOCK_SIZE, holeStart + 3 * BLOCK_SIZE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[] buffer = new byte[size + 10];
+            int bytesRead = file.readParallel(buffer, 10, size, 0, executor);
+            assertThat(bytesRead)
+                    .as("bytes read")
+                    .isEqualTo(size);
+            assertThat(Arrays.copyOfRange(buffer, 10, 10 + size))
+                    .as("content read")
+                    .isEqualTo(content);
+
+            int position = BLOCK_SIZE / 2 + 7;
+            buffer = new byte[size];
+            bytesRead = file.readParallel(buffer, 0, size, position);
+            assertThat(bytesRead)
+                    .as("bytes read from unaligned position up to the end of file")
+                    .isEqualTo(size - position);
+            assertThat(Arrays.copyOf(buffer, size - position))
+                    .as("content read from unaligned position")
+                    .isEqualTo(Arrays.copyOfRange(content, position, size));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
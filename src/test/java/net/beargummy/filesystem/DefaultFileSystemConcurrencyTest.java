@@ -0,0 +1,332 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DefaultFileSystemConcurrencyTest {
+
+    public static final int BLOCK_SIZE = 4 * 1024;
+    public static final int BLOCK_COUNT = 4 * 1024;
+    public static final int THREADS = 8;
+    public static final int CHUNKS = 64;
+
+    private DefaultFileSystem defaultFileSystem;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        java.io.File file = java.io.File.createTempFile("DefaultFileSystemConcurrencyTest", "tmp");
+        file.deleteOnExit();
+        DefaultFileSystem defaultFileSystem = new DefaultFileSystem(
+                4,
+                new SingleFileBlockStorage(new RandomAccessFile(file, "rw"), BLOCK_SIZE, BLOCK_COUNT)
+        );
+        defaultFileSystem.initFileSystem();
+        this.defaultFileSystem = defaultFileSystem;
+        this.executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        defaultFileSystem.close();
+    }
+
+    @Test
+    public void should_write_different_files_concurrently() throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int id = i;
+            tasks.add(() -> {
+                File file = defaultFileSystem.createFile("/dir-" + id % 2 + "/file-" + id);
+                byte[] chunk = new byte[BLOCK_SIZE / 2 + 1];
+                for (int c = 0; c < CHUNKS; c++) {
+                    Arrays.fill(chunk, (byte) (id * CHUNKS + c));
+                    file.append(chunk);
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        byte[] chunk = new byte[BLOCK_SIZE / 2 + 1];
+        for (int i = 0; i < THREADS; i++) {
+            File file = defaultFileSystem.openFile("/dir-" + i % 2 + "/file-" + i);
+            assertThat(file.getFileSize())
+                    .as("file %d size", i)
+                    .isEqualTo((long) chunk.length * CHUNKS);
+            for (int c = 0; c < CHUNKS; c++) {
+                file.read(chunk, (long) c * chunk.length);
+                byte expected = (byte) (i * CHUNKS + c);
+                assertThat(chunk)
+                        .as("file %d chunk %d", i, c)
+                        .containsOnly(expected);
+            }
+        }
+    }
+
+    @Test
+    public void should_read_while_other_files_are_written() throws Exception {
+        byte[] content = new byte[BLOCK_SIZE * 4];
+        Arrays.fill(content, (byte) 42);
+        defaultFileSystem.createFile("/shared").write(content);
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int id = i;
+            tasks.add(() -> {
+                if (id % 2 == 0) {
+                    File file = defaultFileSystem.createFile("/file-" + id);
+                    for (int c = 0; c < CHUNKS; c++) {
+                        file.append(new byte[BLOCK_SIZE]);
+                    }
+                } else {
+                    File file = defaultFileSystem.openFile("/shared");
+                    byte[] buffer = new byte[content.length];
+                    for (int c = 0; c < CHUNKS; c++) {
+                        file.read(buffer);
+                        assertThat(buffer)
+                                .as("shared file content")
+                                .isEqualTo(content);
+                    }
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    @Test
+    public void should_append_to_one_file_concurrently() throws Exception {
+        int appenders = THREADS - 2;
+        int chunkSize = BLOCK_SIZE / 2 + 1;
+        File shared = defaultFileSystem.createFile("/log");
+        // first half of appends fits preallocated blocks, second half allocates them
+        shared.preallocate((long) appenders * CHUNKS * chunkSize / 2);
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int id = i;
+            tasks.add(() -> {
+                File file = defaultFileSystem.openFile("/log");
+                if (id < appenders) {
+                    byte[] chunk = new byte[chunkSize];
+                    Arrays.fill(chunk, (byte) (id + 1));
+                    for (int c = 0; c < CHUNKS; c++) {
+                        assertThat(file.append(chunk))
+                                .as("appended bytes")
+                                .isEqualTo(chunkSize);
+                    }
+                } else {
+                    for (int c = 0; c < CHUNKS; c++) {
+                        byte[] buffer = new byte[(int) file.getFileSize()];
+                        file.read(buffer);
+                        for (byte b : buffer) {
+                            assertThat(b)
+                                    .as("published byte")
+                                    .isNotZero();
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        assertThat(shared.getFileSize())
+                .as("file size")
+                .isEqualTo((long) appenders * CHUNKS * chunkSize);
+        int[] chunksByAppender = new int[appenders];
+        byte[] chunk = new byte[chunkSize];
+        for (int c = 0; c < appenders * CHUNKS; c++) {
+            shared.read(chunk, (long) c * chunkSize);
+            byte id = chunk[0];
+            assertThat(chunk)
+                    .as("chunk %d", c)
+                    .containsOnly(id);
+            chunksByAppender[id - 1]++;
+        }
+        assertThat(chunksByAppender)
+                .as("chunks by appender")
+                .containsOnly(CHUNKS);
+    }
+
+    @Test
+    public void should_write_disjoint_ranges_of_one_file_concurrently() throws Exception {
+        int chunkSize = BLOCK_SIZE / 2 + 1;
+        File shared = defaultFileSystem.createFile("/index");
+        // last chunk grows the file, chunks in the hole allocate blocks
+        shared.truncate((long) THREADS * CHUNKS * chunkSize - 1);
+        shared.preallocate((long) THREADS * CHUNKS * chunkSize / 2);
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int id = i;
+            tasks.add(() -> {
+                File file = defaultFileSystem.openFile("/index");
+                byte[] chunk = new byte[chunkSize];
+                Arrays.fill(chunk, (byte) (id + 1));
+                for (int c = 0; c < CHUNKS; c++) {
+                    long position = (long) (c * THREADS + id) * chunkSize;
+                    assertThat(file.write(chunk, 0, chunkSize, position))
+                            .as("written bytes")
+                            .isEqualTo(chunkSize);
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        assertThat(shared.getFileSize())
+                .as("file size")
+                .isEqualTo((long) THREADS * CHUNKS * chunkSize);
+        byte[] chunk = new byte[chunkSize];
+        for (int c = 0; c < THREADS * CHUNKS; c++) {
+            shared.read(chunk, (long) c * chunkSize);
+            assertThat(chunk)
+                    .as("chunk %d", c)
+                    .containsOnly((byte) (c % THREADS + 1));
+        }
+    }
+
+    @Test
+    public void should_serialize_writes_to_locked_range() throws Exception {
+        File file = defaultFileSystem.createFile("/locked");
+        file.write(new byte[BLOCK_SIZE]);
+
+        Future<Integer> write;
+        try (RangeLock lock = file.lock(0, BLOCK_SIZE / 2, true)) {
+            write = executor.submit(() -> defaultFileSystem.openFile("/locked").write(new byte[]{1, 1}, 0, 2, BLOCK_SIZE / 2 - 1));
+            assertThat(executor.submit(() -> defaultFileSystem.openFile("/locked").write(new byte[]{2}, 0, 1, BLOCK_SIZE / 2)).get())
+                    .as("write past locked range")
+                    .isEqualTo(1);
+            assertThat(write.isDone())
+                    .as("write within locked range is blocked")
+                    .isFalse();
+            assertThat(lock.isShared())
+                    .as("shared lock")
+                    .isTrue();
+        }
+        assertThat(write.get())
+                .as("write after lock release")
+                .isEqualTo(2);
+        byte[] buffer = new byte[2];
+        file.read(buffer, BLOCK_SIZE / 2 - 1);
+        assertThat(buffer)
+                .as("written bytes")
+                .containsExactly(1, 1);
+    }
+
+    @Test
+    public void should_deliver_appended_data_to_followers() throws Exception {
+        int followers = THREADS - 1;
+        int chunkSize = BLOCK_SIZE / 3;
+        defaultFileSystem.createFile("/tail");
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int id = i;
+            tasks.add(() -> {
+                File file = defaultFileSystem.openFile("/tail");
+                if (id == followers) {
+                    byte[] chunk = new byte[chunkSize];
+                    for (int c = 0; c < CHUNKS; c++) {
+                        Arrays.fill(chunk, (byte) (c + 1));
+                        file.append(chunk);
+                    }
+                } else {
+                    byte[] content = new byte[CHUNKS * chunkSize];
+                    try (InputStream stream = file.follow(0)) {
+                        int bytesRead = 0;
+                        while (bytesRead < content.length) {
+                            bytesRead += stream.read(content, bytesRead, content.length - bytesRead);
+                        }
+                    }
+                    for (int c = 0; c < CHUNKS; c++) {
+                        assertThat(Arrays.copyOfRange(content, c * chunkSize, (c + 1) * chunkSize))
+                                .as("follower %d chunk %d", id, c)
+                                .containsOnly((byte) (c + 1));
+                    }
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    @Test
+    public void should_end_follow_stream_on_close() throws Exception {
+        File file = defaultFileSystem.createFile("/tail");
+        file.write(new byte[]{1, 2});
+        InputStream stream = file.follow(1);
+
+        Future<Integer> firstRead = executor.submit(() -> stream.read());
+        assertThat(firstRead.get(1, TimeUnit.SECONDS))
+                .as("byte already written")
+                .isEqualTo(2);
+
+        Future<Integer> blockedRead = executor.submit(() -> stream.read());
+        Thread.sleep(50);
+        assertThat(blockedRead.isDone())
+                .as("read past the end of file is blocked")
+                .isFalse();
+        stream.close();
+        assertThat(blockedRead.get(1, TimeUnit.SECONDS))
+                .as("read of closed stream")
+                .isEqualTo(-1);
+    }
+
+    @Test
+    public void should_resolve_paths_while_directory_changes() throws Exception {
+        defaultFileSystem.createFile("/dir/stable").write(new byte[]{42});
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int id = i;
+            tasks.add(() -> {
+                for (int c = 0; c < CHUNKS * 4; c++) {
+                    if (id % 2 == 0) {
+                        // splits and shrinks buckets the stable entry lives in
+                        defaultFileSystem.createFile("/dir/file-" + id + "-" + c);
+                        if (c % 2 == 1) {
+                            defaultFileSystem.deleteFile("/dir/file-" + id + "-" + (c - 1));
+                        }
+                    } else {
+                        File file = defaultFileSystem.openFile("/dir/stable");
+                        assertThat(file.getFileSize())
+                                .as("stable file size")
+                                .isEqualTo(1L);
+                        assertThat(defaultFileSystem.list("/dir"))
+                                .as("directory listing")
+                                .extracting(DirectoryEntry::getName)
+                                .contains("stable");
+                    }
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws Exception {
+        List<Future<Void>> futures = executor.invokeAll(tasks);
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package net.beargummy.filesystem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DefaultFileSystemLargeDirectoryTest {
+
+    public static final int BLOCK_SIZE = 4 * 1024;
+    public static final int BLOCK_COUNT = 16 * 1024;
+    public static final int FILES_COUNT = 5000;
+    private DefaultFileSystem defaultFileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        DefaultFileSystem defaultFileSystem = new DefaultFileSystem(
+                1,
+                new InMemoryBlockStorage(BLOCK_SIZE, BLOCK_COUNT)
+        );
+        defaultFileSystem.initFileSystem();
+        this.defaultFileSystem = defaultFileSystem;
+    }
+
+    @Test
+    public void should_spread_directory_over_many_blocks() throws IOException {
+        for (int i = 0; i < FILES_COUNT; i++) {
+            defaultFileSystem.createFile("/dir/part-" + i);
+        }
+
+        for (int i = 0; i < FILES_COUNT; i++) {
+            assertThat(defaultFileSystem.openFile("/dir/part-" + i))
+                    .as("opened file %d", i)
+                    .isNotNull();
+        }
+        assertThatThrownBy(() -> defaultFileSystem.createFile("/dir/part-42"))
+                .as("duplicate file creation")
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> defaultFileSystem.openFile("/dir/part-" + FILES_COUNT))
+                .as("opening non-existing file")
+                .isInstanceOf(FileNotFoundException.class);
+    }
+
+    @Test
+    public void should_delete_files_from_many_blocks() throws IOException {
+        for (int i = 0; i < FILES_COUNT; i++) {
+            defaultFileSystem.createFile("/dir/part-" + i);
+        }
+        for (int i = 0; i < FILES_COUNT; i += 2) {
+            defaultFileSystem.deleteFile("/dir/part-" + i);
+        }
+
+        for (int i = 0; i < FILES_COUNT; i++) {
+            int index = i;
+            if (i % 2 == 0) {
+                assertThatThrownBy(() -> defaultFileSystem.openFile("/dir/part-" + index))
+                        .as("opening deleted file %d", i)
+                        .isInstanceOf(FileNotFoundException.class);
+            } else {
+                assertThat(defaultFileSystem.openFile("/dir/part-" + i))
+                        .as("opened file %d", i)
+                        .isNotNull();
+            }
+        }
+
+        assertThatThrownBy(() -> defaultFileSystem.deleteFile("/dir"))
+                .as("deleting non-empty directory")
+                .isInstanceOf(IllegalArgumentException.class);
+        for (int i = 1; i < FILES_COUNT; i += 2) {
+            defaultFileSystem.deleteFile("/dir/part-" + i);
+        }
+        defaultFileSystem.deleteFile("/dir");
+    }
+
+    @Test
+    public void should_list_directory_page_by_page() throws IOException {
+        for (int i = 0; i < FILES_COUNT; i++) {
+            defaultFileSystem.createFile("/dir/part-" + i);
+        }
+
+        List<String> names = new ArrayList<>();
+        long cursor = 0;
+        while (true) {
+            List<DirectoryEntry> page = defaultFileSystem.list("/dir", cursor)
+                    .limit(100)
+                    .collect(Collectors.toList());
+            if (page.isEmpty()) {
+                break;
+            }
+            page.forEach(entry -> names.add(entry.getName()));
+            cursor = page.get(page.size() - 1).getCursor();
+        }
+
+        assertThat(names)
+                .as("listed names")
+                .containsExactlyInAnyOrderElementsOf(IntStream.range(0, FILES_COUNT)
+                        .mapToObj(i -> "part-" + i)
+                        .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void should_list_each_untouched_entry_once_while_deleting_and_splitting_between_pages() throws IOException {
+        for (int i = 0; i < FILES_COUNT; i++) {
+            defaultFileSystem.createFile("/dir/part-" + i);
+        }
+
+        List<String> names = new ArrayList<>();
+        long cursor = 0;
+        int created = 0;
+        while (true) {
+            List<DirectoryEntry> page = defaultFileSystem.list("/dir", cursor)
+                    .limit(100)
+                    .collect(Collectors.toList());
+            if (page.isEmpty()) {
+                break;
+            }
+            page.forEach(entry -> names.add(entry.getName()));
+            cursor = page.get(page.size() - 1).getCursor();
+            // records before the cursor slide down in their buckets, and new ones split buckets
+            for (int i = 0; i < page.size(); i += 2) {
+                defaultFileSystem.deleteFile("/dir/" + page.get(i).getName());
+            }
+            for (int i = 0; i < 100; i++) {
+                defaultFileSystem.createFile("/dir/new-part-" + created++);
+            }
+        }
+
+        assertThat(names)
+                .as("listed names")
+                .doesNotHaveDuplicates()
+                .containsAll(IntStream.range(0, FILES_COUNT)
+                        .mapToObj(i -> "part-" + i)
+                        .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void should_list_lazily() throws IOException {
+        for (int i = 0; i < FILES_COUNT; i++) {
+            defaultFileSystem.createFile("/dir/part-" + i);
+        }
+
+        Iterator<DirectoryEntry> iterator = defaultFileSystem.list("/dir").iterator();
+        assertThat(iterator.next())
+                .as("first entry")
+                .isNotNull();
+
+        defaultFileSystem.deleteFile("/dir/part-0");
+        defaultFileSystem.createFile("/dir/new-part");
+        long listed = 1;
+        while (iterator.hasNext()) {
+            iterator.next();
+            listed++;
+        }
+        assertThat(listed)
+                .as("entries listed while directory is modified")
+                .isBetween((long) FILES_COUNT - 1, (long) FILES_COUNT + 1);
+    }
+
+    @Test
+    public void should_create_and_delete_files_in_batch() throws IOException {
+        List<String> names = IntStream.range(0, FILES_COUNT)
+                .mapToObj(i -> "/dir/part-" + i)
+                .collect(Collectors.toList());
+
+        assertThat(defaultFileSystem.createFiles(names))
+                .as("created files")
+                .allMatch(BatchResult::isSuccess);
+        for (String name : names) {
+            assertThat(defaultFileSystem.openFile(name))
+                    .as("opened file %s", name)
+                    .isNotNull();
+        }
+
+        List<String> toDelete = new ArrayList<>(names);
+        toDelete.add("/dir");
+        assertThat(defaultFileSystem.deleteFiles(toDelete))
+                .as("deleted files")
+                .allMatch(BatchResult::isSuccess);
+        assertThatThrownBy(() -> defaultFileSystem.list("/dir"))
+                .as("listing deleted directory")
+                .isInstanceOf(FileNotFoundException.class);
+    }
+
+    @Test
+    public void should_delete_tree_recursively() throws IOException {
+        List<String> names = IntStream.range(0, FILES_COUNT)
+                .mapToObj(i -> "/dir/sub-" + i % 10 + "/part-" + i)
+                .collect(Collectors.toList());
+
+        // more iNodes than file system has in total, so freed ones must be reused
+        for (int round = 0; round < 4; round++) {
+            assertThat(defaultFileSystem.createFiles(names))
+                    .as("files created in round %d", round)
+                    .allMatch(BatchResult::isSuccess);
+
+            defaultFileSystem.deleteRecursively("/dir");
+
+            assertThat(defaultFileSystem.list("/"))
+                    .as("root directory listing in round %d", round)
+                    .isEmpty();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package net.beargummy.filesystem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.spy;
+
+public class DefaultFileSystemMountTest {
+
+    public static final int BLOCK_SIZE = 512;
+    // large enough to have a journal
+    public static final int BLOCK_COUNT = 1024;
+
+    private static final long I_NODE_BIT_MAP_BLOCK = 1;
+    private static final long DATA_NODE_BIT_MAP_BLOCK = 2;
+    private static final long JOURNAL_HEADER_BLOCK = 3;
+    // smallest journal
+    private static final long JOURNAL_BLOCKS = 64;
+
+    private java.io.File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = java.io.File.createTempFile("DefaultFileSystemMountTest", "tmp");
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void should_skip_replay_and_bitmaps_after_clean_close() throws Exception {
+        DefaultFileSystem original = new DefaultFileSystem(1, storage());
+        original.initFileSystem();
+        original.createFile("foo").write(new byte[]{1, 2, 3});
+        original.close();
+
+        BlockStorage blockStorage = spy(storage());
+        DefaultFileSystem restored = new DefaultFileSystem(1, blockStorage);
+        restored.restoreFileSystem();
+
+        assertThat(readBlocks(blockStorage))
+                .as("blocks read by restore")
+                .contains(JOURNAL_HEADER_BLOCK)
+                .doesNotContain(I_NODE_BIT_MAP_BLOCK, DATA_NODE_BIT_MAP_BLOCK)
+                .noneMatch(DefaultFileSystemMountTest::isJournalRecordBlock);
+
+        clearInvocations(blockStorage);
+        restored.createFile("bar").write(new byte[]{4});
+        assertThat(readBlocks(blockStorage))
+                .as("blocks read by first allocation")
+                .contains(I_NODE_BIT_MAP_BLOCK, DATA_NODE_BIT_MAP_BLOCK);
+        assertThat(read(restored.openFile("foo")))
+                .as("restored content")
+                .containsExactly(1, 2, 3);
+        restored.close();
+    }
+
+    @Test
+    public void should_replay_journal_after_crash() throws Exception {
+        BlockStorage crashedStorage = storage();
+        DefaultFileSystem crashed = new DefaultFileSystem(1, crashedStorage);
+        crashed.initFileSystem();
+        crashed.createFile("foo").write(new byte[]{1, 2, 3});
+        // file system is never closed, as if the process died, and its background checkpoints write nothing more
+        crashedStorage.close();
+
+        BlockStorage blockStorage = spy(storage());
+        DefaultFileSystem restored = new DefaultFileSystem(1, blockStorage);
+        restored.restoreFileSystem();
+
+        assertThat(readBlocks(blockStorage))
+                .as("blocks read by restore")
+                .anyMatch(DefaultFileSystemMountTest::isJournalRecordBlock);
+        assertThat(read(restored.openFile("foo")))
+                .as("recovered content")
+                .containsExactly(1, 2, 3);
+        restored.close();
+    }
+
+    @Test
+    public void should_replay_batches_larger_than_journal_transaction_after_crash() throws Exception {
+        BlockStorage crashedStorage = storage();
+        DefaultFileSystem crashed = new DefaultFileSystem(1, crashedStorage);
+        crashed.initFileSystem();
+        List<String> names = IntStream.range(0, 200)
+                .mapToObj(i -> "/dir-" + i % 20 + "/part-" + i)
+                .collect(Collectors.toList());
+        assertThat(crashed.createFiles(names))
+                .as("created files")
+                .allMatch(BatchResult::isSuccess);
+        assertThat(crashed.deleteFiles(names.subList(0, 100)))
+                .as("deleted files")
+                .allMatch(BatchResult::isSuccess);
+        crashedStorage.close();
+
+        DefaultFileSystem restored = new DefaultFileSystem(1, storage());
+        restored.restoreFileSystem();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (i < 100) {
+                assertThatThrownBy(() -> restored.openFile(name))
+                        .as("deleted file %s", name)
+                        .isInstanceOf(FileNotFoundException.class);
+            } else {
+                assertThat(restored.openFile(name))
+                        .as("created file %s", name)
+                        .isNotNull();
+            }
+        }
+        restored.close();
+    }
+
+    @Test
+    public void should_write_small_file_system_in_place() throws Exception {
+        DefaultFileSystem small = new DefaultFileSystem(1,
+                new InMemoryBlockStorage(BLOCK_SIZE, (int) DefaultFileSystem.MIN_JOURNALED_BLOCKS_COUNT - 1));
+        DefaultFileSystem journaled = new DefaultFileSystem(1,
+                new InMemoryBlockStorage(BLOCK_SIZE, (int) DefaultFileSystem.MIN_JOURNALED_BLOCKS_COUNT));
+
+        assertThat(small.isJournaled())
+                .as("small file system is journaled")
+                .isFalse();
+        assertThat(journaled.isJournaled())
+                .as("file system of minimal journaled size is journaled")
+                .isTrue();
+    }
+
+    @Test
+    public void should_restore_without_geometry() throws Exception {
+        FileSystem original = FileSystemManager.getInstance().create(file, BLOCK_SIZE, BLOCK_COUNT);
+        original.createFile("/foo/bar").write(new byte[]{1, 2, 3});
+        original.close();
+
+        try (FileSystem restored = FileSystemManager.getInstance().restore(file)) {
+            assertThat(read(restored.openFile("/foo/bar")))
+                    .as("restored content")
+                    .containsExactly(1, 2, 3);
+        }
+    }
+
+    @Test
+    public void should_reject_geometry_not_matching_superblock() throws Exception {
+        FileSystemManager.getInstance().create(file, BLOCK_SIZE, BLOCK_COUNT).close();
+
+        assertThatThrownBy(() -> FileSystemManager.getInstance().restore(file, BLOCK_SIZE, BLOCK_COUNT / 2))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void should_reject_file_without_file_system() throws Exception {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(BLOCK_SIZE);
+        }
+
+        assertThatThrownBy(() -> FileSystemManager.getInstance().restore(file))
+                .isInstanceOf(IOException.class)
+                .hasMessage("File does not hold a file system image");
+    }
+
+    @Test
+    public void should_reject_storage_without_superblock_leaving_it_intact() throws Exception {
+        // an image which predates superblocks keeps iNodes where the journal is now
+        byte[] iNodes = new byte[BLOCK_SIZE];
+        Arrays.fill(iNodes, (byte) 42);
+        try (BlockStorage blockStorage = storage()) {
+            blockStorage.writeBlock(JOURNAL_HEADER_BLOCK, iNodes);
+        }
+
+        assertThatThrownBy(() -> FileSystemManager.getInstance().restore(file, BLOCK_SIZE, BLOCK_COUNT))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Storage does not hold a supported file system image");
+        byte[] block = new byte[BLOCK_SIZE];
+        try (BlockStorage blockStorage = storage()) {
+            blockStorage.readBlock(JOURNAL_HEADER_BLOCK, block);
+        }
+        assertThat(block)
+                .as("block in the journal region")
+                .isEqualTo(iNodes);
+    }
+
+    @Test
+    public void should_reject_image_of_other_format_version() throws Exception {
+        FileSystemManager.getInstance().create(file, BLOCK_SIZE, BLOCK_COUNT).close();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // version follows the type tag
+            randomAccessFile.seek(4);
+            randomAccessFile.writeInt(SuperBlock.FORMAT_VERSION + 1);
+        }
+
+        assertThatThrownBy(() -> FileSystemManager.getInstance().restore(file))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Unsupported file system format version: " + (SuperBlock.FORMAT_VERSION + 1));
+        assertThatThrownBy(() -> FileSystemManager.getInstance().restore(file, BLOCK_SIZE, BLOCK_COUNT))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Unsupported file system format version: " + (SuperBlock.FORMAT_VERSION + 1));
+    }
+
+    private BlockStorage storage() throws IOException {
+        return new SingleFileBlockStorage(new RandomAccessFile(file, "rw"), BLOCK_SIZE, BLOCK_COUNT);
+    }
+
+    private static boolean isJournalRecordBlock(long blockNumber) {
+        return blockNumber > JOURNAL_HEADER_BLOCK && blockNumber < JOURNAL_HEADER_BLOCK + JOURNAL_BLOCKS;
+    }
+
+    private static Set<Long> readBlocks(BlockStorage blockStorage) {
+        return mockingDetails(blockStorage).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals("readBlock"))
+                .map(invocation -> (Long) invocation.getArgument(0))
+                .collect(Collectors.toSet());
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] content = new byte[(int) file.getFileSize()];
+        file.read(content);
+        return content;
+    }
+}
@@ -0,0 +1,269 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.spy;
+
+public class DefaultFileSystemNamedSnapshotTest {
+
+    public static final int BLOCK_SIZE = 4 * 1024;
+    public static final int BLOCK_COUNT = 64;
+
+    private java.io.File file;
+    private FileSystem fileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        file = java.io.File.createTempFile("DefaultFileSystemNamedSnapshotTest", "tmp");
+        file.deleteOnExit();
+        fileSystem = FileSystemManager.getInstance().create(file, BLOCK_SIZE, BLOCK_COUNT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.close();
+    }
+
+    @Test
+    public void should_read_content_as_of_named_snapshot() throws Exception {
+        File overwritten = fileSystem.createFile("/overwritten");
+        overwritten.write(filled(BLOCK_SIZE * 2, 1));
+        File appended = fileSystem.createFile("/appended");
+        appended.write(filled(BLOCK_SIZE / 2, 2));
+        File truncated = fileSystem.createFile("/truncated");
+        truncated.write(filled(BLOCK_SIZE + 1, 3));
+        fileSystem.createFile("/deleted").write(filled(BLOCK_SIZE, 4));
+
+        fileSystem.createSnapshot("snap");
+        overwritten.write(filled(BLOCK_SIZE * 2, 5));
+        appended.append(filled(BLOCK_SIZE, 6));
+        truncated.truncate(1);
+        fileSystem.deleteFile("/deleted");
+        fileSystem.createFile("/created").write(filled(BLOCK_SIZE, 7));
+
+        try (FileSystem snapshot = fileSystem.openSnapshot("snap")) {
+            assertThat(read(snapshot.openFile("/overwritten")))
+                    .as("overwritten file")
+                    .isEqualTo(filled(BLOCK_SIZE * 2, 1));
+            assertThat(read(snapshot.openFile("/appended")))
+                    .as("appended file")
+                    .isEqualTo(filled(BLOCK_SIZE / 2, 2));
+            assertThat(read(snapshot.openFile("/truncated")))
+                    .as("truncated file")
+                    .isEqualTo(filled(BLOCK_SIZE + 1, 3));
+            assertThat(read(snapshot.openFile("/deleted")))
+                    .as("deleted file")
+                    .isEqualTo(filled(BLOCK_SIZE, 4));
+            assertThat(snapshot.list("/"))
+                    .as("snapshot listing")
+                    .extracting(DirectoryEntry::getName)
+                    .containsExactlyInAnyOrder("overwritten", "appended", "truncated", "deleted");
+        }
+        assertThat(read(fileSystem.openFile("/overwritten")))
+                .as("live overwritten file")
+                .isEqualTo(filled(BLOCK_SIZE * 2, 5));
+        assertThat(read(fileSystem.openFile("/truncated")))
+                .as("live truncated file")
+                .isEqualTo(filled(1, 3));
+        assertThat(fileSystem.list("/"))
+                .as("live listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactlyInAnyOrder("overwritten", "appended", "truncated", "created");
+    }
+
+    @Test
+    public void should_keep_named_snapshots_after_restore() throws Exception {
+        fileSystem.createFile("/foo").write(filled(BLOCK_SIZE, 1));
+        fileSystem.createSnapshot("first");
+        fileSystem.openFile("/foo").write(filled(BLOCK_SIZE, 2));
+        fileSystem.createSnapshot("second");
+        fileSystem.openFile("/foo").write(filled(BLOCK_SIZE, 3));
+        fileSystem.close();
+
+        fileSystem = FileSystemManager.getInstance().restore(file, BLOCK_SIZE, BLOCK_COUNT);
+        assertThat(fileSystem.listSnapshots())
+                .as("restored snapshots")
+                .containsExactly("first", "second");
+        try (FileSystem first = fileSystem.openSnapshot("first");
+             FileSystem second = fileSystem.openSnapshot("second")) {
+            assertThat(read(first.openFile("/foo")))
+                    .as("content of first snapshot")
+                    .isEqualTo(filled(BLOCK_SIZE, 1));
+            assertThat(read(second.openFile("/foo")))
+                    .as("content of second snapshot")
+                    .isEqualTo(filled(BLOCK_SIZE, 2));
+        }
+        assertThat(read(fileSystem.openFile("/foo")))
+                .as("live content")
+                .isEqualTo(filled(BLOCK_SIZE, 3));
+    }
+
+    @Test
+    public void should_roll_back_to_named_snapshot() throws Exception {
+        fileSystem.createFile("/foo").write(filled(BLOCK_SIZE, 1));
+        fileSystem.createSnapshot("snap");
+        fileSystem.openFile("/foo").write(filled(BLOCK_SIZE * 2, 2));
+        fileSystem.createFile("/bar").write(filled(BLOCK_SIZE, 3));
+        fileSystem.close();
+
+        fileSystem = FileSystemManager.getInstance().restoreSnapshot(file, BLOCK_SIZE, BLOCK_COUNT, "snap");
+        assertThat(read(fileSystem.openFile("/foo")))
+                .as("rolled back content")
+                .isEqualTo(filled(BLOCK_SIZE, 1));
+        assertThat(fileSystem.list("/"))
+                .as("rolled back listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("foo");
+        assertThat(fileSystem.listSnapshots())
+                .as("snapshot is kept")
+                .containsExactly("snap");
+
+        fileSystem.createFile("/baz").write(filled(BLOCK_SIZE, 4));
+        fileSystem.close();
+        fileSystem = FileSystemManager.getInstance().restore(file, BLOCK_SIZE, BLOCK_COUNT);
+        assertThat(read(fileSystem.openFile("/foo")))
+                .as("content after restart")
+                .isEqualTo(filled(BLOCK_SIZE, 1));
+        assertThat(read(fileSystem.openFile("/baz")))
+                .as("file created after rollback")
+                .isEqualTo(filled(BLOCK_SIZE, 4));
+    }
+
+    @Test
+    public void should_complete_rollback_torn_by_crash_on_restore() throws Exception {
+        fileSystem.createFile("/foo").write(filled(BLOCK_SIZE, 1));
+        fileSystem.createSnapshot("snap");
+        fileSystem.createFile("/bar").write(filled(BLOCK_SIZE, 2));
+        fileSystem.close();
+        // rollback marked itself in the superblock, then crashed before metadata was copied back
+        try (BlockStorage blockStorage = new SingleFileBlockStorage(new RandomAccessFile(file, "rw"), BLOCK_SIZE, BLOCK_COUNT)) {
+            SuperBlock superBlock = SuperBlock.read(blockStorage);
+            superBlock.setRollbackSnapshot(0);
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            superBlock.writeTo(block);
+            blockStorage.writeBlock(0, block.array());
+        }
+
+        fileSystem = FileSystemManager.getInstance().restore(file);
+        assertThat(fileSystem.list("/"))
+                .as("listing after restore")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("foo");
+
+        // completed rollback is not repeated
+        fileSystem.createFile("/baz").write(filled(BLOCK_SIZE, 3));
+        fileSystem.close();
+        fileSystem = FileSystemManager.getInstance().restore(file);
+        assertThat(fileSystem.list("/"))
+                .as("listing after next restore")
+                .extracting(DirectoryEntry::getName)
+                .containsExactlyInAnyOrder("foo", "baz");
+        assertThat(fileSystem.listSnapshots())
+                .as("snapshot is kept")
+                .containsExactly("snap");
+    }
+
+    @Test
+    public void should_reclaim_blocks_when_named_snapshot_is_deleted() throws Exception {
+        File filler = fileSystem.createFile("/filler");
+        int blocks = 0;
+        try {
+            while (true) {
+                filler.preallocate((long) (blocks + 1) * BLOCK_SIZE);
+                blocks++;
+            }
+        } catch (IOException e) {
+            // storage is full
+        }
+        fileSystem.deleteFile("/filler");
+        long freeSize = (long) blocks * BLOCK_SIZE;
+        // leave room for the snapshot and copies of metadata blocks
+        int fileBlocks = blocks / 2;
+        fileSystem.createFile("/file").write(filled(fileBlocks * BLOCK_SIZE, 1));
+
+        fileSystem.createSnapshot("snap");
+        fileSystem.deleteFile("/file");
+        File next = fileSystem.createFile("/next");
+        assertThatThrownBy(() -> next.preallocate(freeSize - BLOCK_SIZE))
+                .as("blocks of deleted file are kept for snapshot")
+                .isInstanceOf(IOException.class);
+
+        fileSystem.deleteSnapshot("snap");
+        next.preallocate(freeSize - BLOCK_SIZE);
+        assertThat(fileSystem.listSnapshots())
+                .as("snapshots after delete")
+                .isEmpty();
+    }
+
+    @Test
+    public void should_create_named_snapshot_without_copying_data() throws Exception {
+        BlockStorage small = spy(new InMemoryBlockStorage(BLOCK_SIZE, BLOCK_COUNT));
+        BlockStorage large = spy(new InMemoryBlockStorage(BLOCK_SIZE, BLOCK_COUNT));
+
+        assertThat(snapshotWrites(large, BLOCK_SIZE * 32))
+                .as("storage writes for large file system")
+                .isEqualTo(snapshotWrites(small, 1));
+    }
+
+    @Test
+    public void should_reject_invalid_snapshot_operations() throws Exception {
+        fileSystem.createSnapshot("snap");
+
+        assertThatThrownBy(() -> fileSystem.createSnapshot("snap"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Snapshot already exists: snap");
+        assertThatThrownBy(() -> fileSystem.createSnapshot(""))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> fileSystem.createSnapshot(null))
+                .isInstanceOf(NullPointerException.class);
+        assertThatThrownBy(() -> fileSystem.openSnapshot("missing"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Snapshot does not exist: missing");
+        assertThatThrownBy(() -> fileSystem.deleteSnapshot("missing"))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        FileSystem snapshot = fileSystem.openSnapshot("snap");
+        assertThatThrownBy(() -> fileSystem.deleteSnapshot("snap"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Snapshot is open: snap");
+        assertThatThrownBy(() -> snapshot.createFile("/foo"))
+                .isInstanceOf(IllegalStateException.class);
+        snapshot.close();
+        fileSystem.deleteSnapshot("snap");
+    }
+
+    private static long snapshotWrites(BlockStorage blockStorage, int fileSize) throws Exception {
+        try (DefaultFileSystem fs = new DefaultFileSystem(1, blockStorage)) {
+            fs.initFileSystem();
+            fs.createFile("/foo").write(filled(fileSize, 1));
+            clearInvocations(blockStorage);
+            fs.createSnapshot("snap");
+            return mockingDetails(blockStorage).getInvocations().stream()
+                    .filter(invocation -> invocation.getMethod().getName().equals("writeBlock"))
+                    .count();
+        }
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) value);
+        return content;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] content = new byte[(int) file.getFileSize()];
+        file.read(content);
+        return content;
+    }
+}
@@ -0,0 +1,214 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DefaultFileSystemSnapshotTest {
+
+    public static final int BLOCK_SIZE = 4 * 1024;
+    public static final int BLOCK_COUNT = 64;
+    public static final int SLACK_BLOCKS = 8;
+
+    private DefaultFileSystem defaultFileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        java.io.File file = java.io.File.createTempFile("DefaultFileSystemSnapshotTest", "tmp");
+        file.deleteOnExit();
+        DefaultFileSystem defaultFileSystem = new DefaultFileSystem(
+                4,
+                new SingleFileBlockStorage(new RandomAccessFile(file, "rw"), BLOCK_SIZE, BLOCK_COUNT)
+        );
+        defaultFileSystem.initFileSystem();
+        this.defaultFileSystem = defaultFileSystem;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        defaultFileSystem.close();
+    }
+
+    @Test
+    public void should_read_content_as_of_snapshot() throws Exception {
+        File overwritten = defaultFileSystem.createFile("/overwritten");
+        overwritten.write(filled(BLOCK_SIZE * 2, 1));
+        File appended = defaultFileSystem.createFile("/appended");
+        appended.write(filled(BLOCK_SIZE / 2, 2));
+        File truncated = defaultFileSystem.createFile("/truncated");
+        truncated.write(filled(BLOCK_SIZE + 1, 3));
+        defaultFileSystem.createFile("/deleted").write(filled(BLOCK_SIZE, 4));
+
+        try (FileSystem snapshot = defaultFileSystem.openSnapshot()) {
+            overwritten.write(filled(BLOCK_SIZE * 2, 5));
+            appended.append(filled(BLOCK_SIZE, 6));
+            truncated.truncate(1);
+            defaultFileSystem.deleteFile("/deleted");
+            defaultFileSystem.createFile("/created").write(filled(BLOCK_SIZE, 7));
+
+            assertThat(read(snapshot.openFile("/overwritten")))
+                    .as("overwritten file")
+                    .isEqualTo(filled(BLOCK_SIZE * 2, 1));
+            assertThat(read(snapshot.openFile("/appended")))
+                    .as("appended file")
+                    .isEqualTo(filled(BLOCK_SIZE / 2, 2));
+            assertThat(read(snapshot.openFile("/truncated")))
+                    .as("truncated file")
+                    .isEqualTo(filled(BLOCK_SIZE + 1, 3));
+            assertThat(read(snapshot.openFile("/deleted")))
+                    .as("deleted file")
+                    .isEqualTo(filled(BLOCK_SIZE, 4));
+            assertThat(snapshot.list("/"))
+                    .as("snapshot listing")
+                    .extracting(DirectoryEntry::getName)
+                    .containsExactlyInAnyOrder("overwritten", "appended", "truncated", "deleted");
+
+            assertThat(read(defaultFileSystem.openFile("/overwritten")))
+                    .as("live overwritten file")
+                    .isEqualTo(filled(BLOCK_SIZE * 2, 5));
+            assertThat(defaultFileSystem.list("/"))
+                    .as("live listing")
+                    .extracting(DirectoryEntry::getName)
+                    .containsExactlyInAnyOrder("overwritten", "appended", "truncated", "created");
+        }
+    }
+
+    @Test
+    public void should_reject_modification_of_snapshot() throws Exception {
+        defaultFileSystem.createFile("/foo").write(new byte[]{1});
+
+        try (FileSystem snapshot = defaultFileSystem.openSnapshot()) {
+            File file = snapshot.openFile("/foo");
+            assertThatThrownBy(() -> file.write(new byte[]{2}))
+                    .isInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> snapshot.createFile("/bar"))
+                    .isInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> snapshot.deleteFile("/foo"))
+                    .isInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(snapshot::openSnapshot)
+                    .isInstanceOf(IllegalStateException.class);
+        }
+        assertThat(read(defaultFileSystem.openFile("/foo")))
+                .as("live file")
+                .containsExactly(1);
+    }
+
+    @Test
+    public void should_reclaim_blocks_when_snapshot_is_closed() throws Exception {
+        File filler = defaultFileSystem.createFile("/filler");
+        int blocks = 0;
+        try {
+            while (true) {
+                filler.preallocate((long) (blocks + 1) * BLOCK_SIZE);
+                blocks++;
+            }
+        } catch (IOException e) {
+            // storage is full
+        }
+        defaultFileSystem.deleteFile("/filler");
+        // leave room for copies of metadata and directory blocks
+        File file = defaultFileSystem.createFile("/file");
+        file.write(filled((blocks - SLACK_BLOCKS) * BLOCK_SIZE, 1));
+
+        FileSystem snapshot = defaultFileSystem.openSnapshot();
+        defaultFileSystem.deleteFile("/file");
+        File next = defaultFileSystem.createFile("/next");
+        assertThatThrownBy(() -> next.preallocate((long) SLACK_BLOCKS * BLOCK_SIZE))
+                .as("blocks of deleted file are kept for snapshot")
+                .isInstanceOf(IOException.class);
+        assertThat(read(snapshot.openFile("/file")))
+                .as("deleted file in snapshot")
+                .isEqualTo(filled((blocks - SLACK_BLOCKS) * BLOCK_SIZE, 1));
+
+        snapshot.close();
+        next.preallocate((long) (blocks - SLACK_BLOCKS) * BLOCK_SIZE);
+        assertThat(next.getAllocatedSize())
+                .as("allocated size after snapshot is closed")
+                .isEqualTo((long) (blocks - SLACK_BLOCKS) * BLOCK_SIZE);
+    }
+
+    @Test
+    public void should_invalidate_snapshot_when_storage_is_full() throws Exception {
+        File file = defaultFileSystem.createFile("/file");
+        int blocks = 0;
+        try {
+            while (true) {
+                file.preallocate((long) (blocks + 1) * BLOCK_SIZE);
+                blocks++;
+            }
+        } catch (IOException e) {
+            // storage is full
+        }
+        file.truncate((long) blocks * BLOCK_SIZE);
+
+        try (FileSystem snapshot = defaultFileSystem.openSnapshot()) {
+            File old = snapshot.openFile("/file");
+            assertThat(file.write(filled(blocks * BLOCK_SIZE, 1)))
+                    .as("writer is not blocked by snapshot")
+                    .isEqualTo(blocks * BLOCK_SIZE);
+            assertThatThrownBy(() -> old.read(new byte[1]))
+                    .isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    public void should_read_snapshot_while_file_is_written() throws Exception {
+        int chunks = 8;
+        File file = defaultFileSystem.createFile("/file");
+        file.write(filled(chunks * BLOCK_SIZE, 1));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (FileSystem snapshot = defaultFileSystem.openSnapshot()) {
+            List<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 16; i++) {
+                    for (int c = 0; c < chunks; c++) {
+                        file.write(filled(BLOCK_SIZE, i + 2), 0, BLOCK_SIZE, (long) c * BLOCK_SIZE);
+                    }
+                }
+                return null;
+            }));
+            futures.add(executor.submit(() -> {
+                File old = snapshot.openFile("/file");
+                for (int i = 0; i < 16; i++) {
+                    assertThat(read(old))
+                            .as("snapshot content")
+                            .isEqualTo(filled(chunks * BLOCK_SIZE, 1));
+                }
+                return null;
+            }));
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(read(file))
+                .as("live content")
+                .isEqualTo(filled(chunks * BLOCK_SIZE, 17));
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) value);
+        return content;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] content = new byte[(int) file.getFileSize()];
+        file.read(content);
+        return content;
+    }
+}
@@ -7,9 +7,22 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 public class DefaultFileSystemTest {
 
@@ -93,6 +106,244 @@ public class DefaultFileSystemTest {
                 .hasMessageContaining("File is a directory");
     }
 
+    @Test
+    public void should_list_directory() throws IOException {
+        defaultFileSystem.createFile("/foo/bar");
+        defaultFileSystem.createFile("/foo/baz/qux");
+        defaultFileSystem.createFile("quux");
+
+        assertThat(defaultFileSystem.list("/"))
+                .as("root directory listing")
+                .extracting(DirectoryEntry::getName, DirectoryEntry::getType)
+                .containsExactlyInAnyOrder(
+                        tuple("foo", FileType.DIRECTORY),
+                        tuple("quux", FileType.FILE));
+        assertThat(defaultFileSystem.list("/foo"))
+                .as("directory listing")
+                .extracting(DirectoryEntry::getName, DirectoryEntry::getType)
+                .containsExactlyInAnyOrder(
+                        tuple("bar", FileType.FILE),
+                        tuple("baz", FileType.DIRECTORY));
+        assertThat(defaultFileSystem.list("foo/baz"))
+                .as("nested directory listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("qux");
+
+        assertThatThrownBy(() -> defaultFileSystem.list("/foo/bar"))
+                .as("listing a file")
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("File is not a directory");
+        assertThatThrownBy(() -> defaultFileSystem.list("/bar"))
+                .as("listing non-existing directory")
+                .isInstanceOf(FileNotFoundException.class);
+    }
+
+    @Test
+    public void should_delete_directory_recursively() throws IOException {
+        defaultFileSystem.createFile("/foo/bar/baz").write(new byte[]{42});
+        defaultFileSystem.createFile("/foo/qux");
+        defaultFileSystem.createFile("/quux");
+
+        defaultFileSystem.deleteRecursively("/foo");
+
+        assertThat(defaultFileSystem.list("/"))
+                .as("root directory listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("quux");
+        assertThatThrownBy(() -> defaultFileSystem.openFile("/foo/bar/baz"))
+                .as("opening deleted file")
+                .isInstanceOf(FileNotFoundException.class);
+        assertThatThrownBy(() -> defaultFileSystem.deleteRecursively("/foo"))
+                .as("deleting deleted directory")
+                .isInstanceOf(FileNotFoundException.class);
+        assertThatThrownBy(() -> defaultFileSystem.deleteRecursively("/"))
+                .as("deleting root directory")
+                .isInstanceOf(IllegalArgumentException.class);
+
+        // freed iNodes and blocks are reused, stale cached entries are not
+        File file = defaultFileSystem.createFile("/foo/bar/baz");
+        assertThat(file.getFileSize())
+                .as("recreated file size")
+                .isEqualTo(0L);
+        assertThatThrownBy(() -> defaultFileSystem.openFile("/foo/qux"))
+                .as("opening deleted file in recreated directory")
+                .isInstanceOf(FileNotFoundException.class);
+    }
+
+    @Test
+    public void should_rename_file() throws IOException {
+        File file = defaultFileSystem.createFile("/foo/bar");
+        byte[] content = new byte[100];
+        content[42] = 42;
+        file.write(content);
+
+        defaultFileSystem.rename("/foo/bar", "/foo/baz");
+        defaultFileSystem.rename("/foo/baz", "/qux/bar");
+
+        assertThatThrownBy(() -> defaultFileSystem.openFile("/foo/bar"))
+                .as("opening old name")
+                .isInstanceOf(FileNotFoundException.class);
+        assertThatThrownBy(() -> defaultFileSystem.openFile("/foo/baz"))
+                .as("opening intermediate name")
+                .isInstanceOf(FileNotFoundException.class);
+        File renamed = defaultFileSystem.openFile("/qux/bar");
+        byte[] buffer = new byte[content.length];
+        renamed.read(buffer);
+        assertThat(buffer)
+                .as("renamed file content")
+                .isEqualTo(content);
+        assertThat(defaultFileSystem.list("/foo"))
+                .as("source directory listing")
+                .isEmpty();
+    }
+
+    @Test
+    public void should_rename_directory() throws IOException {
+        defaultFileSystem.createFile("/foo/bar/baz");
+
+        defaultFileSystem.rename("/foo/bar", "/qux");
+
+        assertThat(defaultFileSystem.openFile("/qux/baz"))
+                .as("moved file")
+                .isNotNull();
+        assertThat(defaultFileSystem.list("/foo"))
+                .as("source directory listing")
+                .isEmpty();
+        assertThatThrownBy(() -> defaultFileSystem.rename("/qux", "/qux/quux/qux"))
+                .as("moving directory into itself")
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void should_not_rename_to_existing_directory() throws IOException {
+        defaultFileSystem.createFile("/foo/bar");
+        defaultFileSystem.createFile("/foo/baz/qux");
+
+        assertThatThrownBy(() -> defaultFileSystem.rename("/foo/bar", "/foo/baz"))
+                .as("renaming to existing directory")
+                .isInstanceOf(FileAlreadyExists.class);
+        assertThatThrownBy(() -> defaultFileSystem.rename("/foo/baz", "/foo/bar"))
+                .as("renaming directory to existing file")
+                .isInstanceOf(FileAlreadyExists.class);
+        assertThatThrownBy(() -> defaultFileSystem.rename("/foo/qux", "/foo/quux"))
+                .as("renaming non-existing file")
+                .isInstanceOf(FileNotFoundException.class);
+        defaultFileSystem.rename("/foo/bar", "/foo/bar");
+        assertThat(defaultFileSystem.list("/foo"))
+                .as("directory listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactlyInAnyOrder("bar", "baz");
+    }
+
+    @Test
+    public void should_not_create_target_directories_if_rename_fails() throws IOException {
+        defaultFileSystem.createFile("/foo/bar");
+        defaultFileSystem.createFile("/baz");
+
+        assertThatThrownBy(() -> defaultFileSystem.rename("/qux", "/quux/qux"))
+                .as("renaming non-existing file")
+                .isInstanceOf(FileNotFoundException.class);
+        assertThatThrownBy(() -> defaultFileSystem.rename("/foo", "/baz"))
+                .as("renaming directory to existing file")
+                .isInstanceOf(FileAlreadyExists.class);
+        assertThatThrownBy(() -> defaultFileSystem.rename("/baz", "/foo"))
+                .as("renaming file to existing directory")
+                .isInstanceOf(FileAlreadyExists.class);
+        assertThat(defaultFileSystem.list("/"))
+                .as("root directory listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactlyInAnyOrder("foo", "baz");
+        assertThat(defaultFileSystem.list("/foo"))
+                .as("directory listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("bar");
+    }
+
+    @Test
+    public void should_replace_existing_file_on_rename() throws IOException {
+        File file = defaultFileSystem.createFile("/bar");
+        file.write(new byte[]{1, 2, 3});
+        // replaced file takes all free space
+        int replacedSize = defaultFileSystem.createFile("/baz").write(new byte[BLOCK_SIZE * 8]);
+
+        defaultFileSystem.rename("/bar", "/baz");
+
+        byte[] buffer = new byte[3];
+        defaultFileSystem.openFile("/baz").read(buffer);
+        assertThat(buffer)
+                .as("content under replaced name")
+                .containsExactly(1, 2, 3);
+        assertThat(defaultFileSystem.list("/"))
+                .as("directory listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("baz");
+        assertThat(replacedSize)
+                .as("size of replaced file")
+                .isPositive();
+        assertThat(defaultFileSystem.createFile("/qux").write(new byte[replacedSize]))
+                .as("bytes written to space of replaced file")
+                .isEqualTo(replacedSize);
+    }
+
+    @Test
+    public void should_create_files_in_batch() throws IOException {
+        defaultFileSystem.createFile("/foo/existing");
+
+        List<BatchResult<File>> results = defaultFileSystem.createFiles(Arrays.asList(
+                "/foo/bar", "/foo/existing", "/baz/qux", " bad", "/foo/bar", "quux"));
+
+        assertThat(results)
+                .as("batch results")
+                .extracting(BatchResult::getName, BatchResult::isSuccess)
+                .containsExactly(
+                        tuple("/foo/bar", true),
+                        tuple("/foo/existing", false),
+                        tuple("/baz/qux", true),
+                        tuple(" bad", false),
+                        tuple("/foo/bar", false),
+                        tuple("quux", true));
+        assertThat(results.get(1).getError())
+                .as("existing file error")
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(results.get(0).getValue().getName())
+                .as("created file name")
+                .isEqualTo("bar");
+        for (String name : Arrays.asList("/foo/bar", "/baz/qux", "quux")) {
+            assertThat(defaultFileSystem.openFile(name))
+                    .as("reopened %s", name)
+                    .isNotNull();
+        }
+    }
+
+    @Test
+    public void should_delete_files_in_batch() throws IOException {
+        defaultFileSystem.createFiles(Arrays.asList("/foo/bar", "/foo/baz", "qux"));
+
+        List<BatchResult<Void>> results = defaultFileSystem.deleteFiles(Arrays.asList(
+                "/foo/bar", "/foo/baz", "/foo", "/foo/bar", "missing"));
+
+        assertThat(results)
+                .as("batch results")
+                .extracting(BatchResult::getName, BatchResult::isSuccess)
+                .containsExactly(
+                        tuple("/foo/bar", true),
+                        tuple("/foo/baz", true),
+                        tuple("/foo", true),
+                        tuple("/foo/bar", false),
+                        tuple("missing", false));
+        assertThat(results.get(4).getError())
+                .as("missing file error")
+                .isInstanceOf(FileNotFoundException.class);
+        assertThat(defaultFileSystem.list("/"))
+                .as("root directory listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("qux");
+
+        assertThat(defaultFileSystem.createFile("/foo/bar"))
+                .as("file created again")
+                .isNotNull();
+    }
+
     @Test
     public void should_not_allow_delete_non_empty_directory() throws IOException {
         defaultFileSystem.createFile("/foo/bar");
@@ -187,6 +438,38 @@ public class DefaultFileSystemTest {
                 .contains(0, Index.atIndex(bytes.length - 1));
     }
 
+    @Test
+    public void should_publish_zeros_instead_of_stale_bytes_if_append_fails() throws Exception {
+        BlockStorage blockStorage = spy(new InMemoryBlockStorage(BLOCK_SIZE, 8));
+        DefaultFileSystem fs = new DefaultFileSystem(1, blockStorage);
+        fs.initFileSystem();
+        byte[] stale = new byte[BLOCK_SIZE];
+        Arrays.fill(stale, (byte) 7);
+        fs.createFile("old").write(stale);
+        fs.deleteFile("old");
+        File file = fs.createFile("foo");
+        // takes the block freed by the deleted file
+        file.preallocate(BLOCK_SIZE);
+
+        doThrow(new IOException("Device failure")).doCallRealMethod()
+                .when(blockStorage).writeBlock(anyLong(), any(byte[].class), anyInt(), anyInt(), anyLong());
+        assertThatThrownBy(() -> file.append(new byte[]{1, 2, 3}))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Device failure");
+
+        assertThat(file.getFileSize())
+                .as("published size")
+                .isEqualTo(3L);
+        byte[] content = new byte[3];
+        file.read(content);
+        assertThat(content)
+                .as("content of failed append")
+                .containsExactly(0, 0, 0);
+        assertThat(file.append(new byte[]{4}))
+                .as("bytes of next append")
+                .isEqualTo(1);
+    }
+
     @Test
     public void should_write_content_to_file_and_read_back_after_open() throws IOException {
         File originalFile = defaultFileSystem.createFile("foo");
@@ -323,6 +606,118 @@ public class DefaultFileSystemTest {
                 .isEqualTo((long) data.length);
     }
 
+    @Test
+    public void should_preallocate_space_without_changing_size() throws IOException {
+        File file = defaultFileSystem.createFile("foo");
+        file.preallocate(BLOCK_SIZE * 2);
+
+        assertThat(file.getFileSize())
+                .as("file size after preallocation")
+                .isEqualTo(0L);
+
+        File other = defaultFileSystem.createFile("bar");
+        assertThat(other.write(new byte[BLOCK_SIZE * 2]))
+                .as("bytes written to other file when space is reserved")
+                .isEqualTo(BLOCK_SIZE);
+
+        assertThat(file.write(new byte[BLOCK_SIZE * 2]))
+                .as("bytes written to preallocated space")
+                .isEqualTo(BLOCK_SIZE * 2);
+
+        assertThatThrownBy(() -> defaultFileSystem.createFile("baz").preallocate(BLOCK_SIZE))
+                .as("preallocation when no space")
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void should_truncate_file_and_free_blocks() throws IOException {
+        File file = defaultFileSystem.createFile("foo");
+        byte[] data = "Some data".getBytes();
+        file.write(data);
+        file.preallocate(BLOCK_SIZE * 3);
+
+        file.truncate(4);
+
+        assertThat(file.getFileSize())
+                .as("file size after truncate")
+                .isEqualTo(4L);
+        byte[] bytes = new byte[data.length];
+        assertThat(file.read(bytes))
+                .as("bytes read after truncate")
+                .isEqualTo(4);
+        assertThat(bytes)
+                .as("content after truncate")
+                .startsWith("Some".getBytes());
+
+        File other = defaultFileSystem.createFile("bar");
+        assertThat(other.write(new byte[BLOCK_SIZE * 2]))
+                .as("bytes written to freed space")
+                .isEqualTo(BLOCK_SIZE * 2);
+
+        assertThatThrownBy(() -> file.truncate(-1))
+                .as("truncate to negative size")
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void should_write_sparse_file() throws IOException {
+        File file = defaultFileSystem.createFile("foo");
+        byte[] data = "Some data".getBytes();
+        long position = BLOCK_SIZE * 100L + 8;
+
+        assertThat(file.write(data, 0, data.length, position))
+                .as("bytes written past the end of file")
+                .isEqualTo(data.length);
+        assertThat(file.getFileSize())
+                .as("logical file size")
+                .isEqualTo(position + data.length);
+        assertThat(file.getAllocatedSize())
+                .as("allocated file size")
+                .isEqualTo(BLOCK_SIZE);
+
+        byte[] bytes = new byte[BLOCK_SIZE];
+        assertThat(file.read(bytes, BLOCK_SIZE * 50L))
+                .as("bytes read from hole")
+                .isEqualTo(BLOCK_SIZE);
+        assertThat(bytes)
+                .as("hole content")
+                .containsOnly(0);
+
+        assertThat(file.read(bytes, 0, BLOCK_SIZE, BLOCK_SIZE * 100L))
+                .as("bytes read from last block")
+                .isEqualTo(8 + data.length);
+        assertThat(bytes)
+                .as("last block content")
+                .startsWith(new byte[8])
+                .containsSequence(data);
+    }
+
+    @Test
+    public void should_extend_file_with_hole_on_truncate() throws IOException {
+        File file = defaultFileSystem.createFile("foo");
+        file.write("Some data".getBytes());
+
+        file.truncate(4);
+        file.truncate(BLOCK_SIZE * 2);
+
+        assertThat(file.getFileSize())
+                .as("file size after extending truncate")
+                .isEqualTo(BLOCK_SIZE * 2L);
+        assertThat(file.getAllocatedSize())
+                .as("allocated file size after extending truncate")
+                .isEqualTo(BLOCK_SIZE);
+
+        byte[] bytes = new byte[BLOCK_SIZE * 2];
+        assertThat(file.read(bytes))
+                .as("bytes read")
+                .isEqualTo(BLOCK_SIZE * 2);
+        assertThat(bytes)
+                .as("content after extending truncate")
+                .startsWith("Some".getBytes())
+                .contains(0, Index.atIndex(4))
+                .endsWith(new byte[BLOCK_SIZE]);
+    }
+
     @Test
     public void no_interactions_after_close() throws Exception {
         File file = defaultFileSystem.createFile("foo");
@@ -346,4 +741,48 @@ file.close();
                 .isInstanceOf(IllegalStateException.class)
                 .hasMessage("File closed");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_share_file_size_between_handles_without_storage_access() throws Exception {
+        BlockStorage blockStorage = spy(new InMemoryBlockStorage(BLOCK_SIZE, 8));
+        DefaultFileSystem fs = new DefaultFileSystem(1, blockStorage);
+        fs.initFileSystem();
+        File writer = fs.createFile("foo");
+        File reader = fs.openFile("foo");
+
+        writer.append(new byte[]{1, 2, 3});
+        clearInvocations(blockStorage);
+        assertThat(reader.getFileSize())
+                .as("size seen by other handle")
+                .isEqualTo(3L);
+        verifyNoInteractions(blockStorage);
+
+        writer.truncate(1);
+        assertThat(reader.getFileSize())
+                .as("size after truncate")
+                .isEqualTo(1L);
+    }
+
+    @Test
+    public void should_sync_storage_on_demand_and_per_operation() throws Exception {
+        BlockStorage blockStorage = spy(new InMemoryBlockStorage(BLOCK_SIZE, 8));
+        DefaultFileSystem fs = new DefaultFileSystem(1, blockStorage);
+        fs.initFileSystem();
+        File file = fs.createFile("foo");
+        file.write(new byte[]{1, 2, 3});
+        verify(blockStorage, never()).sync();
+
+        file.sync();
+        verify(blockStorage, atLeastOnce()).sync();
+        clearInvocations(blockStorage);
+        fs.sync();
+        verify(blockStorage, atLeastOnce()).sync();
+
+        BlockStorage durableStorage = spy(new InMemoryBlockStorage(BLOCK_SIZE, 8));
+        DefaultFileSystem durable = new DefaultFileSystem(1, durableStorage, Durability.perOperation());
+        durable.initFileSystem();
+        clearInvocations(durableStorage);
+        durable.createFile("bar").write(new byte[]{1, 2, 3});
+        verify(durableStorage, atLeastOnce()).sync();
+    }
+}
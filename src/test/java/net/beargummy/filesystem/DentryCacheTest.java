@@ -0,0 +1,73 @@
+package net.beargummy.filesystem;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DentryCacheTest {
+
+    @Test
+    public void should_cache_positive_and_negative_entries() {
+        DentryCache cache = new DentryCache();
+        cache.put(0, "foo", 7);
+        cache.put(0, "bar", DentryCache.NEGATIVE);
+
+        assertThat(cache.get(0, "foo"))
+                .as("positive entry")
+                .isEqualTo(7L);
+        assertThat(cache.get(0, "bar"))
+                .as("negative entry")
+                .isEqualTo(DentryCache.NEGATIVE);
+        assertThat(cache.get(1, "foo"))
+                .as("same name in other directory")
+                .isNull();
+    }
+
+    @Test
+    public void should_invalidate_entry() {
+        DentryCache cache = new DentryCache();
+        cache.put(0, "foo", 7);
+
+        cache.invalidate(0, "foo");
+
+        assertThat(cache.get(0, "foo"))
+                .as("invalidated entry")
+                .isNull();
+    }
+
+    @Test
+    public void should_invalidate_entries_of_directories() {
+        DentryCache cache = new DentryCache();
+        cache.put(0, "foo", 7);
+        cache.put(7, "bar", 8);
+        cache.put(7, "baz", DentryCache.NEGATIVE);
+        cache.put(9, "qux", 10);
+
+        cache.invalidateParents(new HashSet<>(Arrays.asList(7L, 9L)));
+
+        assertThat(cache.get(0, "foo"))
+                .as("entry of other directory")
+                .isEqualTo(7L);
+        assertThat(cache.size())
+                .as("cache size")
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void should_not_grow_over_capacity() {
+        DentryCache cache = new DentryCache(16);
+        for (int i = 0; i < 100; i++) {
+            cache.put(0, "foo" + i, i);
+        }
+
+        assertThat(cache.size())
+                .as("cache size")
+                .isEqualTo(16);
+        assertThat(cache.get(0, "foo99"))
+                .as("last put entry")
+                .isEqualTo(99L);
+    }
+}
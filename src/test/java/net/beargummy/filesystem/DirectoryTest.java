@@ -0,0 +1,128 @@
+package net.beargummy.filesystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class DirectoryTest {
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+    private BlockStorage blockStorage;
+    private DefaultFileSystem fs;
+
+    @Before
+    public void setUp() throws Exception {
+        blockStorage = spy(new InMemoryBlockStorage(BLOCK_SIZE, 64));
+        fs = new DefaultFileSystem(blockStorage);
+        fs.initFileSystem();
+    }
+
+    @Test
+    public void should_write_only_changed_bytes_on_add_and_delete() throws IOException {
+        Directory directory = new Directory(fs, fs.readINode(0));
+        for (int i = 0; i < 10; i++) {
+            directory.addFile("foo" + i, new INode(fs, i + 1, FileType.FILE, 0L, Collections.emptyList()));
+        }
+        int recordSize = new DirectoryRecord(FileType.FILE, 1, "foo0").recordSize;
+        int usedBytes = DirectoryData.HEADER_SIZE + 11 * recordSize;
+
+        clearInvocations(blockStorage);
+        directory.addFile("bar", new INode(fs, 11, FileType.FILE, 0L, Collections.emptyList()));
+        directory.deleteFile("foo0");
+
+        ArgumentCaptor<Integer> lengths = ArgumentCaptor.forClass(Integer.class);
+        verify(blockStorage, atLeastOnce()).writeBlock(anyLong(), any(byte[].class), anyInt(), lengths.capture(), anyLong());
+        assertThat(lengths.getAllValues())
+                .as("written lengths")
+                .allMatch(length -> length <= usedBytes);
+
+        assertThat(directory.containsFile("bar"))
+                .as("added file")
+                .isTrue();
+        assertThat(directory.containsFile("foo0"))
+                .as("deleted file")
+                .isFalse();
+        for (int i = 1; i < 10; i++) {
+            assertThat(directory.getFileINodeNumber("foo" + i))
+                    .as("file %d after delete", i)
+                    .isEqualTo(i + 1);
+        }
+    }
+
+    @Test
+    public void should_write_each_bucket_once_per_batch() throws IOException {
+        Directory directory = new Directory(fs, fs.readINode(0));
+        List<DirectoryRecord> records = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(directory.newRecord("foo" + i, new INode(fs, i + 1, FileType.FILE, 0L, Collections.emptyList())));
+            names.add("foo" + i);
+        }
+
+        clearInvocations(blockStorage);
+        directory.addFiles(records);
+        verify(blockStorage, times(2)).writeBlock(anyLong(), any(byte[].class), anyInt(), anyInt(), anyLong());
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(directory.getFileINodeNumber("foo" + i))
+                    .as("added file %d", i)
+                    .isEqualTo(i + 1);
+        }
+
+        clearInvocations(blockStorage);
+        directory.deleteFiles(names.subList(0, 50));
+        verify(blockStorage, times(1)).writeBlock(anyLong(), any(byte[].class), anyInt(), anyInt(), anyLong());
+
+        assertThat(names)
+                .as("files after batch delete")
+                .allMatch(name -> containsFile(directory, name) == names.indexOf(name) >= 50);
+    }
+
+    @Test
+    public void should_store_names_in_utf8() throws IOException {
+        Directory directory = new Directory(fs, fs.readINode(0));
+        List<String> names = Arrays.asList("файл", "日本語.txt", "naïve", "naive");
+        for (int i = 0; i < names.size(); i++) {
+            directory.addFile(names.get(i), new INode(fs, i + 1, FileType.FILE, 0L, Collections.emptyList()));
+        }
+
+        for (int i = 0; i < names.size(); i++) {
+            assertThat(directory.getFileINodeNumber(names.get(i)))
+                    .as("file %s", names.get(i))
+                    .isEqualTo(i + 1);
+        }
+        assertThat(directory.getFileINodeNumber("файл2"))
+                .as("missing file")
+                .isEqualTo(-1);
+
+        DirectoryRecord record = new DirectoryRecord(FileType.FILE, 1, "日本語.txt");
+        assertThat(record.nameSize)
+                .as("encoded name size")
+                .isEqualTo("日本語.txt".getBytes(StandardCharsets.UTF_8).length);
+
+        directory.deleteFile("naïve");
+        assertThat(directory.iterator(0, true))
+                .as("listed names")
+                .extracting(DirectoryEntry::getName)
+                .containsExactlyInAnyOrder("файл", "日本語.txt", "naive");
+    }
+
+    private static boolean containsFile(Directory directory, String name) {
+        try {
+            return directory.containsFile(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
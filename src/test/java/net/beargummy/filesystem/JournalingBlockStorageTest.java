@@ -0,0 +1,326 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class JournalingBlockStorageTest {
+
+    public static final int BLOCK_SIZE = 512;
+    public static final int BLOCK_COUNT = 64;
+    public static final long JOURNAL_START = 1;
+    public static final long JOURNAL_BLOCKS = 16;
+    public static final long DATA_START = 32;
+    public static final long METADATA_BLOCK = 20;
+    public static final long DATA_BLOCK = 40;
+
+    // background checkpoints never run, so records stay in the journal until it is full
+    private static final Executor NO_CHECKPOINTS = task -> {
+    };
+
+    private InMemoryBlockStorage storage;
+    private JournalingBlockStorage journal;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new InMemoryBlockStorage(BLOCK_SIZE, BLOCK_COUNT);
+        journal = newJournal();
+        journal.format();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void should_replay_committed_transaction_after_crash() throws Exception {
+        journal.begin(true);
+        journal.writeBlock(METADATA_BLOCK, filled(1));
+        journal.writeBlock(DATA_BLOCK, filled(2));
+        journal.awaitCommitted(journal.commit());
+
+        assertThat(read(storage, METADATA_BLOCK))
+                .as("home block before checkpoint")
+                .isEqualTo(filled(0));
+
+        newJournal().recover();
+        assertThat(read(storage, METADATA_BLOCK))
+                .as("replayed metadata block")
+                .isEqualTo(filled(1));
+        assertThat(read(storage, DATA_BLOCK))
+                .as("replayed data block")
+                .isEqualTo(filled(2));
+    }
+
+    @Test
+    public void should_stop_replay_at_torn_record() throws Exception {
+        journal.writeBlock(METADATA_BLOCK, filled(1));
+        journal.writeBlock(METADATA_BLOCK + 1, filled(2));
+        // second record starts after the first one's header and content block
+        storage.writeBlock(JOURNAL_START + 1 + 3, filled(3));
+
+        newJournal().recover();
+        assertThat(read(storage, METADATA_BLOCK))
+                .as("block of complete record")
+                .isEqualTo(filled(1));
+        assertThat(read(storage, METADATA_BLOCK + 1))
+                .as("block of torn record")
+                .isEqualTo(filled(0));
+    }
+
+    @Test
+    public void should_show_transaction_writes_to_other_threads_after_commit() throws Exception {
+        journal.begin(false);
+        journal.writeBlock(METADATA_BLOCK, filled(1), 0, 8, 16);
+
+        byte[] expected = filled(0);
+        Arrays.fill(expected, 16, 24, (byte) 1);
+        assertThat(read(journal, METADATA_BLOCK))
+                .as("block read by writer")
+                .isEqualTo(expected);
+        assertThat(executor.submit(() -> read(journal, METADATA_BLOCK)).get())
+                .as("block read by other thread before commit")
+                .isEqualTo(filled(0));
+
+        journal.awaitCommitted(journal.commit());
+        assertThat(executor.submit(() -> read(journal, METADATA_BLOCK)).get())
+                .as("block read by other thread after commit")
+                .isEqualTo(expected);
+    }
+
+    @Test
+    public void should_write_data_blocks_in_place_unless_transaction_journals_data() throws Exception {
+        journal.begin(false);
+        journal.writeBlock(DATA_BLOCK, filled(1));
+        assertThat(read(storage, DATA_BLOCK))
+                .as("data block written in place")
+                .isEqualTo(filled(1));
+        journal.writeBlock(METADATA_BLOCK, filled(2));
+        assertThat(read(storage, METADATA_BLOCK))
+                .as("metadata block")
+                .isEqualTo(filled(0));
+        journal.awaitCommitted(journal.commit());
+    }
+
+    @Test
+    public void should_write_home_locations_on_checkpoint() throws Exception {
+        journal.writeBlock(METADATA_BLOCK, filled(1));
+        journal.checkpoint();
+
+        assertThat(read(storage, METADATA_BLOCK))
+                .as("home block after checkpoint")
+                .isEqualTo(filled(1));
+        // checkpointed record is not replayed over a later in-place write
+        storage.writeBlock(METADATA_BLOCK, filled(2));
+        newJournal().recover();
+        assertThat(read(storage, METADATA_BLOCK))
+                .as("home block after recovery")
+                .isEqualTo(filled(2));
+    }
+
+    @Test
+    public void should_not_tear_transaction_on_checkpoint_before_next_record_is_written() throws Exception {
+        journal.begin(false);
+        journal.writeBlock(METADATA_BLOCK, filled(1));
+        journal.writeBlock(METADATA_BLOCK + 1, filled(1));
+        journal.awaitCommitted(journal.commit());
+        // committed, but not in the journal yet
+        journal.begin(false);
+        journal.writeBlock(METADATA_BLOCK + 1, filled(2));
+        journal.commit();
+
+        journal.checkpoint();
+        // crash before the second record is written
+        newJournal().recover();
+        assertThat(read(storage, METADATA_BLOCK))
+                .as("first block of the transaction")
+                .isEqualTo(filled(1));
+        assertThat(read(storage, METADATA_BLOCK + 1))
+                .as("second block of the transaction")
+                .isEqualTo(filled(1));
+    }
+
+    @Test
+    public void should_reuse_journal_space() throws Exception {
+        int records = (int) JOURNAL_BLOCKS * 4;
+        int[] expected = new int[3];
+        for (int i = 0; i < records; i++) {
+            journal.writeBlock(METADATA_BLOCK + i % 3, filled(i + 1));
+            expected[i % 3] = i + 1;
+        }
+        for (int i = 0; i < 3; i++) {
+            assertThat(read(journal, METADATA_BLOCK + i))
+                    .as("block %d", i)
+                    .isEqualTo(filled(expected[i]));
+        }
+
+        newJournal().recover();
+        for (int i = 0; i < 3; i++) {
+            assertThat(read(storage, METADATA_BLOCK + i))
+                    .as("recovered block %d", i)
+                    .isEqualTo(filled(expected[i]));
+        }
+    }
+
+    @Test
+    public void should_keep_later_full_block_write_of_other_transaction() throws Exception {
+        journal.begin(false);
+        journal.writeBlock(METADATA_BLOCK, filled(1));
+        // written after the transaction's write, but committed before it
+        executor.submit(() -> {
+            journal.writeBlock(METADATA_BLOCK, filled(2));
+            return null;
+        }).get();
+        journal.awaitCommitted(journal.commit());
+
+        assertThat(read(journal, METADATA_BLOCK))
+                .as("block content")
+                .isEqualTo(filled(2));
+    }
+
+    @Test
+    public void should_replay_transaction_of_many_records_whole() throws Exception {
+        InMemoryBlockStorage storage = new InMemoryBlockStorage(BLOCK_SIZE, 1024);
+        JournalingBlockStorage journal = largeJournal(storage);
+        journal.format();
+        journal.begin(false);
+        for (int i = 0; i < 100; i++) {
+            journal.writeBlock(200 + i, filled(1));
+        }
+        journal.awaitCommitted(journal.commit());
+
+        largeJournal(storage).recover();
+        for (int i = 0; i < 100; i++) {
+            assertThat(read(storage, 200 + i))
+                    .as("replayed block %d", i)
+                    .isEqualTo(filled(1));
+        }
+    }
+
+    @Test
+    public void should_not_replay_transaction_with_torn_record() throws Exception {
+        InMemoryBlockStorage storage = new InMemoryBlockStorage(BLOCK_SIZE, 1024);
+        JournalingBlockStorage journal = largeJournal(storage);
+        journal.format();
+        journal.begin(false);
+        for (int i = 0; i < 100; i++) {
+            journal.writeBlock(200 + i, filled(1));
+        }
+        journal.awaitCommitted(journal.commit());
+        // second record starts after the first one's header and as many blocks as a record holds
+        int recordBlocks = (BLOCK_SIZE - 24) / Long.BYTES;
+        storage.writeBlock(JOURNAL_START + 1 + 1 + recordBlocks, filled(3));
+
+        largeJournal(storage).recover();
+        for (int i = 0; i < 100; i++) {
+            assertThat(read(storage, 200 + i))
+                    .as("block %d of torn transaction", i)
+                    .isEqualTo(filled(0));
+        }
+    }
+
+    @Test
+    public void should_reject_transaction_larger_than_journal() throws Exception {
+        int capacity = journal.getTransactionCapacity();
+        journal.begin(true);
+        for (int i = 0; i <= capacity; i++) {
+            journal.writeBlock(JOURNAL_START + JOURNAL_BLOCKS + i, filled(1));
+        }
+        assertThatThrownBy(() -> journal.commit())
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(read(journal, JOURNAL_START + JOURNAL_BLOCKS))
+                .as("block of rejected transaction")
+                .isEqualTo(filled(0));
+
+        journal.begin(true);
+        for (int i = 0; i < capacity; i++) {
+            journal.writeBlock(JOURNAL_START + JOURNAL_BLOCKS + i, filled(2));
+        }
+        journal.awaitCommitted(journal.commit());
+        newJournal().recover();
+        for (int i = 0; i < capacity; i++) {
+            assertThat(read(storage, JOURNAL_START + JOURNAL_BLOCKS + i))
+                    .as("replayed block %d of transaction as large as journal holds", i)
+                    .isEqualTo(filled(2));
+        }
+    }
+
+    @Test
+    public void should_commit_restarted_transaction_in_parts() throws Exception {
+        journal.begin(false);
+        journal.writeBlock(METADATA_BLOCK, filled(1));
+        journal.restart();
+        journal.writeBlock(METADATA_BLOCK + 1, filled(2));
+
+        assertThat(executor.submit(() -> read(journal, METADATA_BLOCK)).get())
+                .as("block of first part read by other thread")
+                .isEqualTo(filled(1));
+        assertThat(executor.submit(() -> read(journal, METADATA_BLOCK + 1)).get())
+                .as("block of second part read by other thread")
+                .isEqualTo(filled(0));
+        assertThat(journal.getTransactionBlocks())
+                .as("blocks of second part")
+                .isEqualTo(1);
+
+        journal.awaitCommitted(journal.commit());
+        newJournal().recover();
+        assertThat(read(storage, METADATA_BLOCK + 1))
+                .as("replayed block of second part")
+                .isEqualTo(filled(2));
+    }
+
+    @Test
+    public void should_restore_file_system_after_crash() throws Exception {
+        InMemoryBlockStorage storage = new InMemoryBlockStorage(BLOCK_SIZE, 4096);
+        DefaultFileSystem fileSystem = new DefaultFileSystem(4, storage);
+        fileSystem.initFileSystem();
+        fileSystem.createFile("/dir/foo").write(new byte[]{1, 2, 3});
+        fileSystem.createFile("/bar");
+        fileSystem.deleteFile("/bar");
+
+        // file system is not closed, so metadata lives in the journal only
+        DefaultFileSystem restored = new DefaultFileSystem(4, storage);
+        restored.restoreFileSystem();
+        assertThat(restored.list("/"))
+                .as("root listing")
+                .extracting(DirectoryEntry::getName)
+                .containsExactly("dir");
+        byte[] content = new byte[3];
+        restored.openFile("/dir/foo").read(content);
+        assertThat(content)
+                .as("file content")
+                .containsExactly(1, 2, 3);
+    }
+
+    private JournalingBlockStorage newJournal() {
+        return new JournalingBlockStorage(storage, JOURNAL_START, JOURNAL_BLOCKS, DATA_START, NO_CHECKPOINTS);
+    }
+
+    // room for transactions of several records
+    private static JournalingBlockStorage largeJournal(BlockStorage storage) {
+        return new JournalingBlockStorage(storage, JOURNAL_START, 128, 512, NO_CHECKPOINTS);
+    }
+
+    private static byte[] filled(int value) {
+        byte[] content = new byte[BLOCK_SIZE];
+        Arrays.fill(content, (byte) value);
+        return content;
+    }
+
+    private static byte[] read(BlockStorage blockStorage, long blockNumber) throws Exception {
+        byte[] content = new byte[BLOCK_SIZE];
+        blockStorage.readBlock(blockNumber, content);
+        return content;
+    }
+}
@@ -0,0 +1,234 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.spy;
+
+public class LogStructuredBlockStorageTest {
+
+    public static final int BLOCK_SIZE = 512;
+    public static final int BLOCK_COUNT = 1024;
+
+    private java.io.File file;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        file = java.io.File.createTempFile("LogStructuredBlockStorageTest", "tmp");
+        file.deleteOnExit();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void should_read_written_blocks() throws Exception {
+        LogStructuredBlockStorage log = LogStructuredBlockStorage.format(storage(), executor);
+        log.writeBlock(7, filled(1));
+        log.writeBlock(3, filled(2));
+        log.writeBlock(7, new byte[]{9, 9}, 0, 2, 10);
+
+        byte[] expected = filled(1);
+        expected[10] = 9;
+        expected[11] = 9;
+        assertThat(read(log, 7))
+                .as("partially overwritten block")
+                .isEqualTo(expected);
+        assertThat(read(log, 5))
+                .as("never written block")
+                .isEqualTo(new byte[BLOCK_SIZE]);
+
+        log.sync();
+        log.writeBlock(3, new byte[]{4}, 0, 1, BLOCK_SIZE - 1);
+        byte[] expectedAfterSync = filled(2);
+        expectedAfterSync[BLOCK_SIZE - 1] = 4;
+        assertThat(read(log, 7))
+                .as("block read from the log")
+                .isEqualTo(expected);
+        assertThat(read(log, 3))
+                .as("block partially overwritten after sync")
+                .isEqualTo(expectedAfterSync);
+        assertThat(log.getBlocksCount())
+                .as("blocks exposed by the log")
+                .isLessThan(BLOCK_COUNT);
+        assertThatThrownBy(() -> log.writeBlock(log.getBlocksCount(), filled(1)))
+                .isInstanceOf(IllegalArgumentException.class);
+        log.close();
+    }
+
+    @Test
+    public void should_write_scattered_blocks_sequentially() throws Exception {
+        BlockStorage storage = spy(storage());
+        LogStructuredBlockStorage log = LogStructuredBlockStorage.format(storage, executor);
+        clearInvocations(storage);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 32; i++) {
+            log.writeBlock(random.nextInt((int) log.getBlocksCount()), filled(i));
+        }
+        log.sync();
+
+        assertThat(invocations(storage, "writeBlock"))
+                .as("single block writes")
+                .isZero();
+        assertThat(invocations(storage, "writeBlocks"))
+                .as("sequential writes")
+                .isEqualTo(1);
+        log.close();
+    }
+
+    @Test
+    public void should_keep_blocks_after_reopen() throws Exception {
+        LogStructuredBlockStorage log = LogStructuredBlockStorage.format(storage(), executor);
+        log.writeBlock(1, filled(1));
+        log.writeBlock(2, filled(2));
+        log.writeBlock(1, filled(3));
+        log.close();
+
+        LogStructuredBlockStorage reopened = LogStructuredBlockStorage.open(storage(), executor);
+        assertThat(read(reopened, 1))
+                .as("overwritten block")
+                .isEqualTo(filled(3));
+        assertThat(read(reopened, 2))
+                .as("written block")
+                .isEqualTo(filled(2));
+        reopened.close();
+    }
+
+    @Test
+    public void should_roll_forward_synced_blocks_after_crash() throws Exception {
+        LogStructuredBlockStorage crashed = LogStructuredBlockStorage.format(storage(), executor);
+        crashed.writeBlock(1, filled(1));
+        crashed.writeBlock(2, filled(2));
+        crashed.sync();
+        crashed.writeBlock(1, filled(3));
+        crashed.sync();
+        crashed.writeBlock(2, filled(4));
+        // never synced nor closed, as if the process died
+
+        LogStructuredBlockStorage recovered = LogStructuredBlockStorage.open(storage(), executor);
+        assertThat(read(recovered, 1))
+                .as("block synced before crash")
+                .isEqualTo(filled(3));
+        assertThat(read(recovered, 2))
+                .as("block written after last sync")
+                .isEqualTo(filled(2));
+        recovered.close();
+    }
+
+    @Test
+    public void should_keep_content_while_cleaner_reclaims_segments() throws Exception {
+        LogStructuredBlockStorage log = LogStructuredBlockStorage.format(storage(), executor);
+        int blocks = (int) log.getBlocksCount();
+        Map<Integer, Integer> versions = new HashMap<>();
+        for (int blockNumber = 0; blockNumber < blocks; blockNumber++) {
+            log.writeBlock(blockNumber, versioned(blockNumber, 0));
+            versions.put(blockNumber, 0);
+        }
+        // several times the capacity of the log, a third of the blocks is hot
+        Random random = new Random(42);
+        for (int i = 0; i < BLOCK_COUNT * 5; i++) {
+            int blockNumber = random.nextInt(4) == 0 ? random.nextInt(blocks) : random.nextInt(blocks / 3);
+            int version = versions.get(blockNumber) + 1;
+            log.writeBlock(blockNumber, versioned(blockNumber, version));
+            versions.put(blockNumber, version);
+        }
+
+        for (Map.Entry<Integer, Integer> entry : versions.entrySet()) {
+            assertThat(read(log, entry.getKey()))
+                    .as("block %d", entry.getKey())
+                    .isEqualTo(versioned(entry.getKey(), entry.getValue()));
+        }
+        log.close();
+
+        LogStructuredBlockStorage reopened = LogStructuredBlockStorage.open(storage(), executor);
+        for (Map.Entry<Integer, Integer> entry : versions.entrySet()) {
+            assertThat(read(reopened, entry.getKey()))
+                    .as("block %d after reopen", entry.getKey())
+                    .isEqualTo(versioned(entry.getKey(), entry.getValue()));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void should_reject_storage_too_small_for_log() throws Exception {
+        assertThatThrownBy(() -> LogStructuredBlockStorage.format(new InMemoryBlockStorage(BLOCK_SIZE, 16), executor))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void should_restore_log_structured_file_system() throws Exception {
+        FileSystem original = FileSystemManager.getInstance()
+                .create(file, BLOCK_SIZE, BLOCK_COUNT, Durability.none(), WriteMode.LOG_STRUCTURED);
+        original.createFile("/foo/bar").write(filled(1));
+        original.createFile("/baz").write(new byte[]{1, 2, 3});
+        original.close();
+
+        try (FileSystem restored = FileSystemManager.getInstance().restore(file)) {
+            assertThat(readFile(restored.openFile("/foo/bar")))
+                    .as("restored content")
+                    .isEqualTo(filled(1));
+            restored.openFile("/baz").append(new byte[]{4});
+        }
+        try (FileSystem restored = FileSystemManager.getInstance().restore(file, BLOCK_SIZE, BLOCK_COUNT)) {
+            assertThat(readFile(restored.openFile("/baz")))
+                    .as("appended content")
+                    .containsExactly(1, 2, 3, 4);
+        }
+    }
+
+    private BlockStorage storage() throws IOException {
+        return new SingleFileBlockStorage(new RandomAccessFile(file, "rw"), BLOCK_SIZE, BLOCK_COUNT);
+    }
+
+    private static long invocations(BlockStorage blockStorage, String method) {
+        return mockingDetails(blockStorage).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals(method))
+                .count();
+    }
+
+    private static byte[] read(BlockStorage blockStorage, long blockNumber) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        blockStorage.readBlock(blockNumber, block);
+        return block;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.getFileSize()];
+        file.read(content);
+        return content;
+    }
+
+    private static byte[] filled(int value) {
+        byte[] block = new byte[BLOCK_SIZE];
+        Arrays.fill(block, (byte) value);
+        return block;
+    }
+
+    private static byte[] versioned(int blockNumber, int version) {
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        while (block.hasRemaining()) {
+            block.putInt(blockNumber).putInt(version);
+        }
+        return block.array();
+    }
+}
@@ -267,6 +267,24 @@ public class PersistenceManagerTest {
         verify(blockStorage, never()).readBlock(anyLong(), any(byte[].class), anyInt(), anyInt(), anyLong());
     }
 
+    @Test
+    public void should_read_hole_without_storage_access() throws IOException {
+        byte[] buffer = new byte[BLOCK_SIZE];
+        buffer[7] = 42;
+        int bytesRead = persistenceManager.readINodeData(
+                new INode(fs, 1, FileType.FILE, BLOCK_SIZE * 2, Arrays.asList(INode.HOLE, 1L)),
+                buffer, 0, BLOCK_SIZE, 0L
+        );
+
+        assertThat(bytesRead)
+                .as("bytes read")
+                .isEqualTo(BLOCK_SIZE);
+        assertThat(buffer)
+                .as("hole content")
+                .containsOnly(0);
+        verify(blockStorage, never()).readBlock(anyLong(), any(byte[].class), anyInt(), anyInt(), anyLong());
+    }
+
     @Test
     public void should_fail_to_read_wrong_length() throws IOException {
         assertThatThrownBy(() -> persistenceManager.readINodeData(
@@ -0,0 +1,90 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class RangeLocksTest {
+
+    private RangeLocks rangeLocks;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        rangeLocks = new RangeLocks();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void should_share_overlapping_shared_locks() throws Exception {
+        try (RangeLock ignored = rangeLocks.lock(0, 100, true)) {
+            assertThat(lockInOtherThread(50, 100, true).get(1, TimeUnit.SECONDS))
+                    .as("shared lock of overlapping range")
+                    .isTrue();
+        }
+    }
+
+    @Test
+    public void should_not_block_disjoint_ranges() throws Exception {
+        try (RangeLock ignored = rangeLocks.lock(0, 100, false)) {
+            assertThat(lockInOtherThread(100, 100, false).get(1, TimeUnit.SECONDS))
+                    .as("exclusive lock of adjacent range")
+                    .isTrue();
+        }
+    }
+
+    @Test
+    public void should_block_overlapping_range_until_released() throws Exception {
+        RangeLock lock = rangeLocks.lock(0, 100, true);
+        Future<Boolean> other = lockInOtherThread(99, 1, false);
+        try {
+            other.get(100, TimeUnit.MILLISECONDS);
+            fail("Exclusive lock acquired while overlapping range is locked");
+        } catch (TimeoutException expected) {
+            // still waiting
+        }
+
+        lock.close();
+        assertThat(other.get(1, TimeUnit.SECONDS))
+                .as("exclusive lock after release")
+                .isTrue();
+    }
+
+    @Test
+    public void should_not_conflict_with_own_locks() throws Exception {
+        try (RangeLock exclusive = rangeLocks.lock(0, Long.MAX_VALUE, false);
+             RangeLock shared = rangeLocks.lock(10, 10, true)) {
+            assertThat(shared.isShared())
+                    .as("nested lock of the same thread")
+                    .isTrue();
+            assertThat(exclusive.getLength())
+                    .as("range up to the end of any file")
+                    .isEqualTo(Long.MAX_VALUE);
+        }
+        assertThat(lockInOtherThread(0, 1, false).get(1, TimeUnit.SECONDS))
+                .as("exclusive lock after both released")
+                .isTrue();
+    }
+
+    private Future<Boolean> lockInOtherThread(long position, long length, boolean shared) {
+        return executor.submit(() -> {
+            try (RangeLock ignored = rangeLocks.lock(position, length, shared)) {
+                return true;
+            }
+        });
+    }
+}
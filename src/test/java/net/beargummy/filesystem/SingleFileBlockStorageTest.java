@@ -38,6 +38,33 @@ public class SingleFileBlockStorageTest {
                 .startsWith(data);
     }
 
+    @Test
+    public void should_keep_written_data_after_sync() throws IOException {
+        blockStorage.writeBlock(0, new byte[]{1, 2, 3});
+        blockStorage.sync();
+
+        byte[] bytes = new byte[3];
+        blockStorage.readBlock(0, bytes, 0, 3, 0);
+        assertThat(bytes)
+                .as("read synced data back")
+                .containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void should_read_into_buffer_at_offset() throws IOException {
+        blockStorage.writeBlock(1, new byte[]{1, 2, 3, 4}, 0, 4, 10);
+
+        byte[] bytes = new byte[6];
+        int bytesRead = blockStorage.readBlock(1, bytes, 2, 4, 10);
+
+        assertThat(bytesRead)
+                .as("bytes read")
+                .isEqualTo(4);
+        assertThat(bytes)
+                .as("read data at buffer offset")
+                .containsExactly(0, 0, 1, 2, 3, 4);
+    }
+
     @Test
     public void should_fail_to_write_if_index_is_incorrect() {
         assertThatThrownBy(() -> blockStorage.writeBlock(BLOCK_COUNT, new byte[]{}))
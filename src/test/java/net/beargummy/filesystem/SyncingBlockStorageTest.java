@@ -0,0 +1,163 @@
+package net.beargummy.filesystem;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SyncingBlockStorageTest {
+
+    public static final int BLOCK_SIZE = 512;
+    public static final int BLOCK_COUNT = 16;
+    public static final int CALLERS = 8;
+
+    private final CountingBlockStorage storage = new CountingBlockStorage(new InMemoryBlockStorage(BLOCK_SIZE, BLOCK_COUNT));
+    private final ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void should_not_sync_operations_without_policy() throws Exception {
+        SyncingBlockStorage syncing = new SyncingBlockStorage(storage, Durability.none());
+        syncing.writeBlock(1, new byte[BLOCK_SIZE]);
+        syncing.awaitDurable();
+
+        assertThat(storage.syncs.get())
+                .as("number of syncs")
+                .isZero();
+    }
+
+    @Test
+    public void should_sync_every_operation() throws Exception {
+        SyncingBlockStorage syncing = new SyncingBlockStorage(storage, Durability.perOperation());
+        for (int i = 0; i < 3; i++) {
+            syncing.writeBlock(i, new byte[BLOCK_SIZE]);
+            syncing.awaitDurable();
+        }
+
+        assertThat(storage.syncs.get())
+                .as("number of syncs")
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void should_share_sync_between_concurrent_operations() throws Exception {
+        SyncingBlockStorage syncing = new SyncingBlockStorage(storage, Durability.groupCommit(100, TimeUnit.MILLISECONDS));
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            long blockNumber = i;
+            futures.add(executor.submit(() -> {
+                start.await();
+                syncing.writeBlock(blockNumber, new byte[BLOCK_SIZE]);
+                syncing.awaitDurable();
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertThat(storage.syncs.get())
+                .as("number of syncs")
+                .isPositive()
+                .isLessThan(CALLERS);
+    }
+
+    @Test
+    public void should_sync_written_blocks_periodically() throws Exception {
+        SyncingBlockStorage syncing = new SyncingBlockStorage(storage, Durability.periodic(10, TimeUnit.MILLISECONDS));
+        syncing.writeBlock(1, new byte[BLOCK_SIZE]);
+        syncing.awaitDurable();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (storage.syncs.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(storage.syncs.get())
+                .as("number of syncs")
+                .isPositive();
+        syncing.close();
+    }
+
+    @Test
+    public void should_sync_written_blocks_on_close() throws Exception {
+        SyncingBlockStorage syncing = new SyncingBlockStorage(storage, Durability.none());
+        syncing.writeBlock(1, new byte[BLOCK_SIZE]);
+        syncing.close();
+
+        assertThat(storage.syncs.get())
+                .as("number of syncs")
+                .isEqualTo(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_non_positive_interval() {
+        Durability.periodic(0, TimeUnit.MILLISECONDS);
+    }
+
+    private static class CountingBlockStorage implements BlockStorage {
+
+        private final BlockStorage blockStorage;
+        private final AtomicInteger syncs = new AtomicInteger();
+
+        CountingBlockStorage(BlockStorage blockStorage) {
+            this.blockStorage = blockStorage;
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer) throws IOException {
+            return blockStorage.readBlock(blockNumber, buffer);
+        }
+
+        @Override
+        public int readBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+            return blockStorage.readBlock(blockNumber, buffer, offset, length, position);
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer) throws IOException {
+            blockStorage.writeBlock(blockNumber, buffer);
+        }
+
+        @Override
+        public void writeBlock(long blockNumber, byte[] buffer, int offset, int length, long position) throws IOException {
+            blockStorage.writeBlock(blockNumber, buffer, offset, length, position);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            syncs.incrementAndGet();
+            blockStorage.sync();
+        }
+
+        @Override
+        public int getBlockSize() {
+            return blockStorage.getBlockSize();
+        }
+
+        @Override
+        public long getBlocksCount() {
+            return blockStorage.getBlocksCount();
+        }
+
+        @Override
+        public void close() throws Exception {
+            blockStorage.close();
+        }
+    }
+}
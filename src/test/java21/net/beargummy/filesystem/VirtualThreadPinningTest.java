@@ -0,0 +1,122 @@
+package net.beargummy.filesystem;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VirtualThreadPinningTest {
+
+    public static final int BLOCK_SIZE = 4 * 1024;
+    public static final int BLOCK_COUNT = 16 * 1024;
+    public static final int TASKS = 10_000;
+    public static final int CHUNK_SIZE = 100;
+
+    private DefaultFileSystem defaultFileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        java.io.File file = java.io.File.createTempFile("VirtualThreadPinningTest", "tmp");
+        file.deleteOnExit();
+        DefaultFileSystem defaultFileSystem = new DefaultFileSystem(
+                4,
+                new CoalescingBlockStorage(new SingleFileBlockStorage(new RandomAccessFile(file, "rw"), BLOCK_SIZE, BLOCK_COUNT))
+        );
+        defaultFileSystem.initFileSystem();
+        this.defaultFileSystem = defaultFileSystem;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        defaultFileSystem.close();
+    }
+
+    @Test
+    public void should_run_default_executor_tasks_on_virtual_threads() throws Exception {
+        CompletableFuture<Boolean> virtual = new CompletableFuture<>();
+        FileSystemExecutor.defaultExecutor().execute(() -> virtual.complete(Thread.currentThread().isVirtual()));
+
+        assertThat(virtual.get())
+                .as("task run on virtual thread")
+                .isTrue();
+    }
+
+    @Test
+    public void should_not_pin_carrier_threads_on_hot_paths() throws Exception {
+        List<RecordedEvent> pinned = new CopyOnWriteArrayList<>();
+        try (RecordingStream recording = new RecordingStream()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.onEvent("jdk.VirtualThreadPinned", pinned::add);
+            recording.startAsync();
+
+            defaultFileSystem.createFile("/log");
+            List<Future<Void>> futures = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < TASKS; i++) {
+                    int id = i;
+                    futures.add(executor.submit(() -> {
+                        runFileOperations(id);
+                        return null;
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            }
+            recording.stop();
+        }
+
+        assertThat(defaultFileSystem.openFile("/log").getFileSize())
+                .as("log size")
+                .isEqualTo((long) TASKS * CHUNK_SIZE);
+        assertThat(pinned)
+                .as("pinned virtual threads")
+                .isEmpty();
+    }
+
+    private void runFileOperations(int id) throws Exception {
+        File log = defaultFileSystem.openFile("/log");
+        byte[] chunk = new byte[CHUNK_SIZE];
+        switch (id % 4) {
+            case 0:
+                // appends wait for each other to publish size
+                log.append(chunk);
+                break;
+            case 1:
+                log.append(chunk);
+                try (InputStream stream = log.follow(0)) {
+                    stream.read(chunk);
+                }
+                break;
+            case 2:
+                log.append(chunk);
+                try (RangeLock ignored = log.lock(0, CHUNK_SIZE, id % 8 == 2)) {
+                    log.write(chunk, 0, CHUNK_SIZE, 0);
+                }
+                break;
+            default:
+                log.append(chunk);
+                File file = defaultFileSystem.createFile("/dir-" + id % 16 + "/file-" + id);
+                byte[] blocks = new byte[2 * BLOCK_SIZE];
+                file.write(blocks);
+                // chunks are read on the default executor
+                file.readParallel(blocks, 0, blocks.length, 0);
+                defaultFileSystem.deleteFile("/dir-" + id % 16 + "/file-" + id);
+                break;
+        }
+    }
+}